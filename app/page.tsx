@@ -17,12 +17,14 @@ import { useToast } from "@/hooks/use-toast"
 interface Message {
   sender: string
   seq: number
+  offset: number
   message: string
   type: "text" | "file_chunk"
   timestamp: number
   fileName?: string
   chunkIndex?: number
   totalChunks?: number
+  group?: string
 }
 
 interface ClientState {
@@ -38,6 +40,7 @@ const WINDOW_SIZE = 5
 const TIMEOUT_MS = 3000
 const MAX_RETRIES = 3
 const POLLING_INTERVAL = 2000
+const LONG_POLL_WAIT_MS = 25000
 const SERVER_URL = "http://localhost:8080"
 
 export default function ReliableChatApp() {
@@ -59,7 +62,15 @@ export default function ReliableChatApp() {
 
   const { toast } = useToast()
   const fileInputRef = useRef<HTMLInputElement>(null)
-  const pollingRef = useRef<NodeJS.Timeout>()
+  const pollingRef = useRef(false)
+  const lastReceivedOffsetRef = useRef(-1)
+  // Group messages carry group offsets, a number space of their own per group
+  const groupOffsetsRef = useRef<Map<string, number>>(new Map())
+  const receiverRef = useRef("")
+
+  useEffect(() => {
+    receiverRef.current = receiver
+  }, [receiver])
 
   useEffect(() => {
     if (isConnected) {
@@ -68,22 +79,30 @@ export default function ReliableChatApp() {
     }
 
     return () => {
-      if (pollingRef.current) {
-        clearInterval(pollingRef.current)
-      }
+      pollingRef.current = false
       // Clear all timeouts
       clientState.timeouts.forEach((timeout) => clearTimeout(timeout))
     }
   }, [isConnected])
 
-  const startPolling = () => {
-    pollingRef.current = setInterval(async () => {
+  const startPolling = async () => {
+    // Long-poll: the server parks /receive until a message arrives or the wait expires
+    pollingRef.current = true
+    while (pollingRef.current) {
       try {
-        const response = await fetch(`${SERVER_URL}/receive?user=${username}&lastAck=${clientState.lastReceivedSeq}`)
+        const groupAck = Array.from(groupOffsetsRef.current, ([group, offset]) => `${group}:${offset}`).join(",")
+        const response = await fetch(
+          `${SERVER_URL}/receive?user=${username}&lastAck=${lastReceivedOffsetRef.current}&wait=${LONG_POLL_WAIT_MS}` +
+            (groupAck ? `&groupAck=${encodeURIComponent(groupAck)}` : ""),
+        )
         const data = await response.json()
 
         if (data.messages && data.messages.length > 0) {
-          setMessages((prev) => [...prev, ...data.messages])
+          // After a server restart, messages that were delivered but not yet acked arrive again
+          setMessages((prev) => {
+            const seen = new Set(prev.map((m) => `${m.sender}:${m.seq}:${m.timestamp}`))
+            return [...prev, ...data.messages.filter((m: Message) => !seen.has(`${m.sender}:${m.seq}:${m.timestamp}`))]
+          })
 
           // Process file chunks
           data.messages.forEach((msg: Message) => {
@@ -108,20 +127,31 @@ export default function ReliableChatApp() {
             }
           })
 
+          data.messages.forEach((m: Message) => {
+            if (m.group) {
+              const groupOffsets = groupOffsetsRef.current
+              groupOffsets.set(m.group, Math.max(groupOffsets.get(m.group) ?? -1, m.offset))
+            } else {
+              lastReceivedOffsetRef.current = Math.max(lastReceivedOffsetRef.current, m.offset)
+            }
+          })
           setClientState((prev) => ({
             ...prev,
-            lastReceivedSeq: Math.max(prev.lastReceivedSeq, ...data.messages.map((m: Message) => m.seq)),
+            lastReceivedSeq: lastReceivedOffsetRef.current,
           }))
         }
 
-        // Handle ACKs
-        if (data.ack !== undefined) {
-          handleAck(data.ack)
+        // Handle ACKs piggy-backed for our channel to the current receiver
+        const ack = data.acks?.[receiverRef.current]
+        if (ack !== undefined) {
+          handleAck(ack)
         }
       } catch (error) {
         console.error("Polling error:", error)
+        // Back off before reconnecting so a down server isn't hammered
+        await new Promise((resolve) => setTimeout(resolve, POLLING_INTERVAL))
       }
-    }, POLLING_INTERVAL)
+    }
   }
 
   const handleAck = (ack: number) => {
@@ -281,57 +311,69 @@ export default function ReliableChatApp() {
       description: `Sending ${file.name} in ${totalChunks} chunks`,
     })
 
+    // Chunks the server already holds with the same content are skipped, so a
+    // re-sent or interrupted upload only transfers what is missing
+    const stored = new Map<number, string>()
+    try {
+      const existing = await fetch(
+        `${SERVER_URL}/file-chunks?${new URLSearchParams({ receiver: receiver, fileName: file.name })}`,
+      )
+      if (existing.ok) {
+        const data = await existing.json()
+        for (const c of data.chunks ?? []) stored.set(c.index, c.sha256)
+      }
+    } catch (error) {
+      console.error("Chunk listing error:", error)
+    }
+
     for (let i = 0; i < totalChunks; i++) {
       const start = i * CHUNK_SIZE
       const end = Math.min(start + CHUNK_SIZE, file.size)
       const chunk = file.slice(start, end)
 
-      const reader = new FileReader()
-      reader.onload = async () => {
-        const chunkData = btoa(reader.result as string)
-
-        try {
-          const response = await fetch(`${SERVER_URL}/upload-chunk`, {
-            method: "POST",
-            headers: {
-              "Content-Type": "application/json",
-            },
-            body: JSON.stringify({
-              sender: username,
-              receiver: receiver,
-              fileName: file.name,
-              chunkIndex: i,
-              totalChunks: totalChunks,
-              chunkData: chunkData,
-              seq: clientState.nextSeqNum + i,
-            }),
-          })
+      try {
+        const digest = await crypto.subtle.digest("SHA-256", await chunk.arrayBuffer())
+        const sha256 = Array.from(new Uint8Array(digest), (b) => b.toString(16).padStart(2, "0")).join("")
+        if (stored.get(i) === sha256) {
+          console.log(`Chunk ${i + 1}/${totalChunks} already on server`)
+          continue
+        }
 
-          if (response.ok) {
-            console.log(`Chunk ${i + 1}/${totalChunks} uploaded`)
-          }
-        } catch (error) {
-          console.error("Chunk upload error:", error)
+        // Send the raw bytes; metadata and the content hash travel in the query string
+        const params = new URLSearchParams({
+          sender: username,
+          receiver: receiver,
+          fileName: file.name,
+          chunkIndex: String(i),
+          totalChunks: String(totalChunks),
+          seq: String(clientState.nextSeqNum + i),
+          sha256: sha256,
+        })
+
+        const response = await fetch(`${SERVER_URL}/upload-chunk?${params}`, {
+          method: "POST",
+          headers: {
+            "Content-Type": "application/octet-stream",
+          },
+          body: chunk,
+        })
+
+        if (response.ok) {
+          console.log(`Chunk ${i + 1}/${totalChunks} uploaded`)
         }
+      } catch (error) {
+        console.error("Chunk upload error:", error)
       }
-
-      reader.readAsBinaryString(chunk)
     }
   }
 
   const downloadFile = async (fileName: string, sender: string) => {
     try {
-      const response = await fetch(`${SERVER_URL}/download-file?fileName=${fileName}&receiver=${username}`)
-      const data = await response.json()
-
-      if (data.chunks && data.chunks.length > 0) {
-        const binaryString = data.chunks.map((chunk: string) => atob(chunk)).join("")
-        const bytes = new Uint8Array(binaryString.length)
-        for (let i = 0; i < binaryString.length; i++) {
-          bytes[i] = binaryString.charCodeAt(i)
-        }
+      const params = new URLSearchParams({ fileName: fileName, receiver: username, format: "binary" })
+      const response = await fetch(`${SERVER_URL}/download-file?${params}`)
+      const blob = await response.blob()
 
-        const blob = new Blob([bytes])
+      if (response.ok && blob.size > 0) {
         const url = URL.createObjectURL(blob)
         const a = document.createElement("a")
         a.href = url
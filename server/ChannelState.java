@@ -0,0 +1,275 @@
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Sliding-window state for one sender-to-receiver channel.
+ *
+ * In-order packets are handed to the delivery callback and held in the
+ * receive buffer until the receiver acknowledges their delivery offset
+ * through /receive; the free part of the buffer is advertised back to the
+ * sender as its window. With selective repeat enabled, packets that arrive
+ * ahead of a gap but inside the window are parked and released as soon as
+ * the gap is filled, so a single loss does not force the whole window to be
+ * resent.
+ *
+ * Mutations are serialized on the channel's own lock, so unrelated
+ * channels never contend. It is a ReentrantLock rather than a monitor
+ * because delivery writes to the database while holding it, and a virtual
+ * thread blocked inside synchronized would pin its carrier. The cumulative
+ * ack and the free window are published through atomics and can be read
+ * without taking the lock.
+ *
+ * Out-of-order packets live in a fixed slot array indexed by seq modulo the
+ * window, with a 64-bit mask relative to the next expected seq standing in
+ * for a set of received seqs.
+ */
+public class ChannelState {
+    enum Outcome { ACCEPTED, BUFFERED, DUPLICATE, OUT_OF_ORDER, WINDOW_FULL }
+
+    static final Outcome[] OUTCOMES = Outcome.values();
+
+    static final int MAX_WINDOW_SIZE = Long.SIZE; // bounded by the width of outOfOrderMask
+
+    static class Result {
+        final Outcome outcome;
+        final int ack;        // cumulative: every seq up to and including this one was accepted
+        final int window;     // packets the sender may have outstanding beyond ack
+        final List<Integer> sack; // out-of-order seqs already held by the server
+        final int delivered;  // packets released to the receiver by this call
+
+        Result(Outcome outcome, int ack, int window, List<Integer> sack, int delivered) {
+            this.outcome = outcome;
+            this.ack = ack;
+            this.window = window;
+            this.sack = sack;
+            this.delivered = delivered;
+        }
+    }
+
+    final String sender;
+    final String receiver;
+    private final int windowSize;
+    private final boolean selectiveRepeat;
+    private final boolean holdUntilAcked;
+
+    private final AtomicInteger expectedSeqNum = new AtomicInteger(0);
+    private final AtomicInteger buffered = new AtomicInteger(0); // receiveBuffer.size(), readable without the lock
+    private final Deque<ChatServer.Message> receiveBuffer = new ArrayDeque<>();
+    private final ChatServer.Message[] outOfOrder;
+    private long outOfOrderMask = 0; // bit i set => seq (expectedSeqNum + i) is parked in outOfOrder
+    private boolean retired = false;
+    private final long[] outcomeCounts = new long[OUTCOMES.length]; // written under the lock, read racily by /metrics
+    private final AtomicLong dropped = new AtomicLong();
+    private final ReentrantLock lock = new ReentrantLock();
+    volatile long lastActivity = System.currentTimeMillis();
+
+    ChannelState(String sender, String receiver, int windowSize, boolean selectiveRepeat) {
+        this(sender, receiver, windowSize, selectiveRepeat, true);
+    }
+
+    /**
+     * With {@code holdUntilAcked} false, delivered packets are not kept in the
+     * receive buffer, so the window only bounds reordering. Group channels
+     * use this: their members read from the group log at their own pace.
+     */
+    ChannelState(String sender, String receiver, int windowSize, boolean selectiveRepeat, boolean holdUntilAcked) {
+        if (windowSize <= 0 || windowSize > MAX_WINDOW_SIZE) {
+            throw new IllegalArgumentException("window size must be between 1 and " + MAX_WINDOW_SIZE + ": " + windowSize);
+        }
+        this.sender = sender;
+        this.receiver = receiver;
+        this.windowSize = windowSize;
+        this.selectiveRepeat = selectiveRepeat;
+        this.holdUntilAcked = holdUntilAcked;
+        this.outOfOrder = new ChatServer.Message[windowSize];
+    }
+
+    /**
+     * Resumes a channel recovered after a restart at {@code nextSeq}. Only
+     * meaningful before the channel has seen any traffic.
+     */
+    void restore(int nextSeq, long lastActivity) {
+        lock.lock();
+        try {
+            expectedSeqNum.set(nextSeq);
+            this.lastActivity = lastActivity;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Runs one incoming packet through the window. Every packet that becomes
+     * deliverable is passed to {@code deliver} in seq order while the channel
+     * is still locked, so delivery order always matches seq order.
+     *
+     * Returns null if the channel was retired by the cleanup task; the caller
+     * should look the channel up again.
+     */
+    Result receive(ChatServer.Message message, Consumer<ChatServer.Message> deliver) {
+        lock.lock();
+        try {
+            return receiveLocked(message, deliver);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Runs a batch of packets from one request through the window in order,
+     * under a single acquisition of the lock. Every packet the batch makes
+     * deliverable is passed to {@code deliver} in one list, in seq order,
+     * before the lock is released. Returns one Result per packet, the last of
+     * which reflects the channel after the whole batch, or null if the
+     * channel was retired.
+     */
+    Result[] receiveAll(List<ChatServer.Message> messages, Consumer<List<ChatServer.Message>> deliver) {
+        lock.lock();
+        try {
+            if (retired) {
+                return null;
+            }
+            List<ChatServer.Message> released = new ArrayList<>(messages.size());
+            Result[] results = new Result[messages.size()];
+            for (int i = 0; i < results.length; i++) {
+                results[i] = receiveLocked(messages.get(i), released::add);
+            }
+            if (!released.isEmpty()) {
+                deliver.accept(released);
+            }
+            return results;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Result receiveLocked(ChatServer.Message message, Consumer<ChatServer.Message> deliver) {
+        if (retired) {
+            return null;
+        }
+        lastActivity = System.currentTimeMillis();
+        int seq = message.seq;
+        int expected = expectedSeqNum.get();
+        int window = windowSize - receiveBuffer.size();
+        int delivered = 0;
+        Outcome outcome;
+
+        if (seq < expected || (seq - expected < MAX_WINDOW_SIZE && (outOfOrderMask & (1L << (seq - expected))) != 0)) {
+            outcome = Outcome.DUPLICATE;
+        } else if (window <= 0) {
+            outcome = Outcome.WINDOW_FULL;
+        } else if (seq == expected) {
+            deliverInOrder(message, deliver);
+            delivered++;
+            // Release anything that was waiting on this gap
+            while ((outOfOrderMask & 1L) != 0) {
+                int slot = expectedSeqNum.get() % windowSize;
+                ChatServer.Message next = outOfOrder[slot];
+                outOfOrder[slot] = null;
+                deliverInOrder(next, deliver);
+                delivered++;
+            }
+            outcome = Outcome.ACCEPTED;
+        } else if (selectiveRepeat && seq < expected + window) {
+            outOfOrder[seq % windowSize] = message;
+            outOfOrderMask |= 1L << (seq - expected);
+            outcome = Outcome.BUFFERED;
+        } else {
+            outcome = Outcome.OUT_OF_ORDER;
+        }
+        outcomeCounts[outcome.ordinal()]++;
+
+        return new Result(outcome, expectedSeqNum.get() - 1, windowSize - receiveBuffer.size(),
+            sackList(), delivered);
+    }
+
+    private void deliverInOrder(ChatServer.Message message, Consumer<ChatServer.Message> deliver) {
+        deliver.accept(message);
+        if (holdUntilAcked) {
+            receiveBuffer.offer(message);
+            buffered.set(receiveBuffer.size());
+        }
+        expectedSeqNum.incrementAndGet();
+        outOfOrderMask >>>= 1;
+    }
+
+    private List<Integer> sackList() {
+        if (outOfOrderMask == 0) {
+            return Collections.emptyList();
+        }
+        int expected = expectedSeqNum.get();
+        List<Integer> sack = new ArrayList<>(Long.bitCount(outOfOrderMask));
+        for (long mask = outOfOrderMask; mask != 0; mask &= mask - 1) {
+            sack.add(expected + Long.numberOfTrailingZeros(mask));
+        }
+        return sack;
+    }
+
+    /**
+     * Frees buffer slots for every packet the receiver has acknowledged
+     * through {@code lastAck}. Returns the number of slots freed.
+     */
+    int drain(long lastAck) {
+        lock.lock();
+        try {
+            int freed = 0;
+            ChatServer.Message head;
+            while ((head = receiveBuffer.peek()) != null && head.offset <= lastAck) {
+                receiveBuffer.poll();
+                freed++;
+            }
+            buffered.set(receiveBuffer.size());
+            return freed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Marks the channel retired if it has been idle since before {@code cutoff}
+     * and holds no undelivered packets. A retired channel refuses further
+     * packets, so a send racing with cleanup re-creates the channel instead of
+     * writing into one that is being dropped.
+     */
+    boolean retireIfIdle(long cutoff) {
+        lock.lock();
+        try {
+            if (lastActivity > cutoff || !receiveBuffer.isEmpty() || outOfOrderMask != 0) {
+                return false;
+            }
+            retired = true;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int ack() {
+        return expectedSeqNum.get() - 1;
+    }
+
+    int window() {
+        return windowSize - buffered.get();
+    }
+
+    int windowSize() {
+        return windowSize;
+    }
+
+    /** Packets this channel has handled with the given outcome, for /metrics. */
+    long count(Outcome outcome) {
+        return outcomeCounts[outcome.ordinal()];
+    }
+
+    /** Counts packets the simulated loss discarded before they reached the window. */
+    void recordDrops(int packets) {
+        dropped.addAndGet(packets);
+    }
+
+    long dropped() {
+        return dropped.get();
+    }
+}
@@ -1,74 +1,184 @@
 import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpContext;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpExchange;
 import java.io.*;
 import java.net.InetSocketAddress;
+import java.net.URLDecoder;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.sql.*;
 import org.json.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class ChatServer {
-    private static final int PORT = 8080;
-    private static final int RECEIVE_WINDOW_SIZE = 5;
-    private static final double PACKET_LOSS_PROBABILITY = 0.1; // 10% packet loss simulation
+    private static final Logger log = LoggerFactory.getLogger(ChatServer.class);
+    private static final int PORT = ServerConfig.getInt("chat.port", 8080);
+    private static final int BACKLOG = ServerConfig.getInt("chat.backlog", 0); // 0 = system default
+    private static final int RECEIVE_WINDOW_SIZE = ServerConfig.getInt("chat.receiveWindow", 5);
+    private static final double PACKET_LOSS_PROBABILITY = ServerConfig.getDouble("chat.packetLoss", 0.1); // 10% packet loss simulation
+    private static final boolean SELECTIVE_REPEAT = ServerConfig.getBoolean("chat.selectiveRepeat", true);
+    private static final long MAX_RECEIVE_WAIT_MS = ServerConfig.getLong("chat.maxReceiveWaitMs", 30000); // upper bound for /receive?wait=
+    private static final long CHANNEL_IDLE_MS = ServerConfig.getLong("chat.channelIdleMs", 300000); // 5 minutes
+    private static final long CHECKPOINT_INTERVAL_MS = ServerConfig.getLong("chat.checkpoint.intervalMs", 60000); // 0 disables
     
-    // Client state management
-    private static final Map<String, ClientState> clientStates = new ConcurrentHashMap<>();
-    private static final Map<String, Queue<Message>> messageQueues = new ConcurrentHashMap<>();
-    private static final Random random = new Random();
+    // Channel state management, indexed both ways: receiver -> sender -> state and sender -> receiver -> state
+    private static final Map<String, Map<String, ChannelState>> channelsByReceiver = new ConcurrentHashMap<>();
+    private static final Map<String, Map<String, ChannelState>> channelsBySender = new ConcurrentHashMap<>();
+    private static final WriteBehindQueue writeBehind = new WriteBehindQueue();
+    private static final DeliveryLog deliveryLog = new DeliveryLog(writeBehind);
+    private static final GroupLog groupLog = new GroupLog(writeBehind);
+    private static final PresenceRegistry presence = new PresenceRegistry();
+    private static final FileStore fileStore = new FileStore();
+    private static final int DOWNLOAD_PAGE_SIZE = 16; // legacy base64 chunks fetched per query while streaming
+    static final int MAX_HISTORY_PAGE = ServerConfig.getInt("chat.history.maxPage", 200);
+    private static final int MAX_BATCH_PACKETS = ServerConfig.getInt("chat.sendBatch.maxPackets", ChannelState.MAX_WINDOW_SIZE);
+    private static final boolean PER_CHANNEL_METRICS = ServerConfig.getBoolean("chat.metrics.perChannel", true);
     
-    static class ClientState {
-        int expectedSeqNum = 0;
-        Queue<Message> receiveBuffer = new LinkedList<>();
-        Set<Integer> confirmedAcks = new HashSet<>();
-        long lastActivity = System.currentTimeMillis();
+    // Aggregate packet outcomes, resolved once so the send path does not look them up
+    private static final Metrics.Counter[] PACKET_OUTCOMES = new Metrics.Counter[ChannelState.OUTCOMES.length];
+    private static final Metrics.Counter PACKETS_DROPPED = Metrics.PACKETS.labels("dropped");
+    static {
+        for (ChannelState.Outcome outcome : ChannelState.OUTCOMES) {
+            PACKET_OUTCOMES[outcome.ordinal()] = Metrics.PACKETS.labels(outcome.name().toLowerCase(Locale.ROOT));
+        }
     }
     
+    // Long-poll receivers parked until a message lands for them or their wait expires
+    private static final Map<String, Queue<PendingReceive>> pendingReceives = new ConcurrentHashMap<>();
+    private static final ScheduledExecutorService receiveTimeouts = Executors.newSingleThreadScheduledExecutor();
+    // Answers woken long-polls; the request executor once main has started the server
+    private static volatile Executor receiveCompletions = Runnable::run;
+    
+    // WebSocket connections, when chat.ws.port enables the transport; null otherwise and in the benchmarks
+    private static volatile WebSocketTransport webSockets;
+    
+    /**
+     * One queued message. Millions of these can sit in delivery logs, so the
+     * user names and the type are interned, making every message from or to
+     * the same user share one String, and the file fields live in the
+     * {@link FileChunk} subclass rather than in every text message.
+     */
     static class Message {
-        String sender;
-        String receiver;
-        int seq;
-        String content;
-        String type; // "text" or "file_chunk"
-        String fileName;
-        int chunkIndex;
-        int totalChunks;
+        final String sender;
+        final String receiver;
+        final int seq;
+        final String content;
+        final String type; // "text" or "file_chunk"
         long timestamp;
+        long offset; // per-receiver delivery offset, assigned by DeliveryLog
+        volatile boolean settled = true; // false while the write-behind record holding its row is outstanding
+        volatile boolean held;           // in commit mode, kept from readers until the record settles
         
         Message(String sender, String receiver, int seq, String content, String type) {
-            this.sender = sender;
-            this.receiver = receiver;
+            this.sender = intern(sender);
+            this.receiver = intern(receiver);
             this.seq = seq;
             this.content = content;
-            this.type = type;
+            this.type = intern(type);
             this.timestamp = System.currentTimeMillis();
         }
+        
+        private static String intern(String value) {
+            return value != null ? value.intern() : null;
+        }
+    }
+    
+    /** A notification that one chunk of a file transfer is ready to download. */
+    static class FileChunk extends Message {
+        final String fileName;
+        final int chunkIndex;
+        final int totalChunks;
+        
+        FileChunk(String sender, String receiver, int seq, String fileName, int chunkIndex, int totalChunks) {
+            super(sender, receiver, seq, "File chunk: " + fileName, "file_chunk");
+            this.fileName = fileName;
+            this.chunkIndex = chunkIndex;
+            this.totalChunks = totalChunks;
+        }
+    }
+    
+    static class PendingReceive {
+        final HttpExchange exchange;
+        final String user;
+        final long lastAck;
+        final AtomicBoolean completed = new AtomicBoolean(false);
+        volatile ScheduledFuture<?> timeout;
+        
+        PendingReceive(HttpExchange exchange, String user, long lastAck) {
+            this.exchange = exchange;
+            this.user = user;
+            this.lastAck = lastAck;
+        }
     }
     
     public static void main(String[] args) throws Exception {
-        // Initialize database
-        DatabaseManager.initializeDatabase();
+        Cluster.validate();
+        startServices();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            writeBehind.shutdown();
+            presence.flush();
+            checkpoint(); // lets the next start skip the tail scan
+        }, "shutdown-flush"));
         
-        HttpServer server = HttpServer.create(new InetSocketAddress(PORT), 0);
+        HttpServer server = HttpServer.create(new InetSocketAddress(PORT), BACKLOG);
         
-        // CORS handler
-        server.createContext("/", new CorsHandler());
-        server.createContext("/send-message", new SendMessageHandler());
-        server.createContext("/receive", new ReceiveHandler());
-        server.createContext("/upload-chunk", new FileUploadHandler());
-        server.createContext("/download-file", new FileDownloadHandler());
-        server.createContext("/users", new UsersHandler());
+        Metrics.RequestFilter metricsFilter = new Metrics.RequestFilter();
+        Cluster.Router router = new Cluster.Router();
+        for (HttpContext context : Arrays.asList(
+            server.createContext("/", new CorsHandler()), // CORS handler
+            server.createContext("/send-message", new SendMessageHandler()),
+            server.createContext("/send-batch", new SendBatchHandler()),
+            server.createContext("/receive", new ReceiveHandler()),
+            server.createContext("/upload-chunk", new FileUploadHandler()),
+            server.createContext("/download-file", new FileDownloadHandler()),
+            server.createContext("/file-chunks", new FileChunksHandler()),
+            server.createContext("/users", new UsersHandler()),
+            server.createContext("/join-group", new GroupMembershipHandler(true)),
+            server.createContext("/leave-group", new GroupMembershipHandler(false)),
+            server.createContext("/history", new HistoryHandler()),
+            server.createContext("/metrics", new MetricsHandler()))) {
+            context.getFilters().add(metricsFilter);
+            context.getFilters().add(router);
+        }
         
-        server.setExecutor(Executors.newFixedThreadPool(10));
+        ExecutorService requestExecutor = ServerConfig.createRequestExecutor();
+        server.setExecutor(requestExecutor);
+        receiveCompletions = requestExecutor;
         server.start();
         
-        System.out.println("Chat server started on port " + PORT);
+        log.info("Chat server started on port {} ({}, {})", PORT, ServerConfig.describeRequestExecutor(requestExecutor),
+            Cluster.describe());
+        
+        if (WebSocketTransport.PORT > 0) {
+            webSockets = new WebSocketTransport(WebSocketTransport.PORT, requestExecutor);
+            log.info("WebSocket transport listening on port {}", webSockets.port());
+        }
         
         // Start cleanup task
         startCleanupTask();
     }
     
+    /**
+     * Brings up everything the handlers depend on, without binding a port.
+     * Also used by the benchmarks in bench/.
+     */
+    static void startServices() {
+        // Initialize database
+        DatabaseManager.initializeDatabase();
+        writeBehind.start();
+        presence.load();
+        recoverState();
+        registerMetrics();
+    }
+    
     static class CorsHandler implements HttpHandler {
         @Override
         public void handle(HttpExchange exchange) throws IOException {
@@ -105,69 +215,259 @@ public class ChatServer {
             }
             
             try {
-                String requestBody = readRequestBody(exchange);
-                JSONObject json = new JSONObject(requestBody);
+                MessageCodec.SendRequest request;
+                try (InputStream body = exchange.getRequestBody()) {
+                    request = MessageCodec.readSendRequest(body);
+                }
                 
-                String sender = json.getString("sender");
-                String receiver = json.getString("receiver");
-                int seq = json.getInt("seq");
-                String content = json.getString("message");
-                String type = json.optString("type", "text");
+                String sender = request.sender;
+                String receiver = request.receiver;
+                
+                if (!maySend(sender, receiver)) {
+                    exchange.sendResponseHeaders(403, 0);
+                    return;
+                }
                 
-                // Simulate packet loss
-                if (random.nextDouble() < PACKET_LOSS_PROBABILITY) {
-                    System.out.println("Simulating packet loss for seq: " + seq);
+                if (simulateLoss(sender, receiver, request.seq)) {
                     exchange.sendResponseHeaders(200, 0);
                     exchange.close();
                     return;
                 }
                 
-                ClientState clientState = clientStates.computeIfAbsent(receiver, k -> new ClientState());
+                ChannelState.Result result = acceptPacket(new Message(sender, receiver, request.seq, request.message, request.type));
+                if (result == null) {
+                    exchange.sendResponseHeaders(503, 0);
+                    return;
+                }
                 
-                JSONObject response = new JSONObject();
+                MessageCodec.JsonWriter out = MessageCodec.acquireWriter();
+                try {
+                    writeSendAck(out.beginObject(), result);
+                    out.endObject();
+                    sendJsonResponse(exchange, out);
+                } finally {
+                    MessageCodec.release(out);
+                }
                 
-                if (seq == clientState.expectedSeqNum) {
-                    // Expected sequence number - accept message
-                    if (clientState.receiveBuffer.size() < RECEIVE_WINDOW_SIZE) {
-                        Message message = new Message(sender, receiver, seq, content, type);
-                        clientState.receiveBuffer.offer(message);
-                        
-                        // Store in database
-                        DatabaseManager.storeMessage(message);
-                        
-                        // Add to message queue for receiver
-                        messageQueues.computeIfAbsent(receiver, k -> new ConcurrentLinkedQueue<>()).offer(message);
-                        
-                        clientState.expectedSeqNum++;
-                        clientState.confirmedAcks.add(seq);
-                        
-                        response.put("ack", seq);
-                        System.out.println("Accepted message seq: " + seq + " from " + sender + " to " + receiver);
-                    } else {
-                        // Flow control - buffer full
-                        response.put("ack", clientState.expectedSeqNum - 1);
-                        System.out.println("Buffer full, rejecting seq: " + seq);
+            } catch (MessageCodec.MalformedJsonException e) {
+                exchange.sendResponseHeaders(400, 0);
+            } catch (Exception e) {
+                log.error("Error handling /send-message", e);
+                exchange.sendResponseHeaders(500, 0);
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+    
+    /**
+     * Whether {@code sender} may send to {@code receiver}: anyone to a user,
+     * only members to a group, and nobody to a group in cluster mode.
+     */
+    static boolean maySend(String sender, String receiver) {
+        return !GroupLog.isGroup(receiver) || (!Cluster.enabled() && groupLog.isMember(receiver, sender));
+    }
+    
+    /**
+     * Decides whether the simulated loss takes this packet, and if so counts
+     * it. A dropped packet is answered with nothing, as if it never arrived.
+     */
+    static boolean simulateLoss(String sender, String receiver, int seq) {
+        if (ThreadLocalRandom.current().nextDouble() >= PACKET_LOSS_PROBABILITY) {
+            return false;
+        }
+        log.debug("Simulating packet loss for seq: {} from {}", seq, sender);
+        PACKETS_DROPPED.inc();
+        Map<String, ChannelState> incoming = channelsByReceiver.get(receiver);
+        ChannelState channel = incoming != null ? incoming.get(sender) : null;
+        if (channel != null) {
+            channel.recordDrops(1);
+        }
+        return true;
+    }
+    
+    /**
+     * Runs one packet through its channel's window, queues everything it
+     * makes deliverable, hands that to the write-behind queue and wakes the
+     * readers. Shared by /send-message and the WebSocket transport. Returns
+     * null if commit mode could not make the delivered messages durable.
+     */
+    static ChannelState.Result acceptPacket(Message message) {
+        String sender = message.sender;
+        String receiver = message.receiver;
+        int seq = message.seq;
+        presence.touch(sender);
+        List<CompletableFuture<Void>> pendingWrites = new ArrayList<>(1);
+        
+        ChannelState.Result result;
+        do {
+            // A null result means cleanup retired the channel under us; look it up again
+            result = channelFor(sender, receiver).receive(message, accepted -> {
+                // Add to the receiver's delivery log or the group's; this assigns the offset the row is stored with
+                queueForDelivery(accepted);
+                
+                // Hand off to the write-behind queue
+                pendingWrites.add(writeBehind.enqueueMessage(accepted));
+            });
+        } while (result == null);
+        
+        // In commit mode the ack waits until the batch holding these messages is durable
+        boolean durable = writeBehind.awaitDurable(pendingWrites);
+        if (!pendingWrites.isEmpty()) {
+            wakeReaders(receiver);
+        }
+        if (!durable) {
+            return null;
+        }
+        
+        PACKET_OUTCOMES[result.outcome.ordinal()].inc();
+        if (log.isDebugEnabled()) {
+            switch (result.outcome) {
+                case ACCEPTED:
+                    log.debug("Accepted message seq: {} from {} to {}{}", seq, sender, receiver,
+                        result.delivered > 1 ? " (released " + (result.delivered - 1) + " buffered)" : "");
+                    break;
+                case BUFFERED:
+                    log.debug("Buffered out of order packet seq: {} from {}", seq, sender);
+                    break;
+                case WINDOW_FULL:
+                    log.debug("Buffer full, rejecting seq: {} from {}", seq, sender);
+                    break;
+                case DUPLICATE:
+                    log.debug("Duplicate packet seq: {} from {}", seq, sender);
+                    break;
+                case OUT_OF_ORDER:
+                    log.debug("Out of order packet seq: {} from {}", seq, sender);
+                    break;
+            }
+        }
+        return result;
+    }
+    
+    /** Writes the ack, window and sack members of a /send-message answer into the open object. */
+    static void writeSendAck(MessageCodec.JsonWriter out, ChannelState.Result result) {
+        out.name("ack").value(result.ack)
+            .name("window").value(result.window);
+        if (!result.sack.isEmpty()) {
+            out.name("sack").beginArray();
+            for (int sacked : result.sack) {
+                out.value(sacked);
+            }
+            out.endArray();
+        }
+    }
+    
+    /**
+     * Takes a whole window of packets for one channel per request. They run
+     * through the channel's window in the order given, exactly as if each had
+     * been its own /send-message, and everything they deliver is persisted in
+     * one write-behind record, so in one transaction. The answer carries the
+     * cumulative ack and free window after the batch and, when packets beyond
+     * a gap are held, sackBitmap: a hex bitmap in which bit i set means seq
+     * (ack + 1 + i) has been received.
+     */
+    static class SendBatchHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            setCorsHeaders(exchange);
+            
+            if ("OPTIONS".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(200, 0);
+                exchange.close();
+                return;
+            }
+            
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, 0);
+                exchange.close();
+                return;
+            }
+            
+            try {
+                MessageCodec.SendBatchRequest request;
+                try (InputStream body = exchange.getRequestBody()) {
+                    request = MessageCodec.readSendBatch(body, MAX_BATCH_PACKETS);
+                }
+                
+                String sender = request.sender;
+                String receiver = request.receiver;
+                if (!maySend(sender, receiver)) {
+                    exchange.sendResponseHeaders(403, 0);
+                    return;
+                }
+                presence.touch(sender);
+                
+                // Loss is simulated per packet, as if each had been sent on its own
+                List<Message> messages = new ArrayList<>(request.packets.size());
+                int dropped = 0;
+                for (MessageCodec.SendRequest packet : request.packets) {
+                    if (ThreadLocalRandom.current().nextDouble() < PACKET_LOSS_PROBABILITY) {
+                        dropped++;
+                        continue;
                     }
-                } else if (seq < clientState.expectedSeqNum) {
-                    // Duplicate or old packet
-                    response.put("ack", clientState.expectedSeqNum - 1);
-                    System.out.println("Duplicate packet seq: " + seq);
-                } else {
-                    // Future packet - out of order
-                    response.put("ack", clientState.expectedSeqNum - 1);
-                    System.out.println("Out of order packet seq: " + seq);
+                    messages.add(new Message(sender, receiver, packet.seq, packet.message, packet.type));
                 }
                 
-                clientState.lastActivity = System.currentTimeMillis();
+                List<CompletableFuture<Void>> pendingWrites = new ArrayList<>(1);
+                ChannelState channel;
+                ChannelState.Result[] results;
+                do {
+                    channel = channelFor(sender, receiver);
+                    results = channel.receiveAll(messages, delivered -> {
+                        for (Message accepted : delivered) {
+                            queueForDelivery(accepted);
+                        }
+                        pendingWrites.add(writeBehind.enqueueMessages(delivered));
+                    });
+                } while (results == null);
+                
+                if (dropped > 0) {
+                    log.debug("Simulating packet loss for {} of {} packets from {}", dropped, request.packets.size(), sender);
+                    PACKETS_DROPPED.add(dropped);
+                    channel.recordDrops(dropped);
+                }
                 
-                String responseStr = response.toString();
-                exchange.sendResponseHeaders(200, responseStr.length());
-                try (OutputStream os = exchange.getResponseBody()) {
-                    os.write(responseStr.getBytes());
+                boolean durable = writeBehind.awaitDurable(pendingWrites);
+                if (!pendingWrites.isEmpty()) {
+                    wakeReaders(receiver);
+                }
+                if (!durable) {
+                    exchange.sendResponseHeaders(503, 0);
+                    return;
                 }
                 
+                for (ChannelState.Result result : results) {
+                    PACKET_OUTCOMES[result.outcome.ordinal()].inc();
+                }
+                
+                // With no packet left after the simulated loss, report the channel as it stands
+                int ack = results.length > 0 ? results[results.length - 1].ack : channel.ack();
+                int window = results.length > 0 ? results[results.length - 1].window : channel.window();
+                List<Integer> sack = results.length > 0 ? results[results.length - 1].sack : Collections.emptyList();
+                log.debug("Batch of {} packets from {} to {}: ack {}, window {}", request.packets.size(), sender, receiver, ack, window);
+                
+                MessageCodec.JsonWriter out = MessageCodec.acquireWriter();
+                try {
+                    out.beginObject()
+                        .name("ack").value(ack)
+                        .name("window").value(window);
+                    if (!sack.isEmpty()) {
+                        long bitmap = 0;
+                        for (int sacked : sack) {
+                            bitmap |= 1L << (sacked - ack - 1);
+                        }
+                        out.name("sackBitmap").value(Long.toHexString(bitmap));
+                    }
+                    out.endObject();
+                    sendJsonResponse(exchange, out);
+                } finally {
+                    MessageCodec.release(out);
+                }
+                
+            } catch (MessageCodec.MalformedJsonException e) {
+                exchange.sendResponseHeaders(400, 0);
             } catch (Exception e) {
-                e.printStackTrace();
+                log.error("Error handling /send-batch", e);
                 exchange.sendResponseHeaders(500, 0);
             } finally {
                 exchange.close();
@@ -186,56 +486,226 @@ public class ChatServer {
                 return;
             }
             
+            boolean parked = false;
             try {
-                String query = exchange.getRequestURI().getQuery();
+                String query = exchange.getRequestURI().getRawQuery();
                 Map<String, String> params = parseQuery(query);
                 
                 String user = params.get("user");
-                int lastAck = Integer.parseInt(params.getOrDefault("lastAck", "-1"));
-                
-                Queue<Message> userMessages = messageQueues.get(user);
-                JSONArray messages = new JSONArray();
+                long lastAck = Long.parseLong(params.getOrDefault("lastAck", "-1"));
+                long waitMs = Math.min(Long.parseLong(params.getOrDefault("wait", "0")), MAX_RECEIVE_WAIT_MS);
+                acknowledge(user, lastAck, params.containsKey("groupAck")
+                    ? parseGroupAcks(params.get("groupAck")) : Collections.emptyMap());
                 
-                if (userMessages != null) {
-                    Iterator<Message> iterator = userMessages.iterator();
-                    while (iterator.hasNext()) {
-                        Message msg = iterator.next();
-                        if (msg.seq > lastAck) {
-                            JSONObject msgJson = new JSONObject();
-                            msgJson.put("sender", msg.sender);
-                            msgJson.put("seq", msg.seq);
-                            msgJson.put("message", msg.content);
-                            msgJson.put("type", msg.type);
-                            msgJson.put("timestamp", msg.timestamp);
-                            if (msg.fileName != null) {
-                                msgJson.put("fileName", msg.fileName);
-                                msgJson.put("chunkIndex", msg.chunkIndex);
-                                msgJson.put("totalChunks", msg.totalChunks);
-                            }
-                            messages.put(msgJson);
-                        }
+                if (waitMs > 0 && user != null && !hasMessagesFor(user, lastAck)) {
+                    // Long-poll: park the exchange instead of holding a pool thread
+                    PendingReceive pending = new PendingReceive(exchange, user, lastAck);
+                    pendingReceives.compute(user, (k, waiting) -> {
+                        Queue<PendingReceive> queue = waiting != null ? waiting : new ConcurrentLinkedQueue<>();
+                        queue.offer(pending);
+                        return queue;
+                    });
+                    pending.timeout = receiveTimeouts.schedule(() -> completeReceive(pending), waitMs, TimeUnit.MILLISECONDS);
+                    parked = true;
+                    
+                    // A send may have landed between the check and the registration
+                    if (hasMessagesFor(user, lastAck)) {
+                        wakeReceivers(user);
                     }
+                    return;
                 }
                 
-                ClientState clientState = clientStates.get(user);
-                int currentAck = clientState != null ? clientState.expectedSeqNum - 1 : -1;
-                
-                JSONObject response = new JSONObject();
-                response.put("messages", messages);
-                response.put("ack", currentAck);
-                
-                String responseStr = response.toString();
-                exchange.sendResponseHeaders(200, responseStr.length());
-                try (OutputStream os = exchange.getResponseBody()) {
-                    os.write(responseStr.getBytes());
-                }
+                sendReceiveResponse(exchange, user, lastAck);
                 
+            } catch (NumberFormatException e) {
+                exchange.sendResponseHeaders(400, 0);
             } catch (Exception e) {
-                e.printStackTrace();
+                log.error("Error handling /receive", e);
                 exchange.sendResponseHeaders(500, 0);
             } finally {
-                exchange.close();
+                if (!parked) {
+                    exchange.close();
+                }
+            }
+        }
+    }
+    
+    private static void sendReceiveResponse(HttpExchange exchange, String user, long lastAck) throws IOException {
+        drainChannels(user, lastAck);
+        List<Message> messages = readDeliveries(user, lastAck, lastAck, Collections.emptyMap());
+        MessageCodec.JsonWriter out = MessageCodec.acquireWriter();
+        try {
+            writeDeliveries(out.beginObject(), user, messages);
+            out.endObject();
+            sendJsonResponse(exchange, out);
+        } finally {
+            MessageCodec.release(out);
+        }
+    }
+    
+    /**
+     * Records that {@code user} is online and has received everything up to
+     * {@code lastAck} and up to the group offsets in {@code groupAcks}.
+     */
+    static void acknowledge(String user, long lastAck, Map<String, Long> groupAcks) {
+        presence.touch(user);
+        if (user != null && !groupAcks.isEmpty()) {
+            groupLog.ack(user, groupAcks);
+        }
+        drainChannels(user, lastAck);
+    }
+    
+    /**
+     * Everything up to lastAck has reached the receiver, so its senders'
+     * windows can open up again. Senders on the WebSocket transport are told
+     * straight away.
+     */
+    private static void drainChannels(String user, long lastAck) {
+        Map<String, ChannelState> incoming = user != null ? channelsByReceiver.get(user) : null;
+        if (incoming == null) {
+            return;
+        }
+        for (ChannelState channel : incoming.values()) {
+            if (channel.drain(lastAck) > 0 && webSockets != null) {
+                webSockets.windowOpened(channel);
+            }
+        }
+    }
+    
+    /**
+     * Up to a batch of messages for {@code user}: from their delivery log the
+     * ones above {@code sentThrough}, after dropping everything at or below
+     * lastAck, then from their groups the ones above both the member's cursor
+     * and the offset in {@code groupsSent}. A /receive passes lastAck as
+     * sentThrough and no group offsets; a push transport passes what it has
+     * already sent and not yet had acknowledged.
+     */
+    static List<Message> readDeliveries(String user, long lastAck, long sentThrough, Map<String, Long> groupsSent) {
+        // lastAck is the receiver's delivery offset; everything at or below it is dropped from the log
+        List<Message> messages = new ArrayList<>(deliveryLog.readAfter(user, lastAck, sentThrough, DeliveryLog.MAX_BATCH));
+        // Group messages follow, each tagged with its group and carrying the group offset
+        if (user != null) {
+            messages.addAll(groupLog.readAfter(user, groupsSent, DeliveryLog.MAX_BATCH - messages.size()));
+        }
+        return messages;
+    }
+    
+    /** Writes the messages and acks members of a /receive answer into the open object. */
+    static void writeDeliveries(MessageCodec.JsonWriter out, String user, List<Message> messages) {
+        out.name("messages").beginArray();
+        for (Message msg : messages) {
+            MessageCodec.writeMessage(out, msg);
+        }
+        out.endArray();
+        
+        // Piggy-back the user's outgoing channel acks so senders learn about progress while polling
+        out.name("acks").beginObject();
+        Map<String, ChannelState> outgoing = user != null ? channelsBySender.get(user) : null;
+        if (outgoing != null) {
+            for (ChannelState channel : outgoing.values()) {
+                out.name(channel.receiver).value(channel.ack());
+            }
+        }
+        out.endObject();
+    }
+    
+    private static boolean hasMessagesFor(String user, long lastAck) {
+        return deliveryLog.hasAfter(user, lastAck) || groupLog.hasAfter(user);
+    }
+    
+    /** Parses /receive's groupAck, a comma-separated list of group:offset pairs. */
+    static Map<String, Long> parseGroupAcks(String value) {
+        Map<String, Long> acks = new HashMap<>();
+        for (String pair : value.split(",")) {
+            int colon = pair.lastIndexOf(':');
+            if (colon > 0) {
+                acks.put(pair.substring(0, colon), Long.parseLong(pair.substring(colon + 1)));
+            }
+        }
+        return acks;
+    }
+    
+    /**
+     * Queues an accepted message for reading: in the group's shared log if it
+     * was sent to a group, otherwise in the receiver's delivery log. Either
+     * assigns the offset it is stored with. The message must be handed to the
+     * write-behind queue next, which settles it once its row has committed or
+     * failed. In commit mode readers do not see it until then.
+     */
+    private static void queueForDelivery(Message message) {
+        message.settled = false;
+        message.held = writeBehind.ackMode() == WriteBehindQueue.AckMode.COMMIT;
+        if (GroupLog.isGroup(message.receiver)) {
+            groupLog.append(message.receiver, message);
+        } else {
+            deliveryLog.append(message.receiver, message);
+        }
+    }
+    
+    /** Wakes the long-polls that can read a message just queued for {@code receiver}, a user or a group. */
+    private static void wakeReaders(String receiver) {
+        if (GroupLog.isGroup(receiver)) {
+            for (String member : groupLog.members(receiver)) {
+                wakeReceivers(member);
             }
+        } else {
+            wakeReceivers(receiver);
+        }
+    }
+    
+    /**
+     * Schedules answers to every long-poll parked for the given user and a
+     * push to their WebSocket connections. Called by the send paths right after a
+     * message has been queued for that user.
+     */
+    private static void wakeReceivers(String user) {
+        if (webSockets != null) {
+            webSockets.wake(user);
+        }
+        Queue<PendingReceive> waiting = pendingReceives.get(user);
+        if (waiting == null) {
+            return;
+        }
+        PendingReceive pending;
+        while ((pending = waiting.poll()) != null) {
+            completeReceive(pending);
+        }
+    }
+    
+    /**
+     * Claims a parked long-poll and hands its answer to the request executor,
+     * so a send that wakes many readers (every member of a group) acks
+     * without first writing their responses.
+     */
+    private static void completeReceive(PendingReceive pending) {
+        if (!pending.completed.compareAndSet(false, true)) {
+            return; // already answered by a wake-up or the timeout
+        }
+        ScheduledFuture<?> timeout = pending.timeout;
+        if (timeout != null) {
+            timeout.cancel(false);
+        }
+        Queue<PendingReceive> waiting = pendingReceives.get(pending.user);
+        if (waiting != null) {
+            waiting.remove(pending);
+        }
+        try {
+            receiveCompletions.execute(() -> answerReceive(pending));
+        } catch (RejectedExecutionException e) {
+            answerReceive(pending); // shutting down
+        }
+    }
+    
+    private static void answerReceive(PendingReceive pending) {
+        HttpExchange exchange = pending.exchange;
+        try {
+            sendReceiveResponse(exchange, pending.user, pending.lastAck);
+            Metrics.requestCompleted(exchange);
+        } catch (Exception e) {
+            // Client most likely went away while parked
+            log.debug("Failed to complete long-poll for {}: {}", pending.user, e.getMessage());
+        } finally {
+            exchange.close();
         }
     }
     
@@ -250,6 +720,12 @@ public class ChatServer {
                 return;
             }
             
+            String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+            if (contentType != null && contentType.startsWith("application/octet-stream")) {
+                handleBinaryUpload(exchange);
+                return;
+            }
+            
             try {
                 String requestBody = readRequestBody(exchange);
                 JSONObject json = new JSONObject(requestBody);
@@ -262,62 +738,265 @@ public class ChatServer {
                 int totalChunks = json.getInt("totalChunks");
                 int seq = json.getInt("seq");
                 
-                // Store file chunk
-                DatabaseManager.storeFileChunk(sender, receiver, fileName, chunkIndex, totalChunks, chunkData);
-                
-                // Create message for file chunk
-                Message message = new Message(sender, receiver, seq, "File chunk: " + fileName, "file_chunk");
-                message.fileName = fileName;
-                message.chunkIndex = chunkIndex;
-                message.totalChunks = totalChunks;
-                
-                messageQueues.computeIfAbsent(receiver, k -> new ConcurrentLinkedQueue<>()).offer(message);
+                FileStore.StoredBlob blob = fileStore.storeChunk(Base64.getDecoder().decode(chunkData), json.optString("sha256", null));
+                acceptChunk(exchange, sender, receiver, fileName, chunkIndex, totalChunks, seq, blob);
+            
+            } catch (FileStore.ChunkTooLargeException e) {
+                exchange.sendResponseHeaders(413, 0);
+            } catch (FileStore.IntegrityException e) {
+                log.warn("Rejected chunk: {}", e.getMessage());
+                exchange.sendResponseHeaders(422, 0);
+            } catch (Exception e) {
+                log.error("Error handling /upload-chunk", e);
+                exchange.sendResponseHeaders(500, 0);
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+    
+    /**
+     * Binary chunk upload: the raw chunk is the request body and the metadata
+     * travels in the query string, so the chunk is streamed to disk without
+     * base64 or JSON in between.
+     */
+    private static void handleBinaryUpload(HttpExchange exchange) throws IOException {
+        try {
+            Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+            
+            String sender = params.get("sender");
+            String receiver = params.get("receiver");
+            String fileName = params.get("fileName");
+            if (sender == null || receiver == null || fileName == null) {
+                exchange.sendResponseHeaders(400, 0);
+                return;
+            }
+            int chunkIndex = Integer.parseInt(params.get("chunkIndex"));
+            int totalChunks = Integer.parseInt(params.get("totalChunks"));
+            int seq = Integer.parseInt(params.getOrDefault("seq", String.valueOf(chunkIndex)));
+            
+            FileStore.StoredBlob blob;
+            try (InputStream body = exchange.getRequestBody()) {
+                blob = fileStore.storeChunk(body, params.get("sha256"));
+            }
+            acceptChunk(exchange, sender, receiver, fileName, chunkIndex, totalChunks, seq, blob);
+        
+        } catch (FileStore.ChunkTooLargeException e) {
+            exchange.sendResponseHeaders(413, 0);
+        } catch (FileStore.IntegrityException e) {
+            log.warn("Rejected chunk: {}", e.getMessage());
+            exchange.sendResponseHeaders(422, 0);
+        } catch (NumberFormatException e) {
+            exchange.sendResponseHeaders(400, 0);
+        } catch (Exception e) {
+            log.error("Error handling /upload-chunk", e);
+            exchange.sendResponseHeaders(500, 0);
+        } finally {
+            exchange.close();
+        }
+    }
+    
+    /**
+     * Records a stored chunk against its transfer and notifies the receiver.
+     * A retransmission of a chunk that is already recorded with the same hash
+     * is acknowledged without another write or notification.
+     */
+    private static void acceptChunk(HttpExchange exchange, String sender, String receiver, String fileName,
+                                    int chunkIndex, int totalChunks, int seq, FileStore.StoredBlob blob) throws IOException {
+        if (GroupLog.isGroup(receiver)) {
+            exchange.sendResponseHeaders(400, 0); // file transfers are one to one
+            return;
+        }
+        presence.touch(sender);
+        
+        JSONObject response = new JSONObject();
+        response.put("ack", seq);
+        response.put("sha256", blob.sha256);
+        response.put("bytes", blob.size);
+        
+        if (blob.sha256.equals(DatabaseManager.getChunkHash(fileName, receiver, chunkIndex))) {
+            response.put("status", "duplicate");
+            sendJsonResponse(exchange, response.toString());
+            return;
+        }
+        
+        Message message = new FileChunk(sender, receiver, seq, fileName, chunkIndex, totalChunks);
+        
+        // The receiver is only told once the reference is committed, so a
+        // download triggered by the notification always finds the chunk
+        CompletableFuture<Void> stored = writeBehind.enqueueChunk(
+            new WriteBehindQueue.ChunkRecord(sender, receiver, fileName, chunkIndex, totalChunks, blob.sha256, blob.size,
+                blob.codec, blob.crc32));
+        stored.thenRun(() -> {
+            deliveryLog.append(receiver, message);
+            wakeReceivers(receiver);
+        });
+        
+        if (!writeBehind.awaitDurable(Collections.singletonList(stored))) {
+            exchange.sendResponseHeaders(503, 0);
+            return;
+        }
+        
+        response.put("status", "chunk_received");
+        response.put("deduplicated", blob.deduplicated);
+        sendJsonResponse(exchange, response.toString());
+    }
+    
+    /**
+     * Lists the chunks already stored for a transfer so an interrupted upload
+     * can resume with only the missing ones.
+     */
+    static class FileChunksHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            setCorsHeaders(exchange);
+            
+            try {
+                Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+                String fileName = params.get("fileName");
+                String receiver = params.get("receiver");
+                if (fileName == null || receiver == null) {
+                    exchange.sendResponseHeaders(400, 0);
+                    return;
+                }
                 
-                JSONObject response = new JSONObject();
-                response.put("ack", seq);
-                response.put("status", "chunk_received");
+                List<DatabaseManager.ChunkRef> refs = DatabaseManager.getChunkRefs(fileName, receiver);
+                int totalChunks = refs.isEmpty() ? 0 : refs.get(0).totalChunks;
                 
-                String responseStr = response.toString();
-                exchange.sendResponseHeaders(200, responseStr.length());
-                try (OutputStream os = exchange.getResponseBody()) {
-                    os.write(responseStr.getBytes());
+                JSONArray chunks = new JSONArray();
+                BitSet present = new BitSet();
+                for (DatabaseManager.ChunkRef ref : refs) {
+                    JSONObject chunk = new JSONObject();
+                    chunk.put("index", ref.chunkIndex);
+                    chunk.put("sha256", ref.sha256);
+                    chunk.put("size", ref.size);
+                    chunks.put(chunk);
+                    present.set(ref.chunkIndex);
+                }
+                JSONArray missing = new JSONArray();
+                for (int i = present.nextClearBit(0); i < totalChunks; i = present.nextClearBit(i + 1)) {
+                    missing.put(i);
                 }
                 
+                JSONObject response = new JSONObject();
+                response.put("fileName", fileName);
+                response.put("totalChunks", totalChunks);
+                response.put("chunks", chunks);
+                response.put("missing", missing);
+                sendJsonResponse(exchange, response.toString());
+            
             } catch (Exception e) {
-                e.printStackTrace();
+                log.error("Error handling /file-chunks", e);
                 exchange.sendResponseHeaders(500, 0);
             } finally {
                 exchange.close();
             }
         }
     }
-    
+
+    /**
+     * Streams a file back to its receiver. With format=binary the raw bytes are
+     * sent, otherwise the legacy {"fileName", "chunks": [base64...]} JSON. Both
+     * are written chunk by chunk, so heap use does not grow with file size.
+     */
     static class FileDownloadHandler implements HttpHandler {
         @Override
         public void handle(HttpExchange exchange) throws IOException {
             setCorsHeaders(exchange);
             
             try {
-                String query = exchange.getRequestURI().getQuery();
+                String query = exchange.getRequestURI().getRawQuery();
                 Map<String, String> params = parseQuery(query);
                 
                 String fileName = params.get("fileName");
                 String receiver = params.get("receiver");
+                if (fileName == null || receiver == null) {
+                    exchange.sendResponseHeaders(400, 0);
+                    return;
+                }
+                boolean binary = "binary".equals(params.get("format"));
                 
-                List<String> chunks = DatabaseManager.getFileChunks(fileName, receiver);
+                List<DatabaseManager.ChunkRef> refs = DatabaseManager.getChunkRefs(fileName, receiver);
+                List<Path> chunkFiles = new ArrayList<>();
+                int deflated = 0;
+                long originalSize = 0;
+                for (DatabaseManager.ChunkRef ref : refs) {
+                    chunkFiles.add(fileStore.blobPath(ref.sha256, ref.codec));
+                    originalSize += ref.size;
+                    if (Compression.DEFLATE.equals(ref.codec)) {
+                        deflated++;
+                    }
+                }
                 
-                JSONObject response = new JSONObject();
-                response.put("fileName", fileName);
-                response.put("chunks", new JSONArray(chunks));
+                if (binary) {
+                    exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+                    if (!refs.isEmpty() && deflated == refs.size() && Compression.GZIP.equals(Compression.negotiate(exchange))) {
+                        sendStoredGzip(exchange, refs, chunkFiles);
+                    } else if (!refs.isEmpty() && deflated == 0) {
+                        // Sizes are known up front, so send a fixed length and let transferTo do the copying
+                        exchange.sendResponseHeaders(200, FileStore.totalSize(chunkFiles));
+                        try (OutputStream os = exchange.getResponseBody()) {
+                            FileStore.transferTo(chunkFiles, os);
+                        }
+                    } else if (!refs.isEmpty()) {
+                        exchange.sendResponseHeaders(200, originalSize);
+                        try (OutputStream os = exchange.getResponseBody()) {
+                            for (int i = 0; i < refs.size(); i++) {
+                                FileStore.copyDecoded(chunkFiles.get(i), refs.get(i).codec, os);
+                            }
+                        }
+                    } else {
+                        // Uploaded through the JSON path: decode the stored base64 page by page
+                        exchange.sendResponseHeaders(200, 0); // chunked
+                        try (OutputStream os = exchange.getResponseBody()) {
+                            streamStoredChunks(fileName, receiver, chunk -> os.write(Base64.getDecoder().decode(chunk)));
+                        }
+                    }
+                    return;
+                }
                 
-                String responseStr = response.toString();
-                exchange.sendResponseHeaders(200, responseStr.length());
-                try (OutputStream os = exchange.getResponseBody()) {
-                    os.write(responseStr.getBytes());
+                String encoding = Compression.negotiate(exchange);
+                if (encoding != null) {
+                    exchange.getResponseHeaders().set("Content-Encoding", encoding);
+                }
+                exchange.sendResponseHeaders(200, 0); // chunked
+                OutputStream body = encoding != null
+                    ? Compression.encode(exchange.getResponseBody(), encoding) : exchange.getResponseBody();
+                try (OutputStream os = new BufferedOutputStream(body)) {
+                    os.write(("{\"fileName\":" + JSONObject.quote(fileName) + ",\"chunks\":[").getBytes(StandardCharsets.UTF_8));
+                    boolean[] first = {true};
+                    if (!chunkFiles.isEmpty()) {
+                        for (int i = 0; i < chunkFiles.size(); i++) {
+                            if (!first[0]) {
+                                os.write(',');
+                            }
+                            first[0] = false;
+                            os.write('"');
+                            // Base64 output never needs JSON escaping; keep the encoder from closing os
+                            try (OutputStream encoder = Base64.getEncoder().wrap(new FilterOutputStream(os) {
+                                    @Override
+                                    public void close() throws IOException {
+                                        flush();
+                                    }
+                                })) {
+                                FileStore.copyDecoded(chunkFiles.get(i), refs.get(i).codec, encoder);
+                            }
+                            os.write('"');
+                        }
+                    } else {
+                        streamStoredChunks(fileName, receiver, chunk -> {
+                            if (!first[0]) {
+                                os.write(',');
+                            }
+                            first[0] = false;
+                            os.write(JSONObject.quote(chunk).getBytes(StandardCharsets.UTF_8));
+                        });
+                    }
+                    os.write("]}".getBytes(StandardCharsets.UTF_8));
                 }
                 
             } catch (Exception e) {
-                e.printStackTrace();
+                log.error("Error handling /download-file", e);
                 exchange.sendResponseHeaders(500, 0);
             } finally {
                 exchange.close();
@@ -325,23 +1004,196 @@ public class ChatServer {
         }
     }
     
+    /**
+     * Sends chunks that are all stored deflated as one gzip body without
+     * inflating them: the stored segments back to back between a gzip header
+     * and a trailer whose CRC is combined from the per-chunk CRCs.
+     */
+    private static void sendStoredGzip(HttpExchange exchange, List<DatabaseManager.ChunkRef> refs, List<Path> chunkFiles)
+            throws IOException {
+        long crc = 0;
+        long size = 0;
+        for (DatabaseManager.ChunkRef ref : refs) {
+            crc = Compression.crc32Combine(crc, ref.crc32, ref.size);
+            size += ref.size;
+        }
+        byte[] header = Compression.gzipHeader();
+        byte[] trailer = Compression.gzipTrailer(crc, size);
+        exchange.getResponseHeaders().set("Content-Encoding", Compression.GZIP);
+        exchange.getResponseHeaders().set("Vary", "Accept-Encoding");
+        exchange.sendResponseHeaders(200, header.length + FileStore.totalSize(chunkFiles) + Compression.FINAL_BLOCK.length + trailer.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(header);
+            FileStore.transferTo(chunkFiles, os);
+            os.write(Compression.FINAL_BLOCK);
+            os.write(trailer);
+        }
+    }
+    
+    interface ChunkSink {
+        void accept(String chunkData) throws IOException;
+    }
+    
+    /** Feeds the base64 chunks stored in file_chunks to {@code sink} in order, one small page at a time. */
+    private static void streamStoredChunks(String fileName, String receiver, ChunkSink sink) throws IOException {
+        int afterIndex = -1;
+        while (true) {
+            List<DatabaseManager.StoredChunk> page = DatabaseManager.getFileChunkPage(fileName, receiver, afterIndex, DOWNLOAD_PAGE_SIZE);
+            for (DatabaseManager.StoredChunk chunk : page) {
+                sink.accept(chunk.chunkData);
+                afterIndex = chunk.chunkIndex;
+            }
+            if (page.size() < DOWNLOAD_PAGE_SIZE) {
+                return;
+            }
+        }
+    }
+    
     static class UsersHandler implements HttpHandler {
         @Override
         public void handle(HttpExchange exchange) throws IOException {
             setCorsHeaders(exchange);
             
             try {
-                List<String> users = DatabaseManager.getActiveUsers();
-                JSONArray response = new JSONArray(users);
+                // Served from the presence snapshot; no database round-trip
+                byte[] response = presence.activeUsersJson();
+                try (OutputStream os = openResponse(exchange, response.length)) {
+                    os.write(response);
+                }
+                
+            } catch (Exception e) {
+                log.error("Error handling /users", e);
+                exchange.sendResponseHeaders(500, 0);
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+    
+    /**
+     * /join-group and /leave-group: POST {"group": "#name", "user": "..."}.
+     * Joining creates the group if needed and answers with the member's read
+     * cursor, the group offset they have seen everything up to. Groups are
+     * not available in cluster mode, where both answer 501.
+     */
+    static class GroupMembershipHandler implements HttpHandler {
+        private final boolean join;
+        
+        GroupMembershipHandler(boolean join) {
+            this.join = join;
+        }
+        
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            setCorsHeaders(exchange);
+            
+            if ("OPTIONS".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(200, 0);
+                exchange.close();
+                return;
+            }
+            
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, 0);
+                exchange.close();
+                return;
+            }
+            
+            if (Cluster.enabled()) {
+                exchange.sendResponseHeaders(501, 0);
+                exchange.close();
+                return;
+            }
+            
+            try {
+                JSONObject json = new JSONObject(readRequestBody(exchange));
+                String group = json.getString("group");
+                String user = json.getString("user");
+                if (!GroupLog.isGroup(group) || group.length() == GroupLog.PREFIX.length() || user.isEmpty()) {
+                    exchange.sendResponseHeaders(400, 0);
+                    return;
+                }
+                
+                JSONObject response = new JSONObject().put("group", group);
+                if (join) {
+                    response.put("offset", groupLog.join(group, user));
+                } else if (!groupLog.leave(group, user)) {
+                    exchange.sendResponseHeaders(404, 0);
+                    return;
+                }
+                response.put("members", groupLog.members(group).size());
+                log.debug("{} {} {}", user, join ? "joined" : "left", group);
+                sendJsonResponse(exchange, response.toString());
+                
+            } catch (JSONException e) {
+                exchange.sendResponseHeaders(400, 0);
+            } catch (Exception e) {
+                log.error("Error handling group membership", e);
+                exchange.sendResponseHeaders(500, 0);
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+    
+    /**
+     * Conversation history between two users from the messages table, newest
+     * first. Pages are addressed by a (timestamp, id) cursor: pass the
+     * nextCursor of one response as cursor= to get the page before it.
+     */
+    static class HistoryHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            setCorsHeaders(exchange);
+            
+            try {
+                Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+                String user = params.get("user");
+                String peer = params.get("peer");
+                if (user == null || peer == null) {
+                    exchange.sendResponseHeaders(400, 0);
+                    return;
+                }
+                int limit = Math.max(1, Math.min(MAX_HISTORY_PAGE, Integer.parseInt(params.getOrDefault("limit", "50"))));
+                long beforeTimestamp = Long.MAX_VALUE;
+                long beforeId = Long.MAX_VALUE;
+                String cursor = params.get("cursor");
+                if (cursor != null) {
+                    int dot = cursor.indexOf('.');
+                    if (dot < 0) {
+                        exchange.sendResponseHeaders(400, 0);
+                        return;
+                    }
+                    beforeTimestamp = Long.parseLong(cursor.substring(0, dot));
+                    beforeId = Long.parseLong(cursor.substring(dot + 1));
+                }
                 
-                String responseStr = response.toString();
-                exchange.sendResponseHeaders(200, responseStr.length());
-                try (OutputStream os = exchange.getResponseBody()) {
-                    os.write(responseStr.getBytes());
+                List<DatabaseManager.HistoryEntry> page = DatabaseManager.getConversationPage(user, peer, beforeTimestamp, beforeId, limit);
+                JSONArray messages = new JSONArray();
+                for (DatabaseManager.HistoryEntry entry : page) {
+                    JSONObject msgObj = new JSONObject();
+                    msgObj.put("id", entry.id);
+                    msgObj.put("sender", entry.message.sender);
+                    msgObj.put("receiver", entry.message.receiver);
+                    msgObj.put("seq", entry.message.seq);
+                    msgObj.put("message", entry.message.content);
+                    msgObj.put("type", entry.message.type);
+                    msgObj.put("timestamp", entry.message.timestamp);
+                    messages.put(msgObj);
+                }
+                
+                JSONObject response = new JSONObject();
+                response.put("messages", messages);
+                if (page.size() == limit) {
+                    DatabaseManager.HistoryEntry last = page.get(page.size() - 1);
+                    response.put("nextCursor", last.message.timestamp + "." + last.id);
                 }
+                sendJsonResponse(exchange, response.toString());
                 
+            } catch (NumberFormatException e) {
+                exchange.sendResponseHeaders(400, 0);
             } catch (Exception e) {
-                e.printStackTrace();
+                log.error("Error handling /history", e);
                 exchange.sendResponseHeaders(500, 0);
             } finally {
                 exchange.close();
@@ -349,6 +1201,29 @@ public class ChatServer {
         }
     }
     
+    /** Prometheus scrape endpoint; see Metrics for the format. */
+    static class MetricsHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                if (!"GET".equals(exchange.getRequestMethod())) {
+                    exchange.sendResponseHeaders(405, -1);
+                    return;
+                }
+                byte[] body = Metrics.scrape().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                try (OutputStream os = openResponse(exchange, body.length)) {
+                    os.write(body);
+                }
+            } catch (Exception e) {
+                log.error("Error handling /metrics", e);
+                exchange.sendResponseHeaders(500, -1);
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+    
     private static void setCorsHeaders(HttpExchange exchange) {
         exchange.getResponseHeaders().add("Access-Control-Allow-Origin", "*");
         exchange.getResponseHeaders().add("Access-Control-Allow-Methods", "GET, POST, OPTIONS");
@@ -356,37 +1231,218 @@ public class ChatServer {
         exchange.getResponseHeaders().add("Content-Type", "application/json");
     }
     
-    private static String readRequestBody(HttpExchange exchange) throws IOException {
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(exchange.getRequestBody()))) {
-            StringBuilder body = new StringBuilder();
-            String line;
-            while ((line = reader.readLine()) != null) {
-                body.append(line);
-            }
-            return body.toString();
+    private static ChannelState channelFor(String sender, String receiver) {
+        Map<String, ChannelState> incoming = channelsByReceiver.get(receiver);
+        ChannelState existing = incoming != null ? incoming.get(sender) : null;
+        if (existing != null) {
+            return existing;
+        }
+        // Inside compute, so the cleanup task cannot drop an empty map while a channel is added to it
+        ChannelState[] channel = new ChannelState[1];
+        channelsByReceiver.compute(receiver, (k, byReceiver) -> {
+            Map<String, ChannelState> map = byReceiver != null ? byReceiver : new ConcurrentHashMap<>();
+            channel[0] = map.computeIfAbsent(sender, s -> new ChannelState(sender, receiver, RECEIVE_WINDOW_SIZE,
+                SELECTIVE_REPEAT, !GroupLog.isGroup(receiver)));
+            return map;
+        });
+        channelsBySender.compute(sender, (k, bySender) -> {
+            Map<String, ChannelState> map = bySender != null ? bySender : new ConcurrentHashMap<>();
+            map.put(receiver, channel[0]);
+            return map;
+        });
+        return channel[0];
+    }
+    
+    private static void sendJsonResponse(HttpExchange exchange, String responseStr) throws IOException {
+        byte[] bytes = responseStr.getBytes(StandardCharsets.UTF_8);
+        try (OutputStream os = openResponse(exchange, bytes.length)) {
+            os.write(bytes);
+        }
+    }
+    
+    private static void sendJsonResponse(HttpExchange exchange, MessageCodec.JsonWriter out) throws IOException {
+        try (OutputStream os = openResponse(exchange, out.size())) {
+            out.writeTo(os);
         }
     }
     
-    private static Map<String, String> parseQuery(String query) {
+    /**
+     * Sends the 200 headers for a body of {@code length} bytes and returns the
+     * stream to write it to, gzip or deflate encoded if the body reaches
+     * chat.compression.minBytes and the client accepts one of them.
+     */
+    private static OutputStream openResponse(HttpExchange exchange, long length) throws IOException {
+        String encoding = length >= Compression.MIN_RESPONSE_BYTES ? Compression.negotiate(exchange) : null;
+        if (Compression.ENABLED) {
+            exchange.getResponseHeaders().set("Vary", "Accept-Encoding");
+        }
+        if (encoding == null) {
+            exchange.sendResponseHeaders(200, length);
+            return exchange.getResponseBody();
+        }
+        exchange.getResponseHeaders().set("Content-Encoding", encoding);
+        exchange.sendResponseHeaders(200, 0); // chunked: the encoded length is not known up front
+        return Compression.encode(exchange.getResponseBody(), encoding);
+    }
+    
+    static String readRequestBody(HttpExchange exchange) throws IOException {
+        try (InputStream body = exchange.getRequestBody()) {
+            return new String(body.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+    
+    static Map<String, String> parseQuery(String query) {
         Map<String, String> params = new HashMap<>();
         if (query != null) {
             String[] pairs = query.split("&");
             for (String pair : pairs) {
-                String[] keyValue = pair.split("=");
+                String[] keyValue = pair.split("=", 2);
                 if (keyValue.length == 2) {
-                    params.put(keyValue[0], keyValue[1]);
+                    params.put(URLDecoder.decode(keyValue[0], StandardCharsets.UTF_8),
+                        URLDecoder.decode(keyValue[1], StandardCharsets.UTF_8));
                 }
             }
         }
         return params;
     }
     
+    /**
+     * Rebuilds in-memory state after a restart: the next expected seq of every
+     * channel that would not yet have been retired, and each receiver's
+     * delivery cursor. Undelivered messages stay in the database until their
+     * receiver reads, so neither read grows with the size of the history.
+     */
+    private static void recoverState() {
+        long start = System.currentTimeMillis();
+        List<DatabaseManager.ChannelCheckpoint> channels = DatabaseManager.loadChannelState(start - CHANNEL_IDLE_MS);
+        for (DatabaseManager.ChannelCheckpoint checkpoint : channels) {
+            channelFor(checkpoint.sender, checkpoint.receiver).restore(checkpoint.nextSeq, checkpoint.lastActivity);
+        }
+        int receivers = deliveryLog.recover();
+        groupLog.recover();
+        log.info("Recovered {} channels and the delivery cursors of {} receivers in {} ms",
+            channels.size(), receivers, System.currentTimeMillis() - start);
+    }
+    
+    /** Persists acked delivery offsets and folds newly committed messages into the channel checkpoint. */
+    private static void checkpoint() {
+        try {
+            deliveryLog.checkpoint();
+            groupLog.checkpoint();
+            DatabaseManager.checkpointChannels(System.currentTimeMillis() - CHANNEL_IDLE_MS);
+        } catch (Exception e) {
+            log.error("Checkpoint failed", e);
+        }
+    }
+    
+    /**
+     * Gauges over the server's live state, read on each /metrics scrape. The
+     * per-channel series can be switched off with chat.metrics.perChannel on
+     * servers with very many active channels.
+     */
+    private static void registerMetrics() {
+        Metrics.gauge("chat_channels", "Active sender-to-receiver channels.",
+            () -> channelsByReceiver.values().stream().mapToInt(Map::size).sum());
+        Metrics.gauge("chat_window_buffered_messages", "Delivered packets held in receive windows until acknowledged.",
+            () -> sumChannels(channel -> channel.windowSize() - channel.window()));
+        Metrics.gauge("chat_windows_full", "Channels with no free window slots.",
+            () -> sumChannels(channel -> channel.window() <= 0 ? 1 : 0));
+        if (PER_CHANNEL_METRICS) {
+            Metrics.collect("chat_channel_window_used", "Occupied receive window slots per channel.", "gauge",
+                samples -> forEachChannel(channel ->
+                    samples.add(channel.windowSize() - channel.window(), channel.sender, channel.receiver)),
+                "sender", "receiver");
+            Metrics.collect("chat_channel_packets_total", "Packets per channel by outcome.", "counter",
+                samples -> forEachChannel(channel -> {
+                    for (ChannelState.Outcome outcome : ChannelState.OUTCOMES) {
+                        samples.add(channel.count(outcome), channel.sender, channel.receiver,
+                            outcome.name().toLowerCase(Locale.ROOT));
+                    }
+                    samples.add(channel.dropped(), channel.sender, channel.receiver, "dropped");
+                }),
+                "sender", "receiver", "outcome");
+        }
+        Metrics.gauge("chat_delivery_backlog_messages", "Messages waiting in receivers' delivery logs.",
+            deliveryLog::totalBacklogDepth);
+        Metrics.collect("chat_delivery_spilled_total", "Delivery log entries spilled to the database.", "counter",
+            samples -> samples.add(deliveryLog.evictions()));
+        Metrics.gauge("chat_groups", "Group channels.", groupLog::groupCount);
+        Metrics.gauge("chat_group_memberships", "Group members summed over all groups.", groupLog::membershipCount);
+        Metrics.gauge("chat_long_polls_parked", "Parked /receive requests.",
+            () -> pendingReceives.values().stream().mapToInt(Queue::size).sum());
+        Metrics.gauge("chat_users_online", "Users seen within the presence timeout.", presence::activeCount);
+        Metrics.gauge("chat_write_behind_queue_depth", "Records waiting for the write-behind writer.",
+            writeBehind::queueDepth);
+        Metrics.collect("chat_write_behind_records_total", "Records committed by the write-behind writer.", "counter",
+            samples -> samples.add(writeBehind.recordsWritten()));
+        Metrics.collect("chat_write_behind_batches_total", "Write-behind transactions committed.", "counter",
+            samples -> samples.add(writeBehind.batches()));
+        Metrics.collect("chat_write_behind_failed_records_total", "Records in write-behind batches that failed.", "counter",
+            samples -> samples.add(writeBehind.failedRecords()));
+    }
+    
+    private static void forEachChannel(Consumer<ChannelState> action) {
+        for (Map<String, ChannelState> incoming : channelsByReceiver.values()) {
+            incoming.values().forEach(action);
+        }
+    }
+    
+    private static long sumChannels(ToIntFunction<ChannelState> value) {
+        long sum = 0;
+        for (Map<String, ChannelState> incoming : channelsByReceiver.values()) {
+            for (ChannelState channel : incoming.values()) {
+                sum += value.applyAsInt(channel);
+            }
+        }
+        return sum;
+    }
+    
     private static void startCleanupTask() {
         ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
+        
+        if (CHECKPOINT_INTERVAL_MS > 0) {
+            scheduler.scheduleAtFixedRate(ChatServer::checkpoint, CHECKPOINT_INTERVAL_MS, CHECKPOINT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+        
+        // Presence: expire idle users often enough that /users stays accurate, flush timestamps lazily
+        long sweepMs = ServerConfig.getLong("chat.presence.sweepIntervalMs", 10000);
+        long flushMs = ServerConfig.getLong("chat.presence.flushIntervalMs", 30000);
+        scheduler.scheduleAtFixedRate(presence::expireIdle, sweepMs, sweepMs, TimeUnit.MILLISECONDS);
+        scheduler.scheduleAtFixedRate(presence::flush, flushMs, flushMs, TimeUnit.MILLISECONDS);
+        
         scheduler.scheduleAtFixedRate(() -> {
             long currentTime = System.currentTimeMillis();
-            clientStates.entrySet().removeIf(entry -> 
-                currentTime - entry.getValue().lastActivity > 300000); // 5 minutes timeout
+            for (Map<String, ChannelState> incoming : channelsByReceiver.values()) {
+                incoming.values().removeIf(channel -> {
+                    if (!channel.retireIfIdle(currentTime - CHANNEL_IDLE_MS)) {
+                        return false;
+                    }
+                    Map<String, ChannelState> outgoing = channelsBySender.get(channel.sender);
+                    if (outgoing != null) {
+                        outgoing.remove(channel.receiver, channel);
+                    }
+                    return true;
+                });
+            }
+            for (String user : channelsByReceiver.keySet()) {
+                channelsByReceiver.computeIfPresent(user, (k, incoming) -> incoming.isEmpty() ? null : incoming);
+            }
+            for (String user : channelsBySender.keySet()) {
+                channelsBySender.computeIfPresent(user, (k, outgoing) -> outgoing.isEmpty() ? null : outgoing);
+            }
+            for (String user : pendingReceives.keySet()) {
+                pendingReceives.computeIfPresent(user, (k, waiting) -> waiting.isEmpty() ? null : waiting);
+            }
+            // Idle users keep only their offsets in memory; their backlog is paged back in on the next /receive
+            int offloaded = deliveryLog.offloadIdle(currentTime - DeliveryLog.IDLE_MS);
+            int groupsOffloaded = groupLog.offloadIdle(currentTime - DeliveryLog.IDLE_MS);
+            log.info("Delivery backlog: {} messages, {} spilled to database; offloaded {} idle users and {} idle groups",
+                deliveryLog.totalBacklogDepth(), deliveryLog.evictions(), offloaded, groupsOffloaded);
+            if (log.isInfoEnabled()) {
+                log.info(String.format("Write-behind: depth %d, %d records in %d batches, last batch %d (%.2f ms), avg commit %.2f ms",
+                    writeBehind.queueDepth(), writeBehind.recordsWritten(), writeBehind.batches(),
+                    writeBehind.lastBatchSize(), writeBehind.lastCommitMillis(), writeBehind.averageCommitMillis()));
+            }
         }, 60, 60, TimeUnit.SECONDS);
     }
 }
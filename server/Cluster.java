@@ -0,0 +1,398 @@
+import com.sun.net.httpserver.*;
+import java.io.*;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import org.json.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Static-membership cluster mode.
+ *
+ * Every node is started with the same chat.cluster.peers list (base URLs)
+ * and its own chat.cluster.self. Users are placed on a consistent-hash ring
+ * of the peers, chat.cluster.vnodes points per peer, and the node a user
+ * hashes to owns everything addressed to that user: the channels into them,
+ * their delivery log, the rows stored for them and their file chunks. Each
+ * node keeps its own database.
+ *
+ * Clients may talk to any node. The {@link Router} filter looks at the
+ * receiver of each request and, if another node owns it, forwards the
+ * request there unchanged and relays the answer, without holding a request
+ * thread while the owner works (or parks a long-poll). /history and /users
+ * span owners and are assembled from the nodes involved. Only channel acks
+ * piggy-backed on /receive stay node-local: they cover the channels the
+ * polling user's own node owns, and senders rely on the /send-message ack
+ * for the rest.
+ *
+ * Group channels are single-node: their members would be spread over
+ * several owners, each holding a group of its own. In cluster mode
+ * /join-group and /leave-group answer 501 and sends to a group 403.
+ *
+ * Changing the peer list moves ownership of some users; their undelivered
+ * messages stay on the old node, so the list is meant to be fixed for the
+ * life of a deployment.
+ */
+public class Cluster {
+    private static final Logger log = LoggerFactory.getLogger(Cluster.class);
+
+    static final String FORWARDED_HEADER = "X-Chat-Forwarded";
+
+    private static final List<String> PEERS = parsePeers(ServerConfig.getString("chat.cluster.peers", ""));
+    private static final String SELF = normalize(ServerConfig.getString("chat.cluster.self", ""));
+    private static final int VNODES = ServerConfig.getInt("chat.cluster.vnodes", 128);
+    private static final long FORWARD_TIMEOUT_MS = ServerConfig.getLong("chat.cluster.forwardTimeoutMs", 10000);
+    private static final long MAX_RECEIVE_WAIT_MS = ServerConfig.getLong("chat.maxReceiveWaitMs", 30000);
+
+    private static final NavigableMap<Long, String> ring = buildRing();
+    private static final Metrics.Family<Metrics.Counter> FORWARDED = Metrics.counter("chat_cluster_forwarded_total",
+        "Requests forwarded to the owning node, by peer and endpoint.", "peer", "endpoint");
+    private static final Metrics.Family<Metrics.Counter> FORWARD_ERRORS = Metrics.counter("chat_cluster_forward_errors_total",
+        "Forwarded requests that failed to reach their peer.", "peer");
+
+    private static final HttpClient http = HttpClient.newBuilder()
+        .version(HttpClient.Version.HTTP_1_1) // HttpServer does not speak h2c
+        .connectTimeout(Duration.ofSeconds(5))
+        .build();
+
+    // Hop-by-hop and length headers are set by HttpServer itself when the response is relayed
+    private static final Set<String> UNRELAYED_HEADERS = new HashSet<>(Arrays.asList(
+        "connection", "content-length", "date", "keep-alive", "transfer-encoding"));
+
+    private Cluster() {
+    }
+
+    private static List<String> parsePeers(String value) {
+        List<String> peers = new ArrayList<>();
+        for (String peer : value.split(",")) {
+            if (!peer.isBlank()) {
+                peers.add(normalize(peer));
+            }
+        }
+        return Collections.unmodifiableList(peers);
+    }
+
+    private static String normalize(String url) {
+        String trimmed = url.trim();
+        while (trimmed.endsWith("/")) {
+            trimmed = trimmed.substring(0, trimmed.length() - 1);
+        }
+        return trimmed;
+    }
+
+    private static NavigableMap<Long, String> buildRing() {
+        NavigableMap<Long, String> points = new TreeMap<>();
+        for (String peer : PEERS) {
+            for (int i = 0; i < VNODES; i++) {
+                points.put(hash(peer + "#" + i), peer);
+            }
+        }
+        return points;
+    }
+
+    /** 64-bit FNV-1a over the UTF-16 chars, finished with the splitmix64 mixer so nearby names spread. */
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h = (h ^ (h >>> 30)) * 0xbf58476d1ce4e5b9L;
+        h = (h ^ (h >>> 27)) * 0x94d049bb133111ebL;
+        return h ^ (h >>> 31);
+    }
+
+    /** Whether chat.cluster.peers names more than one node. */
+    static boolean enabled() {
+        return PEERS.size() > 1;
+    }
+
+    /** Fails startup on a peer list this node is not part of, which would route its own users away forever. */
+    static void validate() {
+        if (enabled() && !PEERS.contains(SELF)) {
+            throw new IllegalStateException("chat.cluster.self (" + SELF + ") must be one of chat.cluster.peers " + PEERS);
+        }
+    }
+
+    static String describe() {
+        return enabled() ? "node " + SELF + " of " + PEERS.size() : "single node";
+    }
+
+    /** The base URL of the node that owns {@code user}. */
+    static String ownerOf(String user) {
+        Map.Entry<Long, String> point = ring.ceilingEntry(hash(user));
+        return (point != null ? point : ring.firstEntry()).getValue();
+    }
+
+    static boolean isLocal(String user) {
+        return !enabled() || user == null || ownerOf(user).equals(SELF);
+    }
+
+    /**
+     * Sends each request to the node that owns its receiver. Requests that
+     * arrive already forwarded are always handled here, so nodes with
+     * disagreeing peer lists cannot bounce a request between them.
+     */
+    static class Router extends Filter {
+        @Override
+        public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+            if (!enabled() || exchange.getRequestHeaders().containsKey(FORWARDED_HEADER) ||
+                "OPTIONS".equals(exchange.getRequestMethod())) {
+                chain.doFilter(exchange);
+                return;
+            }
+            String path = exchange.getHttpContext().getPath();
+            Map<String, String> params = ChatServer.parseQuery(exchange.getRequestURI().getRawQuery());
+            switch (path) {
+                case "/send-message": {
+                    byte[] body = readBody(exchange);
+                    String receiver;
+                    try {
+                        receiver = MessageCodec.readSendRequest(new ByteArrayInputStream(body)).receiver;
+                    } catch (MessageCodec.MalformedJsonException e) {
+                        receiver = null; // the local handler answers 400
+                    }
+                    route(exchange, chain, receiver, body);
+                    break;
+                }
+                case "/send-batch": {
+                    byte[] body = readBody(exchange);
+                    String receiver;
+                    try {
+                        receiver = MessageCodec.readSendBatch(new ByteArrayInputStream(body), Integer.MAX_VALUE).receiver;
+                    } catch (MessageCodec.MalformedJsonException e) {
+                        receiver = null;
+                    }
+                    route(exchange, chain, receiver, body);
+                    break;
+                }
+                case "/upload-chunk": {
+                    String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+                    if (contentType != null && contentType.startsWith("application/octet-stream")) {
+                        route(exchange, chain, params.get("receiver"), null); // body is streamed through
+                    } else {
+                        byte[] body = readBody(exchange);
+                        String receiver;
+                        try {
+                            receiver = new JSONObject(new String(body, StandardCharsets.UTF_8)).optString("receiver", null);
+                        } catch (JSONException e) {
+                            receiver = null;
+                        }
+                        route(exchange, chain, receiver, body);
+                    }
+                    break;
+                }
+                case "/receive":
+                    route(exchange, chain, params.get("user"), null);
+                    break;
+                case "/download-file":
+                case "/file-chunks":
+                    route(exchange, chain, params.get("receiver"), null);
+                    break;
+                case "/history":
+                    history(exchange, chain, params);
+                    break;
+                case "/users":
+                    users(exchange);
+                    break;
+                default:
+                    chain.doFilter(exchange);
+            }
+        }
+
+        @Override
+        public String description() {
+            return "Consistent-hash routing of receivers to their owning node";
+        }
+    }
+
+    private static byte[] readBody(HttpExchange exchange) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            return in.readAllBytes();
+        }
+    }
+
+    /**
+     * Handles the request here if this node owns {@code user}, otherwise
+     * forwards it. {@code body} is the already consumed request body, or null
+     * if the body has not been read.
+     */
+    private static void route(HttpExchange exchange, Filter.Chain chain, String user, byte[] body) throws IOException {
+        if (isLocal(user)) {
+            if (body != null) {
+                exchange.setStreams(new ByteArrayInputStream(body), null);
+            }
+            chain.doFilter(exchange);
+            return;
+        }
+        forward(exchange, ownerOf(user), body);
+    }
+
+    private static void forward(HttpExchange exchange, String peer, byte[] body) {
+        String path = exchange.getHttpContext().getPath();
+        FORWARDED.labels(peer, path).inc();
+        HttpRequest.BodyPublisher publisher = body != null ? HttpRequest.BodyPublishers.ofByteArray(body)
+            : "POST".equals(exchange.getRequestMethod()) ? HttpRequest.BodyPublishers.ofInputStream(exchange::getRequestBody)
+            : HttpRequest.BodyPublishers.noBody();
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(peer + exchange.getRequestURI()))
+            .method(exchange.getRequestMethod(), publisher)
+            .timeout(Duration.ofMillis(FORWARD_TIMEOUT_MS + ("/receive".equals(path) ? MAX_RECEIVE_WAIT_MS : 0)))
+            .header(FORWARDED_HEADER, SELF);
+        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        if (contentType != null) {
+            request.header("Content-Type", contentType);
+        }
+
+        // The exchange stays open until the owner answers, like a parked long-poll
+        http.sendAsync(request.build(), HttpResponse.BodyHandlers.ofInputStream()).whenComplete((response, error) -> {
+            try {
+                if (error != null) {
+                    FORWARD_ERRORS.labels(peer).inc();
+                    log.warn("Forwarding {} to {} failed: {}", path, peer, error.toString());
+                    exchange.sendResponseHeaders(502, -1);
+                } else {
+                    relay(exchange, response);
+                }
+                Metrics.requestCompleted(exchange);
+            } catch (IOException e) {
+                log.debug("Could not relay {} from {}: {}", path, peer, e.getMessage());
+            } finally {
+                exchange.close();
+            }
+        });
+    }
+
+    private static void relay(HttpExchange exchange, HttpResponse<InputStream> response) throws IOException {
+        Headers headers = exchange.getResponseHeaders();
+        response.headers().map().forEach((name, values) -> {
+            if (!name.startsWith(":") && !UNRELAYED_HEADERS.contains(name.toLowerCase(Locale.ROOT))) {
+                headers.put(name, new ArrayList<>(values));
+            }
+        });
+        // Keep the owner's framing: a fixed length (where zero has to be sent as -1) or chunked
+        OptionalLong declared = response.headers().firstValueAsLong("Content-Length");
+        long length = !declared.isPresent() ? 0 : declared.getAsLong() > 0 ? declared.getAsLong() : -1;
+        try (InputStream in = response.body()) {
+            exchange.sendResponseHeaders(response.statusCode(), length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                in.transferTo(os);
+            }
+        }
+    }
+
+    /**
+     * A conversation's two directions are stored on the owners of their
+     * receivers. If those differ, both are asked for a page and the pages are
+     * merged. The (timestamp, id) cursor still works: each direction's rows
+     * come from one database, so its keyset bound stays exact.
+     */
+    private static void history(HttpExchange exchange, Filter.Chain chain, Map<String, String> params) throws IOException {
+        String user = params.get("user");
+        String peer = params.get("peer");
+        if (user == null || peer == null || ownerOf(user).equals(ownerOf(peer))) {
+            route(exchange, chain, user, null);
+            return;
+        }
+        int limit;
+        try {
+            limit = Math.max(1, Math.min(ChatServer.MAX_HISTORY_PAGE, Integer.parseInt(params.getOrDefault("limit", "50"))));
+        } catch (NumberFormatException e) {
+            route(exchange, chain, user, null); // let the owner answer 400
+            return;
+        }
+
+        CompletableFuture<JSONObject> received = fetchJson(ownerOf(user), exchange.getRequestURI());
+        CompletableFuture<JSONObject> sent = fetchJson(ownerOf(peer), exchange.getRequestURI());
+        received.thenCombine(sent, (a, b) -> {
+            List<JSONObject> merged = new ArrayList<>();
+            for (JSONObject page : Arrays.asList(a, b)) {
+                JSONArray messages = page.getJSONArray("messages");
+                for (int i = 0; i < messages.length(); i++) {
+                    merged.add(messages.getJSONObject(i));
+                }
+            }
+            merged.sort(Comparator.comparingLong((JSONObject m) -> m.getLong("timestamp"))
+                .thenComparingLong(m -> m.getLong("id")).reversed());
+            JSONObject response = new JSONObject();
+            response.put("messages", new JSONArray(merged.subList(0, Math.min(limit, merged.size()))));
+            if (merged.size() >= limit) {
+                JSONObject last = merged.get(limit - 1);
+                response.put("nextCursor", last.getLong("timestamp") + "." + last.getLong("id"));
+            }
+            return response;
+        }).whenComplete((response, error) -> respondJson(exchange, response, error));
+    }
+
+    /** The union of every node's active users. Nodes that do not answer are left out. */
+    private static void users(HttpExchange exchange) {
+        List<CompletableFuture<JSONArray>> lists = new ArrayList<>();
+        for (String peer : PEERS) {
+            lists.add(fetch(peer, URI.create("/users"))
+                .thenApply(JSONArray::new)
+                .exceptionally(error -> new JSONArray()));
+        }
+        CompletableFuture.allOf(lists.toArray(new CompletableFuture<?>[0])).whenComplete((ignored, error) -> {
+            SortedSet<String> users = new TreeSet<>();
+            for (CompletableFuture<JSONArray> list : lists) {
+                for (Object user : list.join()) {
+                    users.add(user.toString());
+                }
+            }
+            respondJson(exchange, new JSONArray(users), null);
+        });
+    }
+
+    private static CompletableFuture<JSONObject> fetchJson(String peer, URI requestUri) {
+        return fetch(peer, requestUri).thenApply(JSONObject::new);
+    }
+
+    private static CompletableFuture<String> fetch(String peer, URI requestUri) {
+        FORWARDED.labels(peer, requestUri.getPath()).inc();
+        HttpRequest request = HttpRequest.newBuilder(URI.create(peer + requestUri))
+            .timeout(Duration.ofMillis(FORWARD_TIMEOUT_MS))
+            .header(FORWARDED_HEADER, SELF)
+            .GET()
+            .build();
+        return http.sendAsync(request, HttpResponse.BodyHandlers.ofString()).thenApply(response -> {
+            if (response.statusCode() != 200) {
+                throw new CompletionException(new IOException(peer + " answered " + response.statusCode()));
+            }
+            return response.body();
+        }).whenComplete((body, error) -> {
+            if (error != null) {
+                FORWARD_ERRORS.labels(peer).inc();
+            }
+        });
+    }
+
+    private static void respondJson(HttpExchange exchange, Object json, Throwable error) {
+        try {
+            Headers headers = exchange.getResponseHeaders();
+            headers.add("Access-Control-Allow-Origin", "*");
+            headers.add("Access-Control-Allow-Methods", "GET, POST, OPTIONS");
+            headers.add("Access-Control-Allow-Headers", "Content-Type");
+            if (error != null) {
+                log.warn("Cluster request {} failed: {}", exchange.getRequestURI().getPath(), error.toString());
+                exchange.sendResponseHeaders(502, -1);
+            } else {
+                byte[] bytes = json.toString().getBytes(StandardCharsets.UTF_8);
+                headers.add("Content-Type", "application/json");
+                exchange.sendResponseHeaders(200, bytes.length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(bytes);
+                }
+            }
+            Metrics.requestCompleted(exchange);
+        } catch (IOException e) {
+            log.debug("Could not answer {}: {}", exchange.getRequestURI().getPath(), e.getMessage());
+        } finally {
+            exchange.close();
+        }
+    }
+}
@@ -0,0 +1,278 @@
+import com.sun.net.httpserver.HttpExchange;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+/**
+ * Compression for responses and for stored bodies.
+ *
+ * Responses of at least chat.compression.minBytes are gzip or deflate
+ * encoded when the request's Accept-Encoding allows it. Message bodies of at
+ * least chat.compression.storeMinBytes, and file chunks of that size that
+ * actually shrink, are stored deflated, with the codec recorded in their
+ * row.
+ *
+ * Everything is raw deflate underneath and the gzip and zlib framings are
+ * written here, so one pool of Deflaters serves both encodings and the
+ * stored form. A stored body is a deflate segment that ends in a sync flush
+ * rather than a final block. Segments compressed independently can
+ * therefore be concatenated: a download whose chunks are all stored
+ * deflated is sent as gzip straight from the stored bytes, as the gzip
+ * header, the segments, {@link #FINAL_BLOCK} and a trailer whose CRC is
+ * combined from the chunks' CRCs.
+ */
+public final class Compression {
+    static final String IDENTITY = "identity";
+    static final String DEFLATE = "deflate";
+    static final String GZIP = "gzip";
+
+    static final boolean ENABLED = ServerConfig.getBoolean("chat.compression.enabled", true);
+    static final int MIN_RESPONSE_BYTES = ServerConfig.getInt("chat.compression.minBytes", 1024);
+    static final boolean STORE = ServerConfig.getBoolean("chat.compression.store", true);
+    static final int STORE_MIN_BYTES = ServerConfig.getInt("chat.compression.storeMinBytes", 512);
+    private static final int LEVEL = ServerConfig.getInt("chat.compression.level", Deflater.BEST_SPEED);
+    private static final int POOL_SIZE = ServerConfig.getInt("chat.codec.poolSize", 64);
+
+    static final byte[] FINAL_BLOCK = {0x03, 0x00}; // empty fixed-Huffman block with BFINAL set
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+    private static final byte[] ZLIB_HEADER = {0x78, 0x01};
+
+    private static final BlockingQueue<Deflater> deflaters = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    private Compression() {
+    }
+
+    /**
+     * The encoding to answer {@code exchange} with: gzip or deflate if its
+     * Accept-Encoding allows one of them, otherwise null.
+     */
+    static String negotiate(HttpExchange exchange) {
+        String accept = ENABLED ? exchange.getRequestHeaders().getFirst("Accept-Encoding") : null;
+        if (accept == null) {
+            return null;
+        }
+        boolean gzip = false;
+        boolean deflate = false;
+        for (String part : accept.toLowerCase(Locale.ROOT).split(",")) {
+            String[] params = part.split(";");
+            String coding = params[0].trim();
+            boolean refused = false;
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        refused = Double.parseDouble(param.substring(2)) <= 0;
+                    } catch (NumberFormatException e) {
+                        refused = true;
+                    }
+                }
+            }
+            if (refused) {
+                continue;
+            }
+            gzip |= coding.equals(GZIP) || coding.equals("*");
+            deflate |= coding.equals(DEFLATE);
+        }
+        return gzip ? GZIP : deflate ? DEFLATE : null;
+    }
+
+    /** Wraps {@code out} in a stream that encodes everything written to it; closing it closes {@code out}. */
+    static OutputStream encode(OutputStream out, String encoding) throws IOException {
+        return new EncodingStream(out, GZIP.equals(encoding));
+    }
+
+    /** Deflates {@code data} into a stored segment. */
+    static byte[] deflateSegment(byte[] data) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 16);
+        Deflater deflater = acquire();
+        try {
+            deflater.setInput(data);
+            byte[] buf = new byte[Math.min(8192, data.length + 64)];
+            int n;
+            do {
+                n = deflater.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+                out.write(buf, 0, n);
+            } while (n == buf.length || !deflater.needsInput());
+        } finally {
+            release(deflater);
+        }
+        return out.toByteArray();
+    }
+
+    /** Deflates all of {@code in} into a stored segment on {@code out}. */
+    static void deflateSegment(InputStream in, OutputStream out) throws IOException {
+        Deflater deflater = acquire();
+        try {
+            byte[] input = new byte[8192];
+            byte[] buf = new byte[8192];
+            int read;
+            while ((read = in.read(input)) != -1) {
+                deflater.setInput(input, 0, read);
+                while (!deflater.needsInput()) {
+                    out.write(buf, 0, deflater.deflate(buf));
+                }
+            }
+            int n;
+            do {
+                n = deflater.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+                out.write(buf, 0, n);
+            } while (n == buf.length);
+        } finally {
+            release(deflater);
+        }
+    }
+
+    /** Reads a stored segment back as its original bytes. */
+    static InputStream inflating(InputStream segment) {
+        Inflater inflater = new Inflater(true);
+        return new InflaterInputStream(new SequenceInputStream(segment, new ByteArrayInputStream(FINAL_BLOCK)), inflater) {
+            @Override
+            public void close() throws IOException {
+                super.close();
+                inflater.end();
+            }
+        };
+    }
+
+    static String inflateString(byte[] segment) throws IOException {
+        try (InputStream in = inflating(new ByteArrayInputStream(segment))) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    static byte[] gzipHeader() {
+        return GZIP_HEADER.clone();
+    }
+
+    /** The gzip trailer for {@code size} bytes of content with the given CRC-32. */
+    static byte[] gzipTrailer(long crc32, long size) {
+        byte[] trailer = new byte[8];
+        for (int i = 0; i < 4; i++) {
+            trailer[i] = (byte) (crc32 >>> (8 * i));
+            trailer[4 + i] = (byte) (size >>> (8 * i));
+        }
+        return trailer;
+    }
+
+    /**
+     * The CRC-32 of two blocks of data back to back, from the CRC of each and
+     * the length of the second, as zlib's crc32_combine.
+     */
+    static long crc32Combine(long crc1, long crc2, long len2) {
+        if (len2 <= 0) {
+            return crc1;
+        }
+        long[] even = new long[32]; // operator for an even power of two zero bits
+        long[] odd = new long[32];  // and for an odd power
+        odd[0] = 0xedb88320L;       // the CRC-32 polynomial: the operator for one zero bit
+        long row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        gf2MatrixSquare(even, odd); // two zero bits
+        gf2MatrixSquare(odd, even); // four zero bits
+        // Apply len2 zero bytes to crc1; the first square below is one zero byte
+        do {
+            gf2MatrixSquare(even, odd);
+            if ((len2 & 1) != 0) {
+                crc1 = gf2MatrixTimes(even, crc1);
+            }
+            len2 >>= 1;
+            if (len2 == 0) {
+                break;
+            }
+            gf2MatrixSquare(odd, even);
+            if ((len2 & 1) != 0) {
+                crc1 = gf2MatrixTimes(odd, crc1);
+            }
+            len2 >>= 1;
+        } while (len2 != 0);
+        return crc1 ^ crc2;
+    }
+
+    private static long gf2MatrixTimes(long[] mat, long vec) {
+        long sum = 0;
+        for (int i = 0; vec != 0; i++, vec >>>= 1) {
+            if ((vec & 1) != 0) {
+                sum ^= mat[i];
+            }
+        }
+        return sum;
+    }
+
+    private static void gf2MatrixSquare(long[] square, long[] mat) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = gf2MatrixTimes(mat, mat[n]);
+        }
+    }
+
+    private static Deflater acquire() {
+        Deflater deflater = deflaters.poll();
+        return deflater != null ? deflater : new Deflater(LEVEL, true);
+    }
+
+    private static void release(Deflater deflater) {
+        deflater.reset();
+        if (!deflaters.offer(deflater)) {
+            deflater.end();
+        }
+    }
+
+    /** gzip or zlib framing around a pooled raw Deflater. */
+    private static final class EncodingStream extends FilterOutputStream {
+        private final boolean gzip;
+        private final Checksum checksum;
+        private final Deflater deflater = acquire();
+        private final byte[] buf = new byte[8192];
+        private long size;
+        private boolean closed;
+
+        EncodingStream(OutputStream out, boolean gzip) throws IOException {
+            super(out);
+            this.gzip = gzip;
+            this.checksum = gzip ? new CRC32() : new Adler32();
+            out.write(gzip ? GZIP_HEADER : ZLIB_HEADER);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            checksum.update(b, off, len);
+            size += len;
+            deflater.setInput(b, off, len);
+            while (!deflater.needsInput()) {
+                out.write(buf, 0, deflater.deflate(buf));
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    out.write(buf, 0, deflater.deflate(buf));
+                }
+                long value = checksum.getValue();
+                if (gzip) {
+                    out.write(gzipTrailer(value, size));
+                } else {
+                    out.write(new byte[] {(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value});
+                }
+            } finally {
+                release(deflater);
+                out.close();
+            }
+        }
+    }
+}
@@ -1,16 +1,186 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantLock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class DatabaseManager {
-    private static final String DB_URL = "jdbc:sqlite:chat.db";
+    private static final Logger log = LoggerFactory.getLogger(DatabaseManager.class);
+    private static final String DB_URL = ServerConfig.getString("chat.db.url", "jdbc:sqlite:chat.db");
+    private static final int READER_POOL_SIZE = ServerConfig.getInt("chat.db.readers", 4);
+    private static final int CACHE_SIZE_KB = ServerConfig.getInt("chat.db.cacheSizeKb", 16384);
+    private static final String SYNCHRONOUS = ServerConfig.getString("chat.db.synchronous", "NORMAL");
+    
+    // SQLite allows one writer at a time, so all writes share a single long-lived
+    // connection; reads go through a small pool that WAL lets run alongside it.
+    private static PooledConnection writer;
+    private static final ReentrantLock writeLock = new ReentrantLock();
+    private static final BlockingQueue<PooledConnection> readers = new LinkedBlockingQueue<>();
+    
+    /** A long-lived connection with its own prepared statement cache. */
+    static class PooledConnection {
+        final Connection conn;
+        private final Map<String, PreparedStatement> statements = new HashMap<>();
+        
+        PooledConnection(Connection conn) {
+            this.conn = conn;
+        }
+        
+        PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement pstmt = statements.get(sql);
+            if (pstmt == null) {
+                pstmt = conn.prepareStatement(sql);
+                statements.put(sql, pstmt);
+            }
+            pstmt.clearParameters();
+            return pstmt;
+        }
+    }
+    
+    @FunctionalInterface
+    interface SqlWork<T> {
+        T run(PooledConnection conn) throws SQLException;
+    }
+    
+    // Schema migrations in order; PRAGMA user_version records how many have been applied
+    private static final String[][] MIGRATIONS = {
+        // 1: secondary indexes. The conversation index ends in the implicit rowid, so
+        // (timestamp, id) keyset pages are a range scan; the others cover the
+        // per-receiver sequence and file chunk lookups without touching the table.
+        {
+            "CREATE INDEX IF NOT EXISTS idx_messages_receiver_seq ON messages (receiver, sender, seq)",
+            "CREATE INDEX IF NOT EXISTS idx_messages_conversation ON messages (sender, receiver, timestamp)",
+            "CREATE INDEX IF NOT EXISTS idx_file_chunks_transfer ON file_chunks (receiver, file_name, chunk_index)",
+        },
+        // 2: crash recovery. Messages remember their delivery offset, delivery_cursors
+        // holds each receiver's acked and reserved offsets, channel_checkpoint the
+        // next expected seq of recently active channels as of checkpoint_meta's
+        // channels_through_id.
+        {
+            "ALTER TABLE messages ADD COLUMN delivery_offset INTEGER",
+            "CREATE INDEX IF NOT EXISTS idx_messages_delivery ON messages (receiver, delivery_offset)",
+            "CREATE TABLE IF NOT EXISTS delivery_cursors (" +
+                "receiver TEXT PRIMARY KEY, " +
+                "acked_offset INTEGER NOT NULL, " +
+                "reserved_offset INTEGER NOT NULL" +
+                ")",
+            "CREATE TABLE IF NOT EXISTS channel_checkpoint (" +
+                "receiver TEXT NOT NULL, " +
+                "sender TEXT NOT NULL, " +
+                "next_seq INTEGER NOT NULL, " +
+                "last_activity INTEGER NOT NULL, " +
+                "PRIMARY KEY (receiver, sender)" +
+                ")",
+            "CREATE TABLE IF NOT EXISTS checkpoint_meta (" +
+                "name TEXT PRIMARY KEY, " +
+                "value INTEGER NOT NULL" +
+                ")",
+        },
+        // 3: group channels. Their messages are ordinary rows addressed to the group,
+        // with the group offset in delivery_offset; group_channels reserves offsets
+        // like delivery_cursors and group_members holds each member's read cursor.
+        {
+            "CREATE TABLE IF NOT EXISTS group_channels (" +
+                "group_name TEXT PRIMARY KEY, " +
+                "reserved_offset INTEGER NOT NULL" +
+                ")",
+            "CREATE TABLE IF NOT EXISTS group_members (" +
+                "group_name TEXT NOT NULL, " +
+                "user TEXT NOT NULL, " +
+                "acked_offset INTEGER NOT NULL, " +
+                "PRIMARY KEY (group_name, user)" +
+                ")",
+        },
+        // 4: stored compression. A message whose codec is deflate keeps a
+        // Compression segment as a blob in content; a chunk reference records how
+        // its blob is stored and the CRC-32 of the original bytes.
+        {
+            "ALTER TABLE messages ADD COLUMN codec TEXT NOT NULL DEFAULT 'identity'",
+            "ALTER TABLE file_chunk_refs ADD COLUMN codec TEXT NOT NULL DEFAULT 'identity'",
+            "ALTER TABLE file_chunk_refs ADD COLUMN crc32 INTEGER",
+        },
+    };
+    
+    private static PooledConnection openConnection() throws SQLException {
+        Connection conn = DriverManager.getConnection(DB_URL);
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("PRAGMA journal_mode=WAL");
+            stmt.execute("PRAGMA synchronous=" + SYNCHRONOUS);
+            stmt.execute("PRAGMA cache_size=-" + CACHE_SIZE_KB);
+            stmt.execute("PRAGMA busy_timeout=5000");
+            stmt.execute("PRAGMA temp_store=MEMORY");
+        }
+        return new PooledConnection(conn);
+    }
+    
+    /**
+     * Runs {@code work} on the writer connection inside a single transaction.
+     * {@code operation} names the call in the latency metrics.
+     */
+    static <T> T inWriteTransaction(String operation, SqlWork<T> work) throws SQLException {
+        long start = System.nanoTime();
+        writeLock.lock();
+        Metrics.DB_WAIT.labels("writer").observeSince(start);
+        try {
+            Connection conn = writer.conn;
+            conn.setAutoCommit(false);
+            try {
+                T result = work.run(writer);
+                conn.commit();
+                return result;
+            } catch (SQLException | RuntimeException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        } finally {
+            writeLock.unlock();
+            Metrics.DB_CALLS.labels(operation).observeSince(start);
+        }
+    }
+    
+    /** Runs {@code work} on a pooled reader connection; {@code operation} as for inWriteTransaction. */
+    static <T> T withReader(String operation, SqlWork<T> work) throws SQLException {
+        long start = System.nanoTime();
+        PooledConnection conn;
+        try {
+            conn = readers.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection", e);
+        }
+        Metrics.DB_WAIT.labels("reader").observeSince(start);
+        try {
+            return work.run(conn);
+        } finally {
+            readers.offer(conn);
+            Metrics.DB_CALLS.labels(operation).observeSince(start);
+        }
+    }
+    
+    private static void registerMetrics() {
+        Metrics.collect("chat_db_connections", "Open database connections by pool and state.", "gauge", samples -> {
+            int idle = readers.size();
+            samples.add(writeLock.isLocked() ? 0 : 1, "writer", "idle");
+            samples.add(writeLock.isLocked() ? 1 : 0, "writer", "busy");
+            samples.add(idle, "reader", "idle");
+            samples.add(READER_POOL_SIZE - idle, "reader", "busy");
+        }, "pool", "state");
+        Metrics.gauge("chat_db_writer_waiting", "Threads queued for the writer connection.", writeLock::getQueueLength);
+    }
     
     public static void initializeDatabase() {
         try {
             // Load the SQLite JDBC driver
             Class.forName("org.sqlite.JDBC");
 
-            // Connect to the SQLite database
-            Connection conn = DriverManager.getConnection(DB_URL);
+            // Open the long-lived writer connection; it also switches the database to WAL
+            writer = openConnection();
+            Connection conn = writer.conn;
 
             // SQL to create messages table
             String createMessagesTable = "CREATE TABLE IF NOT EXISTS messages (" +
@@ -35,6 +205,19 @@ public class DatabaseManager {
                 "timestamp INTEGER NOT NULL" +
                 ")";
 
+            // SQL to create the chunk manifest: which content-addressed blob holds each chunk of a transfer
+            String createFileChunkRefsTable = "CREATE TABLE IF NOT EXISTS file_chunk_refs (" +
+                "receiver TEXT NOT NULL, " +
+                "file_name TEXT NOT NULL, " +
+                "chunk_index INTEGER NOT NULL, " +
+                "total_chunks INTEGER NOT NULL, " +
+                "sender TEXT NOT NULL, " +
+                "sha256 TEXT NOT NULL, " +
+                "size INTEGER NOT NULL, " +
+                "timestamp INTEGER NOT NULL, " +
+                "PRIMARY KEY (receiver, file_name, chunk_index)" +
+                ")";
+
             // SQL to create users table
             String createUsersTable = "CREATE TABLE IF NOT EXISTS users (" +
                 "id INTEGER PRIMARY KEY AUTOINCREMENT, " +
@@ -42,132 +225,847 @@ public class DatabaseManager {
                 "last_activity INTEGER NOT NULL" +
                 ")";
 
+            // SQL to create the spill table for receivers whose delivery log overflowed
+            String createDeliveryBacklogTable = "CREATE TABLE IF NOT EXISTS delivery_backlog (" +
+                "receiver TEXT NOT NULL, " +
+                "delivery_offset INTEGER NOT NULL, " +
+                "sender TEXT NOT NULL, " +
+                "seq INTEGER NOT NULL, " +
+                "content TEXT NOT NULL, " +
+                "type TEXT DEFAULT 'text', " +
+                "file_name TEXT, " +
+                "chunk_index INTEGER, " +
+                "total_chunks INTEGER, " +
+                "timestamp INTEGER NOT NULL, " +
+                "PRIMARY KEY (receiver, delivery_offset)" +
+                ")";
+
             // Execute all create table statements
             try (Statement stmt = conn.createStatement()) {
                 stmt.execute(createMessagesTable);
                 stmt.execute(createFileChunksTable);
+                stmt.execute(createFileChunkRefsTable);
                 stmt.execute(createUsersTable);
+                stmt.execute(createDeliveryBacklogTable);
             }
+            migrateSchema(conn);
 
-            conn.close();
-            System.out.println("✅ Database initialized successfully");
+            for (int i = 0; i < READER_POOL_SIZE; i++) {
+                readers.offer(openConnection());
+            }
+            
+            registerMetrics();
+            log.info("Database initialized");
 
         } catch (ClassNotFoundException e) {
-            System.err.println("❌ SQLite JDBC driver not found.");
-            e.printStackTrace();
+            log.error("SQLite JDBC driver not found", e);
         } catch (SQLException e) {
-            System.err.println("❌ Database error:");
-            e.printStackTrace();
+            log.error("Database initialization failed", e);
         }
     }
 
+    /** Applies the migrations this database has not seen yet, each in its own transaction. */
+    private static void migrateSchema(Connection conn) throws SQLException {
+        int version;
+        try (Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery("PRAGMA user_version")) {
+            version = rs.next() ? rs.getInt(1) : 0;
+        }
+        for (int i = version; i < MIGRATIONS.length; i++) {
+            long start = System.currentTimeMillis();
+            conn.setAutoCommit(false);
+            try (Statement stmt = conn.createStatement()) {
+                for (String sql : MIGRATIONS[i]) {
+                    stmt.execute(sql);
+                }
+                stmt.execute("PRAGMA user_version = " + (i + 1));
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+            log.info("Applied schema migration {} in {} ms", i + 1, System.currentTimeMillis() - start);
+        }
+        if (version < MIGRATIONS.length) {
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("ANALYZE"); // give the planner statistics for the new indexes
+            }
+        }
+    }
     
-    public static void storeMessage(ChatServer.Message message) {
-        String sql = "INSERT INTO messages (sender, receiver, seq, content, type, timestamp) VALUES (?, ?, ?, ?, ?, ?)";
-        
-        try (Connection conn = DriverManager.getConnection(DB_URL);
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            
-            pstmt.setString(1, message.sender);
-            pstmt.setString(2, message.receiver);
-            pstmt.setInt(3, message.seq);
-            pstmt.setString(4, message.content);
-            pstmt.setString(5, message.type);
-            pstmt.setLong(6, message.timestamp);
-            
-            pstmt.executeUpdate();
+    // Rows per multi-row INSERT; keeps the bound parameter count well under SQLite's limit
+    private static final int ROWS_PER_INSERT = 64;
+    
+    /**
+     * Persists a batch of messages and file chunks in one transaction using
+     * multi-row INSERTs. Used
+     * by the write-behind queue; errors are thrown so the caller can fail the
+     * batch's pending acks.
+     */
+    public static void storeBatch(List<ChatServer.Message> messages, List<WriteBehindQueue.ChunkRecord> chunks) throws SQLException {
+        storeBatch(messages, chunks, Collections.emptyMap(), Collections.emptyMap(), Collections.emptyMap());
+    }
+    
+    /**
+     * As {@link #storeBatch(List, List)}, also spilling delivery log entries
+     * keyed by receiver and raising delivery and group offset reservations,
+     * all in the same transaction.
+     */
+    public static void storeBatch(List<ChatServer.Message> messages, List<WriteBehindQueue.ChunkRecord> chunks,
+                                  Map<String, List<ChatServer.Message>> spills, Map<String, Long> deliveryReservations,
+                                  Map<String, Long> groupReservations) throws SQLException {
+        inWriteTransaction("storeBatch", conn -> {
+            // Reservations first: a row must never carry an offset a restart could hand out again
+            reserveOffsets(conn, RESERVE_DELIVERY_OFFSETS, deliveryReservations);
+            reserveOffsets(conn, RESERVE_GROUP_OFFSETS, groupReservations);
+            insertSpills(conn, spills);
             
-            // Update user activity
-            updateUserActivity(message.sender);
-            updateUserActivity(message.receiver);
+            for (int from = 0; from < messages.size(); from += ROWS_PER_INSERT) {
+                List<ChatServer.Message> rows = messages.subList(from, Math.min(from + ROWS_PER_INSERT, messages.size()));
+                PreparedStatement pstmt = conn.prepare(multiRowInsert(
+                    "INSERT INTO messages (sender, receiver, seq, content, codec, type, timestamp, delivery_offset) VALUES ",
+                    8, rows.size()));
+                int i = 1;
+                for (ChatServer.Message message : rows) {
+                    pstmt.setString(i++, message.sender);
+                    pstmt.setString(i++, message.receiver);
+                    pstmt.setInt(i++, message.seq);
+                    byte[] deflated = storedContent(message.content);
+                    if (deflated != null) {
+                        pstmt.setBytes(i++, deflated);
+                        pstmt.setString(i++, Compression.DEFLATE);
+                    } else {
+                        pstmt.setString(i++, message.content);
+                        pstmt.setString(i++, Compression.IDENTITY);
+                    }
+                    pstmt.setString(i++, message.type);
+                    pstmt.setLong(i++, message.timestamp);
+                    pstmt.setLong(i++, message.offset);
+                }
+                pstmt.executeUpdate();
+            }
             
+            for (int from = 0; from < chunks.size(); from += ROWS_PER_INSERT) {
+                List<WriteBehindQueue.ChunkRecord> rows = chunks.subList(from, Math.min(from + ROWS_PER_INSERT, chunks.size()));
+                // A chunk index that is uploaded again simply points at the new blob
+                PreparedStatement pstmt = conn.prepare(multiRowInsert(
+                    "INSERT INTO file_chunk_refs (sender, receiver, file_name, chunk_index, total_chunks, sha256, size, codec, crc32, " +
+                    "timestamp) VALUES ", 10, rows.size()) +
+                    " ON CONFLICT(receiver, file_name, chunk_index) DO UPDATE SET sender = excluded.sender, " +
+                    "total_chunks = excluded.total_chunks, sha256 = excluded.sha256, size = excluded.size, " +
+                    "codec = excluded.codec, crc32 = excluded.crc32, timestamp = excluded.timestamp");
+                int i = 1;
+                for (WriteBehindQueue.ChunkRecord chunk : rows) {
+                    pstmt.setString(i++, chunk.sender);
+                    pstmt.setString(i++, chunk.receiver);
+                    pstmt.setString(i++, chunk.fileName);
+                    pstmt.setInt(i++, chunk.chunkIndex);
+                    pstmt.setInt(i++, chunk.totalChunks);
+                    pstmt.setString(i++, chunk.sha256);
+                    pstmt.setLong(i++, chunk.size);
+                    pstmt.setString(i++, chunk.codec);
+                    pstmt.setLong(i++, chunk.crc32);
+                    pstmt.setLong(i++, chunk.timestamp);
+                }
+                pstmt.executeUpdate();
+            }
+            return null;
+        });
+    }
+    
+    /** The deflated form of a message body if it is large enough and shrinks by a tenth, otherwise null. */
+    private static byte[] storedContent(String content) {
+        if (!Compression.STORE || content.length() < Compression.STORE_MIN_BYTES) {
+            return null;
+        }
+        byte[] raw = content.getBytes(StandardCharsets.UTF_8);
+        byte[] deflated = Compression.deflateSegment(raw);
+        return deflated.length <= raw.length - raw.length / 10 ? deflated : null;
+    }
+    
+    /** The message body of the current row, inflated if it was stored deflated. */
+    private static String readContent(ResultSet rs) throws SQLException {
+        if (!Compression.DEFLATE.equals(rs.getString("codec"))) {
+            return rs.getString("content");
+        }
+        try {
+            return Compression.inflateString(rs.getBytes("content"));
+        } catch (IOException e) {
+            throw new SQLException("Corrupt deflated message body", e);
+        }
+    }
+    
+    private static String multiRowInsert(String prefix, int columns, int rows) {
+        StringBuilder row = new StringBuilder("(");
+        for (int c = 0; c < columns; c++) {
+            row.append(c == 0 ? "?" : ", ?");
+        }
+        row.append(")");
+        StringBuilder sql = new StringBuilder(prefix);
+        for (int r = 0; r < rows; r++) {
+            if (r > 0) {
+                sql.append(", ");
+            }
+            sql.append(row);
+        }
+        return sql.toString();
+    }
+    
+    static class StoredChunk {
+        final int chunkIndex;
+        final String chunkData;
+        
+        StoredChunk(int chunkIndex, String chunkData) {
+            this.chunkIndex = chunkIndex;
+            this.chunkData = chunkData;
+        }
+    }
+    
+    /** Up to {@code limit} stored chunks with an index above {@code afterIndex}, in chunk order. */
+    public static List<StoredChunk> getFileChunkPage(String fileName, String receiver, int afterIndex, int limit) {
+        // Retransmissions left duplicate rows behind; keep only the latest copy of each index
+        String sql = "SELECT chunk_index, chunk_data, MAX(id) FROM file_chunks WHERE file_name = ? AND receiver = ? AND chunk_index > ? " +
+            "GROUP BY chunk_index ORDER BY chunk_index LIMIT ?";
+        List<StoredChunk> chunks = new ArrayList<>();
+        
+        try {
+            withReader("getFileChunkPage", conn -> {
+                PreparedStatement pstmt = conn.prepare(sql);
+                pstmt.setString(1, fileName);
+                pstmt.setString(2, receiver);
+                pstmt.setInt(3, afterIndex);
+                pstmt.setInt(4, limit);
+                
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        chunks.add(new StoredChunk(rs.getInt("chunk_index"), rs.getString("chunk_data")));
+                    }
+                }
+                return null;
+            });
         } catch (SQLException e) {
-            e.printStackTrace();
+            log.error("getFileChunkPage failed", e);
         }
+        
+        return chunks;
     }
     
-    public static void storeFileChunk(String sender, String receiver, String fileName, 
-                                    int chunkIndex, int totalChunks, String chunkData) {
-        String sql = "INSERT INTO file_chunks (sender, receiver, file_name, chunk_index, total_chunks, chunk_data, timestamp) VALUES (?, ?, ?, ?, ?, ?, ?)";
+    static class ChunkRef {
+        final int chunkIndex;
+        final int totalChunks;
+        final String sha256;
+        final long size;
+        final String codec;
+        final long crc32;
         
-        try (Connection conn = DriverManager.getConnection(DB_URL);
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            
-            pstmt.setString(1, sender);
-            pstmt.setString(2, receiver);
-            pstmt.setString(3, fileName);
-            pstmt.setInt(4, chunkIndex);
-            pstmt.setInt(5, totalChunks);
-            pstmt.setString(6, chunkData);
-            pstmt.setLong(7, System.currentTimeMillis());
-            
-            pstmt.executeUpdate();
-            
+        ChunkRef(int chunkIndex, int totalChunks, String sha256, long size, String codec, long crc32) {
+            this.chunkIndex = chunkIndex;
+            this.totalChunks = totalChunks;
+            this.sha256 = sha256;
+            this.size = size;
+            this.codec = codec;
+            this.crc32 = crc32;
+        }
+    }
+    
+    /** The content-addressed chunks recorded for a transfer, in chunk order. */
+    public static List<ChunkRef> getChunkRefs(String fileName, String receiver) {
+        String sql = "SELECT chunk_index, total_chunks, sha256, size, codec, crc32 FROM file_chunk_refs " +
+            "WHERE receiver = ? AND file_name = ? ORDER BY chunk_index";
+        List<ChunkRef> refs = new ArrayList<>();
+        
+        try {
+            withReader("getChunkRefs", conn -> {
+                PreparedStatement pstmt = conn.prepare(sql);
+                pstmt.setString(1, receiver);
+                pstmt.setString(2, fileName);
+                
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        refs.add(new ChunkRef(rs.getInt("chunk_index"), rs.getInt("total_chunks"),
+                            rs.getString("sha256"), rs.getLong("size"), rs.getString("codec"), rs.getLong("crc32")));
+                    }
+                }
+                return null;
+            });
         } catch (SQLException e) {
-            e.printStackTrace();
+            log.error("getChunkRefs failed", e);
         }
+        
+        return refs;
     }
     
-    public static List<String> getFileChunks(String fileName, String receiver) {
-        String sql = "SELECT chunk_data FROM file_chunks WHERE file_name = ? AND receiver = ? ORDER BY chunk_index";
-        List<String> chunks = new ArrayList<>();
+    /** The blob currently recorded for one chunk, or null if that chunk has not been stored. */
+    public static String getChunkHash(String fileName, String receiver, int chunkIndex) {
+        String sql = "SELECT sha256 FROM file_chunk_refs WHERE receiver = ? AND file_name = ? AND chunk_index = ?";
         
-        try (Connection conn = DriverManager.getConnection(DB_URL);
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            
-            pstmt.setString(1, fileName);
-            pstmt.setString(2, receiver);
-            
-            try (ResultSet rs = pstmt.executeQuery()) {
-                while (rs.next()) {
-                    chunks.add(rs.getString("chunk_data"));
+        try {
+            return withReader("getChunkHash", conn -> {
+                PreparedStatement pstmt = conn.prepare(sql);
+                pstmt.setString(1, receiver);
+                pstmt.setString(2, fileName);
+                pstmt.setInt(3, chunkIndex);
+                
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    return rs.next() ? rs.getString("sha256") : null;
                 }
-            }
-            
+            });
         } catch (SQLException e) {
-            e.printStackTrace();
+            log.error("getChunkHash failed", e);
+            return null;
         }
+    }
+    
+    static class HistoryEntry {
+        final long id;
+        final ChatServer.Message message;
         
-        return chunks;
+        HistoryEntry(long id, ChatServer.Message message) {
+            this.id = id;
+            this.message = message;
+        }
     }
     
-    public static List<String> getActiveUsers() {
-        // String sql = "SELECT DISTINCT username FROM users WHERE last_activity > ?";
-        String sql = "SELECT DISTINCT username FROM users";
-        List<String> users = new ArrayList<>();
-        long fiveMinutesAgo = System.currentTimeMillis() - 300000;
+    /**
+     * One page of the conversation between {@code userA} and {@code userB},
+     * newest first, strictly older than the (beforeTimestamp, beforeId) cursor.
+     * Each direction is read as its own bounded index range and the two are
+     * merged, so the cost depends on {@code limit} rather than on table size.
+     */
+    public static List<HistoryEntry> getConversationPage(String userA, String userB, long beforeTimestamp, long beforeId, int limit) {
+        String direction = "SELECT id, sender, receiver, seq, content, codec, type, timestamp FROM messages " +
+            "WHERE sender = ? AND receiver = ? AND timestamp <= ? AND (timestamp < ? OR id < ?) " +
+            "ORDER BY timestamp DESC, id DESC LIMIT ?";
+        String sql = "SELECT * FROM (" + direction + ") UNION ALL SELECT * FROM (" + direction + ") " +
+            "ORDER BY timestamp DESC, id DESC LIMIT ?";
+        List<HistoryEntry> entries = new ArrayList<>();
         
-        try (Connection conn = DriverManager.getConnection(DB_URL);
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            
-            // pstmt.setLong(1, fiveMinutesAgo);
-            
-            try (ResultSet rs = pstmt.executeQuery()) {
-                while (rs.next()) {
-                    users.add(rs.getString("username"));
+        try {
+            withReader("getConversationPage", conn -> {
+                PreparedStatement pstmt = conn.prepare(sql);
+                int i = 1;
+                for (String[] pair : new String[][] {{userA, userB}, {userB, userA}}) {
+                    pstmt.setString(i++, pair[0]);
+                    pstmt.setString(i++, pair[1]);
+                    pstmt.setLong(i++, beforeTimestamp);
+                    pstmt.setLong(i++, beforeTimestamp);
+                    pstmt.setLong(i++, beforeId);
+                    pstmt.setInt(i++, limit);
                 }
-            }
-            
+                pstmt.setInt(i, limit);
+                
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        ChatServer.Message message = new ChatServer.Message(rs.getString("sender"), rs.getString("receiver"),
+                            rs.getInt("seq"), readContent(rs), rs.getString("type"));
+                        message.timestamp = rs.getLong("timestamp");
+                        entries.add(new HistoryEntry(rs.getLong("id"), message));
+                    }
+                }
+                return null;
+            });
         } catch (SQLException e) {
-            e.printStackTrace();
+            log.error("getConversationPage failed", e);
+        }
+        
+        return entries;
+    }
+    
+    /** Last-activity timestamps of the users active after {@code since}. */
+    public static Map<String, Long> loadUserActivity(long since) {
+        String sql = "SELECT username, last_activity FROM users WHERE last_activity > ?";
+        Map<String, Long> users = new HashMap<>();
+        
+        try {
+            withReader("loadUserActivity", conn -> {
+                PreparedStatement pstmt = conn.prepare(sql);
+                pstmt.setLong(1, since);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        users.put(rs.getString("username"), rs.getLong("last_activity"));
+                    }
+                }
+                return null;
+            });
+        } catch (SQLException e) {
+            log.error("loadUserActivity failed", e);
         }
         
         return users;
     }
     
-    private static void updateUserActivity(String username) {
-        String sql = "INSERT OR REPLACE INTO users (username, last_activity) VALUES (?, ?)";
+    /** Upserts last-activity timestamps in one transaction. Returns false if the write failed. */
+    public static boolean storeUserActivity(Map<String, Long> lastActivity) {
+        String sql = "INSERT INTO users (username, last_activity) VALUES (?, ?) " +
+            "ON CONFLICT(username) DO UPDATE SET last_activity = excluded.last_activity";
         
-        try (Connection conn = DriverManager.getConnection(DB_URL);
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            
-            pstmt.setString(1, username);
-            pstmt.setLong(2, System.currentTimeMillis());
-            
-            pstmt.executeUpdate();
-            
+        try {
+            inWriteTransaction("storeUserActivity", conn -> {
+                PreparedStatement pstmt = conn.prepare(sql);
+                for (Map.Entry<String, Long> entry : lastActivity.entrySet()) {
+                    pstmt.setString(1, entry.getKey());
+                    pstmt.setLong(2, entry.getValue());
+                    pstmt.addBatch();
+                }
+                return pstmt.executeBatch();
+            });
+            return true;
+        } catch (SQLException e) {
+            log.error("storeUserActivity failed", e);
+            return false;
+        }
+    }
+    
+    /** Spills delivery log entries, keyed by receiver, in one transaction. Returns false if the write failed. */
+    public static boolean spillDeliveryEntries(Map<String, List<ChatServer.Message>> entries) {
+        try {
+            inWriteTransaction("spillDeliveryEntries", conn -> {
+                insertSpills(conn, entries);
+                return null;
+            });
+            return true;
+        } catch (SQLException e) {
+            log.error("spillDeliveryEntries failed", e);
+            return false;
+        }
+    }
+    
+    private static void insertSpills(PooledConnection conn, Map<String, List<ChatServer.Message>> entries) throws SQLException {
+        if (entries.isEmpty()) {
+            return;
+        }
+        PreparedStatement pstmt = conn.prepare("INSERT OR REPLACE INTO delivery_backlog (receiver, delivery_offset, sender, " +
+            "seq, content, type, file_name, chunk_index, total_chunks, timestamp) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+        for (Map.Entry<String, List<ChatServer.Message>> entry : entries.entrySet()) {
+            for (ChatServer.Message message : entry.getValue()) {
+                ChatServer.FileChunk chunk = message instanceof ChatServer.FileChunk ? (ChatServer.FileChunk) message : null;
+                pstmt.setString(1, entry.getKey());
+                pstmt.setLong(2, message.offset);
+                pstmt.setString(3, message.sender);
+                pstmt.setInt(4, message.seq);
+                pstmt.setString(5, message.content);
+                pstmt.setString(6, message.type);
+                pstmt.setString(7, chunk != null ? chunk.fileName : null);
+                pstmt.setInt(8, chunk != null ? chunk.chunkIndex : 0);
+                pstmt.setInt(9, chunk != null ? chunk.totalChunks : 0);
+                pstmt.setLong(10, message.timestamp);
+                pstmt.addBatch();
+            }
+        }
+        pstmt.executeBatch();
+    }
+    
+    public static List<ChatServer.Message> loadDeliveryBacklog(String receiver, long afterOffset, int limit) {
+        String sql = "SELECT delivery_offset, sender, seq, content, type, file_name, chunk_index, total_chunks, timestamp " +
+            "FROM delivery_backlog WHERE receiver = ? AND delivery_offset > ? ORDER BY delivery_offset LIMIT ?";
+        List<ChatServer.Message> messages = new ArrayList<>();
+        
+        try {
+            withReader("loadDeliveryBacklog", conn -> {
+                PreparedStatement pstmt = conn.prepare(sql);
+                pstmt.setString(1, receiver);
+                pstmt.setLong(2, afterOffset);
+                pstmt.setInt(3, limit);
+                
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        String fileName = rs.getString("file_name");
+                        ChatServer.Message message = fileName != null
+                            ? new ChatServer.FileChunk(rs.getString("sender"), receiver, rs.getInt("seq"), fileName,
+                                rs.getInt("chunk_index"), rs.getInt("total_chunks"))
+                            : new ChatServer.Message(rs.getString("sender"), receiver, rs.getInt("seq"),
+                                rs.getString("content"), rs.getString("type"));
+                        message.offset = rs.getLong("delivery_offset");
+                        message.timestamp = rs.getLong("timestamp");
+                        messages.add(message);
+                    }
+                }
+                return null;
+            });
+        } catch (SQLException e) {
+            log.error("loadDeliveryBacklog failed", e);
+        }
+        
+        return messages;
+    }
+    
+    public static void trimDeliveryBacklog(String receiver, long throughOffset) {
+        String sql = "DELETE FROM delivery_backlog WHERE receiver = ? AND delivery_offset <= ?";
+        
+        try {
+            inWriteTransaction("trimDeliveryBacklog", conn -> {
+                PreparedStatement pstmt = conn.prepare(sql);
+                pstmt.setString(1, receiver);
+                pstmt.setLong(2, throughOffset);
+                
+                return pstmt.executeUpdate();
+            });
+        } catch (SQLException e) {
+            log.error("trimDeliveryBacklog failed", e);
+        }
+    }
+    
+    static class DeliveryCursor {
+        final String receiver;
+        final long ackedOffset;    // every offset up to here was acknowledged by the receiver
+        final long reservedOffset; // no offset at or above this was ever handed out
+        
+        DeliveryCursor(String receiver, long ackedOffset, long reservedOffset) {
+            this.receiver = receiver;
+            this.ackedOffset = ackedOffset;
+            this.reservedOffset = reservedOffset;
+        }
+    }
+    
+    // Record that offsets below the reserved one may be in use for a receiver, or for a group
+    private static final String RESERVE_DELIVERY_OFFSETS = "INSERT INTO delivery_cursors (receiver, acked_offset, reserved_offset) " +
+        "VALUES (?, -1, ?) ON CONFLICT(receiver) DO UPDATE SET reserved_offset = MAX(reserved_offset, excluded.reserved_offset)";
+    private static final String RESERVE_GROUP_OFFSETS = "INSERT INTO group_channels (group_name, reserved_offset) VALUES (?, ?) " +
+        "ON CONFLICT(group_name) DO UPDATE SET reserved_offset = MAX(reserved_offset, excluded.reserved_offset)";
+    
+    private static void reserveOffsets(PooledConnection conn, String sql, Map<String, Long> reservedOffsets) throws SQLException {
+        if (reservedOffsets.isEmpty()) {
+            return;
+        }
+        PreparedStatement pstmt = conn.prepare(sql);
+        for (Map.Entry<String, Long> entry : reservedOffsets.entrySet()) {
+            pstmt.setString(1, entry.getKey());
+            pstmt.setLong(2, entry.getValue());
+            pstmt.addBatch();
+        }
+        pstmt.executeBatch();
+    }
+    
+    /** Stores acknowledged offsets in one transaction. Returns false if the write failed. */
+    public static boolean storeDeliveryAcks(Map<String, Long> ackedOffsets) {
+        String sql = "UPDATE delivery_cursors SET acked_offset = MAX(acked_offset, ?) WHERE receiver = ?";
+        
+        try {
+            inWriteTransaction("storeDeliveryAcks", conn -> {
+                PreparedStatement pstmt = conn.prepare(sql);
+                for (Map.Entry<String, Long> entry : ackedOffsets.entrySet()) {
+                    pstmt.setLong(1, entry.getValue());
+                    pstmt.setString(2, entry.getKey());
+                    pstmt.addBatch();
+                }
+                return pstmt.executeBatch();
+            });
+            return true;
+        } catch (SQLException e) {
+            log.error("storeDeliveryAcks failed", e);
+            return false;
+        }
+    }
+    
+    public static List<DeliveryCursor> loadDeliveryCursors() {
+        String sql = "SELECT receiver, acked_offset, reserved_offset FROM delivery_cursors";
+        List<DeliveryCursor> cursors = new ArrayList<>();
+        
+        try {
+            withReader("loadDeliveryCursors", conn -> {
+                PreparedStatement pstmt = conn.prepare(sql);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        cursors.add(new DeliveryCursor(rs.getString("receiver"), rs.getLong("acked_offset"), rs.getLong("reserved_offset")));
+                    }
+                }
+                return null;
+            });
+        } catch (SQLException e) {
+            log.error("loadDeliveryCursors failed", e);
+        }
+        
+        return cursors;
+    }
+    
+    /**
+     * Persisted messages for {@code receiver} with a delivery offset strictly
+     * between {@code afterOffset} and {@code beforeOffset}, in offset order.
+     */
+    public static List<ChatServer.Message> loadUndeliveredMessages(String receiver, long afterOffset, long beforeOffset, int limit) {
+        String sql = "SELECT sender, seq, content, codec, type, timestamp, delivery_offset FROM messages " +
+            "WHERE receiver = ? AND delivery_offset > ? AND delivery_offset < ? ORDER BY delivery_offset LIMIT ?";
+        List<ChatServer.Message> messages = new ArrayList<>();
+        
+        try {
+            withReader("loadUndeliveredMessages", conn -> {
+                PreparedStatement pstmt = conn.prepare(sql);
+                pstmt.setString(1, receiver);
+                pstmt.setLong(2, afterOffset);
+                pstmt.setLong(3, beforeOffset);
+                pstmt.setInt(4, limit);
+                
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        ChatServer.Message message = new ChatServer.Message(rs.getString("sender"), receiver,
+                            rs.getInt("seq"), readContent(rs), rs.getString("type"));
+                        message.timestamp = rs.getLong("timestamp");
+                        message.offset = rs.getLong("delivery_offset");
+                        messages.add(message);
+                    }
+                }
+                return null;
+            });
+        } catch (SQLException e) {
+            log.error("loadUndeliveredMessages failed", e);
+        }
+        
+        return messages;
+    }
+    
+    static class GroupMember {
+        final String group;
+        final String user;
+        final long ackedOffset; // every group offset up to here was acknowledged by the member
+        
+        GroupMember(String group, String user, long ackedOffset) {
+            this.group = group;
+            this.user = user;
+            this.ackedOffset = ackedOffset;
+        }
+    }
+    
+    /** Group name to reserved offset for every group channel. */
+    public static Map<String, Long> loadGroupChannels() {
+        String sql = "SELECT group_name, reserved_offset FROM group_channels";
+        Map<String, Long> groups = new HashMap<>();
+        
+        try {
+            withReader("loadGroupChannels", conn -> {
+                PreparedStatement pstmt = conn.prepare(sql);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        groups.put(rs.getString("group_name"), rs.getLong("reserved_offset"));
+                    }
+                }
+                return null;
+            });
+        } catch (SQLException e) {
+            log.error("loadGroupChannels failed", e);
+        }
+        
+        return groups;
+    }
+    
+    public static boolean storeGroupMember(GroupMember member) {
+        String sql = "INSERT OR REPLACE INTO group_members (group_name, user, acked_offset) VALUES (?, ?, ?)";
+        
+        try {
+            inWriteTransaction("storeGroupMember", conn -> {
+                PreparedStatement pstmt = conn.prepare(sql);
+                pstmt.setString(1, member.group);
+                pstmt.setString(2, member.user);
+                pstmt.setLong(3, member.ackedOffset);
+                
+                return pstmt.executeUpdate();
+            });
+            return true;
+        } catch (SQLException e) {
+            log.error("storeGroupMember failed", e);
+            return false;
+        }
+    }
+    
+    public static boolean removeGroupMember(String group, String user) {
+        String sql = "DELETE FROM group_members WHERE group_name = ? AND user = ?";
+        
+        try {
+            inWriteTransaction("removeGroupMember", conn -> {
+                PreparedStatement pstmt = conn.prepare(sql);
+                pstmt.setString(1, group);
+                pstmt.setString(2, user);
+                
+                return pstmt.executeUpdate();
+            });
+            return true;
+        } catch (SQLException e) {
+            log.error("removeGroupMember failed", e);
+            return false;
+        }
+    }
+    
+    /** Stores members' read cursors in one transaction. Returns false if the write failed. */
+    public static boolean storeGroupAcks(List<GroupMember> cursors) {
+        String sql = "UPDATE group_members SET acked_offset = MAX(acked_offset, ?) WHERE group_name = ? AND user = ?";
+        
+        try {
+            inWriteTransaction("storeGroupAcks", conn -> {
+                PreparedStatement pstmt = conn.prepare(sql);
+                for (GroupMember cursor : cursors) {
+                    pstmt.setLong(1, cursor.ackedOffset);
+                    pstmt.setString(2, cursor.group);
+                    pstmt.setString(3, cursor.user);
+                    pstmt.addBatch();
+                }
+                return pstmt.executeBatch();
+            });
+            return true;
+        } catch (SQLException e) {
+            log.error("storeGroupAcks failed", e);
+            return false;
+        }
+    }
+    
+    public static List<GroupMember> loadGroupMembers() {
+        String sql = "SELECT group_name, user, acked_offset FROM group_members";
+        List<GroupMember> members = new ArrayList<>();
+        
+        try {
+            withReader("loadGroupMembers", conn -> {
+                PreparedStatement pstmt = conn.prepare(sql);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        members.add(new GroupMember(rs.getString("group_name"), rs.getString("user"), rs.getLong("acked_offset")));
+                    }
+                }
+                return null;
+            });
+        } catch (SQLException e) {
+            log.error("loadGroupMembers failed", e);
+        }
+        
+        return members;
+    }
+    
+    /**
+     * Committed messages of {@code group} with a group offset strictly between
+     * {@code afterOffset} and {@code beforeOffset}, in offset order, or null
+     * if they could not be read: an offset missing from the list has no row.
+     */
+    public static List<ChatServer.Message> loadGroupMessages(String group, long afterOffset, long beforeOffset, int limit) {
+        String sql = "SELECT sender, seq, content, codec, type, timestamp, delivery_offset FROM messages " +
+            "WHERE receiver = ? AND delivery_offset > ? AND delivery_offset < ? ORDER BY delivery_offset LIMIT ?";
+        List<ChatServer.Message> messages = new ArrayList<>();
+        
+        try {
+            withReader("loadGroupMessages", conn -> {
+                PreparedStatement pstmt = conn.prepare(sql);
+                pstmt.setString(1, group);
+                pstmt.setLong(2, afterOffset);
+                pstmt.setLong(3, beforeOffset);
+                pstmt.setInt(4, limit);
+                
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        ChatServer.Message message = new ChatServer.Message(rs.getString("sender"), group,
+                            rs.getInt("seq"), readContent(rs), rs.getString("type"));
+                        message.timestamp = rs.getLong("timestamp");
+                        message.offset = rs.getLong("delivery_offset");
+                        messages.add(message);
+                    }
+                }
+                return null;
+            });
         } catch (SQLException e) {
-            e.printStackTrace();
+            log.error("loadGroupMessages failed", e);
+            return null;
+        }
+        
+        return messages;
+    }
+    
+    static class ChannelCheckpoint {
+        final String sender;
+        final String receiver;
+        final int nextSeq;
+        final long lastActivity;
+        
+        ChannelCheckpoint(String sender, String receiver, int nextSeq, long lastActivity) {
+            this.sender = sender;
+            this.receiver = receiver;
+            this.nextSeq = nextSeq;
+            this.lastActivity = lastActivity;
         }
     }
+    
+    /**
+     * Folds messages committed since the last checkpoint into
+     * channel_checkpoint and forgets channels idle since {@code idleBefore}.
+     * The checkpoint is derived from committed rows only, so it never runs
+     * ahead of what a restart can see. Returns the number of messages folded.
+     */
+    public static long checkpointChannels(long idleBefore) throws SQLException {
+        return inWriteTransaction("checkpointChannels", conn -> {
+            long from = readCheckpointMark(conn);
+            long through;
+            try (ResultSet rs = conn.prepare("SELECT COALESCE(MAX(id), 0) FROM messages").executeQuery()) {
+                through = rs.next() ? rs.getLong(1) : 0;
+            }
+            if (through > from) {
+                // Within a group the bare columns come from the row holding MAX(id): the newest message on the channel
+                PreparedStatement fold = conn.prepare("INSERT INTO channel_checkpoint (receiver, sender, next_seq, last_activity) " +
+                    "SELECT receiver, sender, seq + 1, timestamp FROM (" +
+                    "SELECT receiver, sender, seq, timestamp, MAX(id) FROM messages WHERE id > ? AND id <= ? GROUP BY receiver, sender) " +
+                    "WHERE true ON CONFLICT(receiver, sender) DO UPDATE SET next_seq = excluded.next_seq, last_activity = excluded.last_activity");
+                fold.setLong(1, from);
+                fold.setLong(2, through);
+                fold.executeUpdate();
+                
+                PreparedStatement mark = conn.prepare("INSERT INTO checkpoint_meta (name, value) VALUES ('channels_through_id', ?) " +
+                    "ON CONFLICT(name) DO UPDATE SET value = excluded.value");
+                mark.setLong(1, through);
+                mark.executeUpdate();
+            }
+            PreparedStatement expire = conn.prepare("DELETE FROM channel_checkpoint WHERE last_activity < ?");
+            expire.setLong(1, idleBefore);
+            expire.executeUpdate();
+            return through - from;
+        });
+    }
+    
+    private static long readCheckpointMark(PooledConnection conn) throws SQLException {
+        try (ResultSet rs = conn.prepare("SELECT value FROM checkpoint_meta WHERE name = 'channels_through_id'").executeQuery()) {
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+    
+    /**
+     * Sequence state of every channel active since {@code activeSince}: the
+     * last checkpoint, overlaid with the messages committed after it. The
+     * tail is read newest first and stops at the first message older than
+     * {@code activeSince}, so without a checkpoint the scan is bounded by
+     * recent traffic rather than by the size of the table.
+     */
+    public static List<ChannelCheckpoint> loadChannelState(long activeSince) {
+        Map<String, ChannelCheckpoint> channels = new HashMap<>();
+        
+        try {
+            withReader("loadChannelState", conn -> {
+                long mark = readCheckpointMark(conn);
+                
+                PreparedStatement pstmt = conn.prepare("SELECT receiver, sender, next_seq, last_activity FROM channel_checkpoint WHERE last_activity >= ?");
+                pstmt.setLong(1, activeSince);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        ChannelCheckpoint channel = new ChannelCheckpoint(rs.getString("sender"), rs.getString("receiver"),
+                            rs.getInt("next_seq"), rs.getLong("last_activity"));
+                        channels.put(channel.sender + '\0' + channel.receiver, channel);
+                    }
+                }
+                
+                Set<String> seen = new HashSet<>();
+                pstmt = conn.prepare("SELECT sender, receiver, seq, timestamp FROM messages WHERE id > ? ORDER BY id DESC");
+                pstmt.setLong(1, mark);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        long timestamp = rs.getLong("timestamp");
+                        if (timestamp < activeSince) {
+                            break;
+                        }
+                        String key = rs.getString("sender") + '\0' + rs.getString("receiver");
+                        if (seen.add(key)) { // newest message on the channel wins over the checkpoint
+                            channels.put(key, new ChannelCheckpoint(rs.getString("sender"), rs.getString("receiver"),
+                                rs.getInt("seq") + 1, timestamp));
+                        }
+                    }
+                }
+                return null;
+            });
+        } catch (SQLException e) {
+            log.error("loadChannelState failed", e);
+        }
+        
+        return new ArrayList<>(channels.values());
+    }
 }
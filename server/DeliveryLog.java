@@ -0,0 +1,451 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded per-user delivery log.
+ *
+ * Every message queued for a receiver is stamped with a per-user delivery
+ * offset. The newest entries live in a fixed-size ring indexed by offset, so
+ * "everything after offset N" is a seek rather than a scan. Entries are
+ * dropped once the receiver acknowledges them through /receive's lastAck.
+ * When a receiver falls more than the ring capacity behind, the oldest
+ * entries are spilled to the delivery_backlog table and paged back in on the
+ * next read. The spill goes through the write-behind queue, and an evicted
+ * entry is read from memory until its row has committed.
+ *
+ * Offsets survive restarts. They are reserved in blocks of
+ * chat.deliveryLog.offsetBlock through delivery_cursors, so a restarted
+ * server never reissues an offset a client may already have acknowledged.
+ * The next block is queued for reservation once half of the current one is
+ * used, so an append never waits for it.
+ * Acknowledged offsets are written back by {@link #checkpoint}. After a
+ * restart {@link #recover} reads only the cursors. A receiver's log is
+ * opened on first use, and its reads page in what was persisted above the
+ * acknowledged offset, under the offsets it was first delivered with.
+ *
+ * Most registered users are idle at any moment, so a log costs little until
+ * it is used. The ring starts at {@link #INITIAL_RING} slots and doubles up
+ * to the capacity as the backlog grows. {@link #offloadIdle} spills the
+ * entries of logs that have not been used for chat.deliveryLog.idleMs to
+ * delivery_backlog and releases their rings. The next read pages them back
+ * in from there.
+ */
+public class DeliveryLog {
+    private static final Logger logger = LoggerFactory.getLogger(DeliveryLog.class); // "log" is taken by UserLog locals
+    static final int DEFAULT_CAPACITY = ServerConfig.getInt("chat.deliveryLog.capacity", 1000);
+    static final int MAX_BATCH = ServerConfig.getInt("chat.deliveryLog.maxBatch", 500);
+    static final int OFFSET_BLOCK = ServerConfig.getInt("chat.deliveryLog.offsetBlock", 1024);
+    static final long IDLE_MS = ServerConfig.getLong("chat.deliveryLog.idleMs", 300000); // 5 minutes
+    static final int INITIAL_RING = 8;
+    private static final int OFFLOAD_BATCH = 1000; // users spilled per transaction
+
+    private final int capacity;
+    private final WriteBehindQueue writeBehind;
+    private final Map<String, UserLog> logs = new ConcurrentHashMap<>();
+    private final AtomicLong evictions = new AtomicLong();
+    private final Set<String> dirtyAcks = ConcurrentHashMap.newKeySet();
+    // Cursors of receivers that have not been touched since recovery; their logs resume from these
+    private final Map<String, DatabaseManager.DeliveryCursor> resumeOffsets = new ConcurrentHashMap<>();
+
+    public DeliveryLog(WriteBehindQueue writeBehind) {
+        this(DEFAULT_CAPACITY, writeBehind);
+    }
+
+    public DeliveryLog(int capacity, WriteBehindQueue writeBehind) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        this.writeBehind = writeBehind;
+    }
+
+    /** An entry evicted from a ring, on its way to delivery_backlog. */
+    private static final class Spill {
+        final ChatServer.Message message;
+        volatile boolean written; // committed, or lost with its batch
+
+        Spill(ChatServer.Message message) {
+            this.message = message;
+        }
+    }
+
+    private class UserLog {
+        final String user;
+        ChatServer.Message[] ring; // null until the first append and after an idle offload
+        ArrayDeque<Spill> spilling; // evicted entries not yet in delivery_backlog, oldest first; up to head; null if none
+        volatile long lastUsed = System.currentTimeMillis();
+        long nextOffset = 0;   // offset the next appended message receives
+        long head = 0;         // lowest offset still held in the ring
+        long spilledFrom = 0;  // lowest unacknowledged offset in delivery_backlog; == head when nothing is spilled
+        long reservedTo = 0;   // offsets below this are reserved in delivery_cursors
+        long recoveredTo = 0;  // offsets below this were handed out before the restart; read from messages too
+        long recoveredEnd = 0; // no entry from before the restart at or above this; lowered as reads find the end
+
+        UserLog(String user) {
+            this.user = user;
+        }
+
+        /** A log that resumes from its persisted cursor, with everything above the acked offset still to read. */
+        UserLog(String user, DatabaseManager.DeliveryCursor cursor) {
+            this.user = user;
+            this.nextOffset = cursor.reservedOffset;
+            this.head = cursor.reservedOffset;
+            this.reservedTo = cursor.reservedOffset;
+            this.spilledFrom = Math.min(cursor.ackedOffset + 1, cursor.reservedOffset);
+            this.recoveredTo = cursor.reservedOffset;
+            this.recoveredEnd = cursor.reservedOffset;
+        }
+
+        /**
+         * The offset to reserve through once half of the current block is
+         * used, or -1. Best effort: a failed reservation only matters if the
+         * server also crashes before the next one.
+         */
+        synchronized long reserveAhead() {
+            if (nextOffset + OFFSET_BLOCK / 2 < reservedTo) {
+                return -1;
+            }
+            reservedTo += OFFSET_BLOCK;
+            return reservedTo;
+        }
+
+        /** Appends the message and returns the entry evicted to make room, which the caller must spill, or null. */
+        synchronized Spill append(ChatServer.Message message) {
+            lastUsed = System.currentTimeMillis();
+            Spill evicted = null;
+            if (ring == null || (nextOffset - head == ring.length && (ring.length < capacity || ring[slot(head)].held))) {
+                grow();
+            }
+            if (nextOffset - head >= capacity && !ring[slot(head)].held) {
+                // Ring is full: page the oldest entry out to SQLite
+                int slot = slot(head);
+                evicted = new Spill(ring[slot]);
+                ring[slot] = null;
+                pendingSpillFrom();
+                if (spilling == null) {
+                    spilling = new ArrayDeque<>();
+                }
+                spilling.addLast(evicted);
+                head++;
+                evictions.incrementAndGet();
+            }
+            message.offset = nextOffset;
+            ring[slot(nextOffset)] = message;
+            nextOffset++;
+            return evicted;
+        }
+
+        /** Forgets the spills that have been written; every entry below the returned offset and head is in delivery_backlog. */
+        private long pendingSpillFrom() {
+            while (spilling != null && !spilling.isEmpty() && spilling.peekFirst().written) {
+                spilling.pollFirst();
+            }
+            if (spilling == null || spilling.isEmpty()) {
+                spilling = null;
+                return head;
+            }
+            return spilling.peekFirst().message.offset;
+        }
+        
+        /** Doubles the ring, up to the capacity unless held entries are keeping it full. */
+        private void grow() {
+            int size = ring == null ? Math.min(INITIAL_RING, capacity)
+                : ring.length < capacity ? Math.min(ring.length * 2, capacity) : ring.length * 2;
+            ChatServer.Message[] grown = new ChatServer.Message[size];
+            for (long offset = head; offset < nextOffset; offset++) {
+                grown[(int) (offset % size)] = ring[slot(offset)];
+            }
+            ring = grown;
+        }
+        
+        private int slot(long offset) {
+            return (int) (offset % ring.length);
+        }
+
+        synchronized void trim(long lastAck) {
+            if (lastAck >= nextOffset) {
+                lastAck = nextOffset - 1;
+            }
+            if (lastAck < spilledFrom) {
+                return;
+            }
+            if (spilledFrom < head) {
+                DatabaseManager.trimDeliveryBacklog(user, lastAck);
+            }
+            while (spilling != null && !spilling.isEmpty() && spilling.peekFirst().message.offset <= lastAck) {
+                spilling.pollFirst();
+            }
+            while (head <= lastAck) {
+                ring[slot(head)] = null;
+                head++;
+            }
+            spilledFrom = lastAck + 1; // never past head: the loop above guarantees head > lastAck
+            dirtyAcks.add(user);
+        }
+
+        synchronized List<ChatServer.Message> readAfter(long lastAck, long sentThrough, int max) {
+            lastUsed = System.currentTimeMillis();
+            trim(lastAck);
+            List<ChatServer.Message> result = new ArrayList<>();
+            long from = Math.max(Math.max(lastAck, sentThrough) + 1, spilledFrom);
+            if (from < recoveredEnd) {
+                result.addAll(readRecovered(from, max));
+                if (result.size() == max) {
+                    return result;
+                }
+                recoveredEnd = result.isEmpty() ? from : result.get(result.size() - 1).offset + 1;
+            }
+            from = Math.max(from, recoveredTo);
+            if (from < head) {
+                long backlogTo = pendingSpillFrom();
+                if (from < backlogTo) {
+                    result.addAll(DatabaseManager.loadDeliveryBacklog(user, from - 1,
+                        (int) Math.min(max - result.size(), backlogTo - from)));
+                }
+                if (spilling != null) {
+                    for (Spill pending : spilling) {
+                        if (result.size() == max) {
+                            break;
+                        }
+                        if (pending.message.offset >= from) {
+                            result.add(pending.message);
+                        }
+                    }
+                }
+                from = head;
+            }
+            for (long offset = from; offset < nextOffset && result.size() < max && !ring[slot(offset)].held; offset++) {
+                result.add(ring[slot(offset)]);
+            }
+            return result;
+        }
+
+        /**
+         * Up to {@code max} entries from before the restart at or above
+         * {@code from}: persisted messages, and spilled entries such as file
+         * chunk notifications that never had a messages row. The offsets may
+         * have gaps where the write-behind queue lost a row.
+         */
+        private List<ChatServer.Message> readRecovered(long from, int max) {
+            NavigableMap<Long, ChatServer.Message> merged = new TreeMap<>();
+            for (ChatServer.Message spilled : DatabaseManager.loadDeliveryBacklog(user, from - 1, max)) {
+                if (spilled.offset < recoveredTo) {
+                    merged.put(spilled.offset, spilled);
+                }
+            }
+            for (ChatServer.Message stored : DatabaseManager.loadUndeliveredMessages(user, from - 1, recoveredTo, max)) {
+                merged.putIfAbsent(stored.offset, stored);
+            }
+            List<ChatServer.Message> result = new ArrayList<>(Math.min(max, merged.size()));
+            for (ChatServer.Message message : merged.values()) {
+                if (result.size() == max) {
+                    break;
+                }
+                result.add(message);
+            }
+            return result;
+        }
+
+        synchronized boolean hasAfter(long lastAck) {
+            long from = Math.max(lastAck + 1, spilledFrom);
+            if (from < recoveredEnd) {
+                return true;
+            }
+            from = Math.max(from, recoveredTo);
+            return from < nextOffset && (from < head || !ring[slot(from)].held);
+        }
+
+        /** Unacknowledged entries; after a restart an upper bound until the recovered ones have been read. */
+        synchronized long depth() {
+            return Math.max(0, recoveredEnd - spilledFrom) + nextOffset - Math.max(spilledFrom, recoveredTo);
+        }
+        
+        /** Drops the ring once everything below {@code spilledTo} is in delivery_backlog, unless entries were appended since. */
+        synchronized boolean release(long spilledTo) {
+            if (nextOffset != spilledTo) {
+                return false;
+            }
+            evictions.addAndGet(nextOffset - head);
+            head = nextOffset;
+            ring = null;
+            return true;
+        }
+    }
+
+    /**
+     * Appends a message to the receiver's log and returns its delivery offset.
+     * The reservation and spill it may need are queued after the log's lock is
+     * released, since the write-behind queue can push back.
+     */
+    public long append(String user, ChatServer.Message message) {
+        UserLog log = logs.computeIfAbsent(user, this::openLog);
+        long reserve;
+        Spill evicted;
+        synchronized (log) {
+            reserve = log.reserveAhead();
+            evicted = log.append(message);
+        }
+        if (reserve >= 0) {
+            writeBehind.enqueueReservation(user, reserve);
+        }
+        if (evicted != null) {
+            writeBehind.enqueueSpill(user, evicted.message).whenComplete((ok, error) -> evicted.written = true);
+        }
+        return message.offset;
+    }
+
+    private UserLog openLog(String user) {
+        DatabaseManager.DeliveryCursor cursor = resumeOffsets.remove(user);
+        return cursor != null ? new UserLog(user, cursor) : new UserLog(user);
+    }
+
+    /** The receiver's log, opening it if the receiver has a cursor from before the restart; null otherwise. */
+    private UserLog find(String user) {
+        UserLog log = logs.get(user);
+        if (log == null && resumeOffsets.containsKey(user)) {
+            log = logs.computeIfAbsent(user, this::openLog);
+        }
+        return log;
+    }
+
+    /**
+     * Seeds the cursors after a restart, without touching any receiver's
+     * messages. Each log is opened on first use: it resumes numbering at the
+     * reserved offset, and its reads page in the messages persisted above the
+     * acked offset. Messages that were delivered but not yet acknowledged when
+     * the server stopped are delivered a second time, under the same offsets.
+     * Returns the number of receivers with a cursor.
+     */
+    public int recover() {
+        for (DatabaseManager.DeliveryCursor cursor : DatabaseManager.loadDeliveryCursors()) {
+            resumeOffsets.put(cursor.receiver, cursor);
+        }
+        return resumeOffsets.size();
+    }
+
+    /**
+     * Releases the ring of every log that has not been appended to or read
+     * since {@code cutoff}. Entries still held are spilled to delivery_backlog
+     * first, for up to {@link #OFFLOAD_BATCH} users per transaction. A log
+     * appended to during its spill, or with an eviction not yet written,
+     * keeps its ring until the next sweep.
+     * Returns the number of logs released.
+     */
+    public int offloadIdle(long cutoff) {
+        Map<UserLog, Long> batch = new HashMap<>(); // log -> its nextOffset when its entries were copied
+        Map<String, List<ChatServer.Message>> entries = new HashMap<>();
+        int released = 0;
+        nextLog:
+        for (UserLog log : logs.values()) {
+            if (log.lastUsed > cutoff) {
+                continue;
+            }
+            synchronized (log) {
+                if (log.ring == null || log.pendingSpillFrom() < log.head) {
+                    continue; // a spill still on its way would sit between the backlog and the entries spilled here
+                }
+                if (log.head < log.nextOffset) {
+                    List<ChatServer.Message> held = new ArrayList<>((int) (log.nextOffset - log.head));
+                    for (long offset = log.head; offset < log.nextOffset; offset++) {
+                        ChatServer.Message message = log.ring[log.slot(offset)];
+                        if (message.held) {
+                            continue nextLog; // not readable yet, so not spillable either
+                        }
+                        held.add(message);
+                    }
+                    entries.put(log.user, held);
+                }
+                batch.put(log, log.nextOffset);
+            }
+            if (batch.size() == OFFLOAD_BATCH) {
+                released += offload(batch, entries);
+                batch.clear();
+                entries.clear();
+            }
+        }
+        return released + offload(batch, entries);
+    }
+
+    private int offload(Map<UserLog, Long> batch, Map<String, List<ChatServer.Message>> entries) {
+        if (!entries.isEmpty() && !DatabaseManager.spillDeliveryEntries(entries)) {
+            return 0; // the rings stay; the next sweep tries again
+        }
+        int released = 0;
+        for (Map.Entry<UserLog, Long> log : batch.entrySet()) {
+            if (log.getKey().release(log.getValue())) {
+                released++;
+            }
+        }
+        return released;
+    }
+
+    /** Writes the acknowledged offset of every receiver that acked since the last checkpoint. */
+    public void checkpoint() {
+        if (dirtyAcks.isEmpty()) {
+            return;
+        }
+        Map<String, Long> acked = new HashMap<>();
+        for (String user : dirtyAcks) {
+            dirtyAcks.remove(user);
+            UserLog log = logs.get(user);
+            if (log != null) {
+                synchronized (log) {
+                    acked.put(user, log.spilledFrom - 1);
+                }
+            }
+        }
+        if (!DatabaseManager.storeDeliveryAcks(acked)) {
+            dirtyAcks.addAll(acked.keySet()); // retry on the next checkpoint
+        }
+    }
+
+    /**
+     * Returns up to {@code max} messages with an offset above {@code lastAck},
+     * dropping everything at or below it first.
+     */
+    public List<ChatServer.Message> readAfter(String user, long lastAck, int max) {
+        return readAfter(user, lastAck, lastAck, max);
+    }
+
+    /**
+     * As {@link #readAfter(String, long, int)}, but skips the unacknowledged
+     * messages up to {@code sentThrough} that a push transport has already
+     * sent.
+     */
+    public List<ChatServer.Message> readAfter(String user, long lastAck, long sentThrough, int max) {
+        UserLog log = find(user);
+        return log != null ? log.readAfter(lastAck, sentThrough, max) : Collections.emptyList();
+    }
+
+    public boolean hasAfter(String user, long lastAck) {
+        UserLog log = find(user);
+        return log != null && log.hasAfter(lastAck);
+    }
+
+    /** Unacknowledged messages for one user, in memory and spilled. */
+    public long backlogDepth(String user) {
+        UserLog log = find(user);
+        return log != null ? log.depth() : 0;
+    }
+
+    /** Unacknowledged messages across all users. */
+    public long totalBacklogDepth() {
+        long total = 0;
+        for (UserLog log : logs.values()) {
+            total += log.depth();
+        }
+        return total;
+    }
+
+    /** Entries paged out to SQLite because a receiver's ring was full or its log went idle. */
+    public long evictions() {
+        return evictions.get();
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+}
@@ -0,0 +1,198 @@
+import java.io.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Content-addressed, on-disk store for file chunks.
+ *
+ * Chunk bodies are streamed to disk while their SHA-256 is computed and then
+ * kept as chat.files.dir/blobs/&lt;2 hex&gt;/&lt;sha256&gt;. Identical content,
+ * whether a retransmission or the same bytes in another transfer, is stored
+ * once. Which blob makes up which chunk of which transfer is recorded in the
+ * file_chunk_refs table. Downloads are streamed back with
+ * FileChannel.transferTo, so neither path holds a whole chunk, let alone a
+ * whole file, on the heap.
+ *
+ * A chunk that shrinks by at least a tenth under deflate is kept as a
+ * Compression segment, &lt;sha256&gt;.deflate, instead. The sha256 is
+ * always that of the original bytes, and the codec travels with the chunk
+ * reference.
+ */
+public class FileStore {
+    private static final String[] CODECS = {Compression.IDENTITY, Compression.DEFLATE};
+
+    private final Path blobRoot;
+    private final long maxChunkBytes;
+
+    /** Where a chunk ended up. */
+    static class StoredBlob {
+        final String sha256;
+        final long size;            // of the original bytes
+        final long crc32;           // of the original bytes
+        final String codec;         // how the blob is stored: Compression.IDENTITY or DEFLATE
+        final boolean deduplicated; // the content was already in the store
+
+        StoredBlob(String sha256, long size, long crc32, String codec, boolean deduplicated) {
+            this.sha256 = sha256;
+            this.size = size;
+            this.crc32 = crc32;
+            this.codec = codec;
+            this.deduplicated = deduplicated;
+        }
+    }
+
+    public FileStore() {
+        this(Paths.get(ServerConfig.getString("chat.files.dir", "files")),
+            ServerConfig.getLong("chat.files.maxChunkBytes", 1024 * 1024));
+    }
+
+    public FileStore(Path root, long maxChunkBytes) {
+        this.blobRoot = root.resolve("blobs");
+        this.maxChunkBytes = maxChunkBytes;
+    }
+
+    /**
+     * Streams one chunk from {@code in} into the store.
+     *
+     * @param expectedSha256 hex digest the client computed, or null to skip the check
+     * @throws ChunkTooLargeException if the body exceeds chat.files.maxChunkBytes
+     * @throws IntegrityException if the content does not match {@code expectedSha256}
+     */
+    public StoredBlob storeChunk(InputStream in, String expectedSha256) throws IOException {
+        Files.createDirectories(blobRoot);
+        Path tmp = Files.createTempFile(blobRoot, "upload", ".tmp");
+        try {
+            MessageDigest digest = sha256();
+            CRC32 crc = new CRC32();
+            long written = 0;
+            byte[] buffer = new byte[8192];
+            try (OutputStream out = new CheckedOutputStream(new DigestOutputStream(Files.newOutputStream(tmp), digest), crc)) {
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    written += read;
+                    if (written > maxChunkBytes) {
+                        throw new ChunkTooLargeException(maxChunkBytes);
+                    }
+                    out.write(buffer, 0, read);
+                }
+            }
+            String hash = toHex(digest.digest());
+            if (expectedSha256 != null && !expectedSha256.equalsIgnoreCase(hash)) {
+                throw new IntegrityException(expectedSha256, hash);
+            }
+
+            for (String codec : CODECS) {
+                if (Files.exists(blobPath(hash, codec))) {
+                    return new StoredBlob(hash, written, crc.getValue(), codec, true);
+                }
+            }
+            String codec = Compression.IDENTITY;
+            Path stored = tmp;
+            if (Compression.STORE && written >= Compression.STORE_MIN_BYTES) {
+                Path deflated = Files.createTempFile(blobRoot, "upload", ".deflate.tmp");
+                try (InputStream raw = Files.newInputStream(tmp); OutputStream out = Files.newOutputStream(deflated)) {
+                    Compression.deflateSegment(raw, out);
+                }
+                if (Files.size(deflated) <= written - written / 10) {
+                    codec = Compression.DEFLATE;
+                    stored = deflated;
+                } else {
+                    Files.delete(deflated);
+                }
+            }
+            Path blob = blobPath(hash, codec);
+            Files.createDirectories(blob.getParent());
+            try {
+                Files.move(stored, blob, StandardCopyOption.ATOMIC_MOVE);
+            } catch (FileAlreadyExistsException e) {
+                return new StoredBlob(hash, written, crc.getValue(), codec, true); // lost a race with an identical upload
+            } finally {
+                Files.deleteIfExists(stored);
+            }
+            return new StoredBlob(hash, written, crc.getValue(), codec, false);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    public StoredBlob storeChunk(byte[] data, String expectedSha256) throws IOException {
+        return storeChunk(new ByteArrayInputStream(data), expectedSha256);
+    }
+
+    public Path blobPath(String sha256, String codec) {
+        String name = Compression.DEFLATE.equals(codec) ? sha256 + ".deflate" : sha256;
+        return blobRoot.resolve(sha256.substring(0, 2)).resolve(name);
+    }
+
+    /** Writes a stored blob to {@code out} as its original bytes. */
+    public static void copyDecoded(Path blob, String codec, OutputStream out) throws IOException {
+        if (!Compression.DEFLATE.equals(codec)) {
+            Files.copy(blob, out);
+            return;
+        }
+        try (InputStream in = Compression.inflating(Files.newInputStream(blob))) {
+            in.transferTo(out);
+        }
+    }
+
+    /** Total size in bytes of the given blobs. */
+    public static long totalSize(List<Path> blobs) throws IOException {
+        long total = 0;
+        for (Path blob : blobs) {
+            total += Files.size(blob);
+        }
+        return total;
+    }
+
+    /** Copies the blobs to {@code out} in order using zero-copy transfers where the platform allows it. */
+    public static void transferTo(List<Path> blobs, OutputStream out) throws IOException {
+        WritableByteChannel target = Channels.newChannel(out);
+        for (Path blob : blobs) {
+            try (FileChannel source = FileChannel.open(blob, StandardOpenOption.READ)) {
+                long position = 0;
+                long size = source.size();
+                while (position < size) {
+                    position += source.transferTo(position, size - position, target);
+                }
+            }
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    static class ChunkTooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        ChunkTooLargeException(long limit) {
+            super("chunk exceeds " + limit + " bytes");
+        }
+    }
+
+    static class IntegrityException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        IntegrityException(String expected, String actual) {
+            super("chunk hash mismatch: expected " + expected + ", got " + actual);
+        }
+    }
+}
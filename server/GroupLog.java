@@ -0,0 +1,375 @@
+import java.util.*;
+import java.util.concurrent.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Group channels, delivered by fan-out on read.
+ *
+ * A group is addressed as a receiver whose name starts with '#'. Each
+ * message sent to it is stored once: one row in messages, with the group as
+ * receiver and its group offset as delivery_offset, and one slot in the
+ * group's ring. Members keep only a read cursor, the highest group offset
+ * they have acknowledged, and /receive merges the groups of the polling user
+ * from their cursors. The write and memory cost of a group message does not
+ * depend on how many members the group has.
+ *
+ * The ring holds the newest chat.groups.capacity messages of each group.
+ * A member further behind pages older ones in from the messages table.
+ * Like a delivery log's, the ring starts small and grows with use, and
+ * {@link #offloadIdle} releases the rings of quiet groups. A message only
+ * leaves the ring once the write-behind queue has settled its row, so
+ * everything below the ring is either in the messages table or was lost by
+ * a failed write (or never used, across a restart) and is skipped. A member
+ * whose cursor trails only such offsets is moved past them. Group offsets
+ * are reserved ahead in blocks through group_channels the way DeliveryLog
+ * reserves delivery offsets. Cursors are written back by
+ * {@link #checkpoint}, and memberships immediately.
+ *
+ * Groups need a single node. In cluster mode no one can join one or send
+ * to one, since their members would be spread over several owners.
+ */
+public class GroupLog {
+    private static final Logger log = LoggerFactory.getLogger(GroupLog.class);
+    static final String PREFIX = "#";
+    static final int DEFAULT_CAPACITY = ServerConfig.getInt("chat.groups.capacity", 1000);
+
+    private final int capacity;
+    private final WriteBehindQueue writeBehind;
+    private final Map<String, Group> groups = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> groupsByMember = new ConcurrentHashMap<>();
+
+    public GroupLog(WriteBehindQueue writeBehind) {
+        this(DEFAULT_CAPACITY, writeBehind);
+    }
+
+    public GroupLog(int capacity, WriteBehindQueue writeBehind) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        this.writeBehind = writeBehind;
+    }
+
+    private class Group {
+        final String name;
+        ChatServer.Message[] ring; // null until the first append and after an idle offload
+        volatile long lastUsed = System.currentTimeMillis();
+        final Map<String, Long> cursors = new ConcurrentHashMap<>(); // member -> highest acknowledged offset
+        final Set<String> dirtyCursors = ConcurrentHashMap.newKeySet();
+        long nextOffset;       // offset the next appended message receives
+        long head;             // lowest offset still held in the ring
+        long reservedTo;       // offsets below this are reserved in group_channels
+
+        Group(String name, long startOffset) {
+            this.name = name;
+            this.nextOffset = startOffset;
+            this.head = startOffset;
+            this.reservedTo = startOffset;
+        }
+
+        /** The offset to reserve through once half of the current block is used, or -1; best effort, as for delivery offsets. */
+        synchronized long reserveAhead() {
+            if (nextOffset + DeliveryLog.OFFSET_BLOCK / 2 < reservedTo) {
+                return -1;
+            }
+            reservedTo += DeliveryLog.OFFSET_BLOCK;
+            return reservedTo;
+        }
+
+        synchronized long append(ChatServer.Message message) {
+            lastUsed = System.currentTimeMillis();
+            // The oldest entries stay readable from their messages rows once the write-behind queue has settled them
+            while (nextOffset - head >= capacity && ring[slot(head)].settled) {
+                ring[slot(head)] = null;
+                head++;
+            }
+            if (ring == null || nextOffset - head == ring.length) {
+                grow();
+            }
+            message.offset = nextOffset;
+            ring[slot(nextOffset)] = message;
+            nextOffset++;
+            return message.offset;
+        }
+        
+        /** Doubles the ring, up to the capacity unless unsettled entries are holding it full. */
+        private void grow() {
+            int size = ring == null ? Math.min(DeliveryLog.INITIAL_RING, capacity)
+                : ring.length < capacity ? Math.min(ring.length * 2, capacity) : ring.length * 2;
+            ChatServer.Message[] grown = new ChatServer.Message[size];
+            for (long offset = head; offset < nextOffset; offset++) {
+                grown[(int) (offset % size)] = ring[slot(offset)];
+            }
+            ring = grown;
+        }
+        
+        private int slot(long offset) {
+            return (int) (offset % ring.length);
+        }
+        
+        /** Empties the ring unless a row is still outstanding; its messages are read from the messages table from then on. */
+        synchronized boolean release() {
+            if (ring == null) {
+                return false;
+            }
+            for (long offset = head; offset < nextOffset; offset++) {
+                if (!ring[slot(offset)].settled) {
+                    return false;
+                }
+            }
+            head = nextOffset;
+            ring = null;
+            return true;
+        }
+
+        synchronized long last() {
+            return nextOffset - 1;
+        }
+
+        /** True if an offset above {@code offset} can be read now. */
+        synchronized boolean hasAfter(long offset) {
+            long from = offset + 1;
+            return from < nextOffset && (from < head || !ring[slot(from)].held);
+        }
+
+        /**
+         * Adds up to {@code max} messages above {@code afterOffset} to
+         * {@code into} and returns the offset read through: nothing at or
+         * below it is left to read. Below the ring every row has settled, so
+         * an offset with no row is skipped.
+         */
+        long readAfter(long afterOffset, int max, List<ChatServer.Message> into) {
+            lastUsed = System.currentTimeMillis();
+            long from = afterOffset + 1;
+            int wanted = max;
+            while (wanted > 0) {
+                long ringHead;
+                synchronized (this) {
+                    if (from >= head) {
+                        for (; from < nextOffset && wanted > 0 && !ring[slot(from)].held; from++, wanted--) {
+                            into.add(ring[slot(from)]);
+                        }
+                        return from - 1;
+                    }
+                    ringHead = head;
+                }
+                List<ChatServer.Message> stored = DatabaseManager.loadGroupMessages(name, from - 1, ringHead, wanted);
+                if (stored == null) {
+                    break;
+                }
+                into.addAll(stored);
+                wanted -= stored.size();
+                from = wanted > 0 ? ringHead : stored.get(stored.size() - 1).offset + 1;
+            }
+            return from - 1;
+        }
+    }
+
+    static boolean isGroup(String receiver) {
+        return receiver != null && receiver.startsWith(PREFIX);
+    }
+
+    /**
+     * Adds {@code user} to {@code group}, creating the group on first join, and
+     * returns the member's cursor. A new member starts at the group's newest
+     * message and does not see the history; joining again changes nothing.
+     */
+    public long join(String group, String user) {
+        Group g = groups.computeIfAbsent(group, name -> new Group(name, 0));
+        Long cursor;
+        boolean added = false;
+        synchronized (g) {
+            cursor = g.cursors.get(user);
+            if (cursor == null) {
+                cursor = g.nextOffset - 1;
+                g.cursors.put(user, cursor);
+                added = true;
+            }
+        }
+        groupsByMember.computeIfAbsent(user, k -> ConcurrentHashMap.newKeySet()).add(group);
+        if (added) {
+            DatabaseManager.storeGroupMember(new DatabaseManager.GroupMember(group, user, cursor));
+        }
+        return cursor;
+    }
+
+    /** Removes {@code user} from {@code group}. Returns false if they were not a member. */
+    public boolean leave(String group, String user) {
+        Group g = groups.get(group);
+        if (g == null || g.cursors.remove(user) == null) {
+            return false;
+        }
+        Set<String> mine = groupsByMember.get(user);
+        if (mine != null) {
+            mine.remove(group);
+        }
+        DatabaseManager.removeGroupMember(group, user);
+        return true;
+    }
+
+    public boolean isMember(String group, String user) {
+        Group g = groups.get(group);
+        return g != null && g.cursors.containsKey(user);
+    }
+
+    /** Current members of {@code group}; empty if there is no such group. */
+    public Set<String> members(String group) {
+        Group g = groups.get(group);
+        return g != null ? Collections.unmodifiableSet(g.cursors.keySet()) : Collections.emptySet();
+    }
+
+    /** Appends a message to the group's log and returns its group offset. The group must exist. */
+    public long append(String group, ChatServer.Message message) {
+        Group g = groups.get(group);
+        long reserve;
+        synchronized (g) {
+            reserve = g.reserveAhead();
+            g.append(message);
+        }
+        if (reserve >= 0) {
+            writeBehind.enqueueReservation(group, reserve); // off the group's lock: the queue may push back
+        }
+        return message.offset;
+    }
+
+    /**
+     * Moves the user's cursors forward to the offsets they acknowledged, keyed
+     * by group. Cursors never move backwards or past the newest message, and
+     * groups the user is not a member of are ignored.
+     */
+    public void ack(String user, Map<String, Long> ackedOffsets) {
+        for (Map.Entry<String, Long> entry : ackedOffsets.entrySet()) {
+            Group g = groups.get(entry.getKey());
+            if (g == null) {
+                continue;
+            }
+            long acked = Math.min(entry.getValue(), g.last());
+            Long before = g.cursors.get(user);
+            if (before != null && acked > before && g.cursors.replace(user, before, acked)) {
+                g.dirtyCursors.add(user);
+            }
+        }
+    }
+
+    /** True if any of the user's groups has a message above the user's cursor. */
+    public boolean hasAfter(String user) {
+        Set<String> mine = groupsByMember.get(user);
+        if (mine == null) {
+            return false;
+        }
+        for (String group : mine) {
+            Group g = groups.get(group);
+            Long cursor = g != null ? g.cursors.get(user) : null;
+            if (cursor != null && g.hasAfter(cursor)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Up to {@code max} messages from the user's groups above their cursors.
+     * Each keeps the group as its receiver and the group offset as its offset.
+     */
+    public List<ChatServer.Message> readAfter(String user, int max) {
+        return readAfter(user, Collections.emptyMap(), max);
+    }
+
+    /**
+     * As {@link #readAfter(String, int)}, but in each group starts above the
+     * offset in {@code sentThrough} where that is past the cursor: what a
+     * push transport has already sent and not yet had acknowledged.
+     */
+    public List<ChatServer.Message> readAfter(String user, Map<String, Long> sentThrough, int max) {
+        Set<String> mine = groupsByMember.get(user);
+        if (mine == null || max <= 0) {
+            return Collections.emptyList();
+        }
+        List<ChatServer.Message> result = new ArrayList<>();
+        for (String group : mine) {
+            Group g = groups.get(group);
+            Long cursor = g != null ? g.cursors.get(user) : null;
+            if (cursor == null) {
+                continue;
+            }
+            long after = Math.max(cursor, sentThrough.getOrDefault(group, cursor));
+            if (g.last() <= after) {
+                continue;
+            }
+            int before = result.size();
+            long readThrough = g.readAfter(after, max - before, result);
+            if (result.size() == before && after == cursor && readThrough > cursor
+                    && g.cursors.replace(user, cursor, readThrough)) {
+                // Only lost or unused offsets lay ahead of the member; acknowledge them on their behalf
+                g.dirtyCursors.add(user);
+            }
+            if (result.size() >= max) {
+                break;
+            }
+        }
+        return result;
+    }
+
+    /** Loads groups and memberships after a restart; each group resumes numbering at its reserved offset. */
+    public void recover() {
+        for (Map.Entry<String, Long> channel : DatabaseManager.loadGroupChannels().entrySet()) {
+            groups.put(channel.getKey(), new Group(channel.getKey(), channel.getValue()));
+        }
+        List<DatabaseManager.GroupMember> members = DatabaseManager.loadGroupMembers();
+        for (DatabaseManager.GroupMember member : members) {
+            Group g = groups.computeIfAbsent(member.group, name -> new Group(name, 0));
+            g.cursors.put(member.user, member.ackedOffset);
+            groupsByMember.computeIfAbsent(member.user, k -> ConcurrentHashMap.newKeySet()).add(member.group);
+        }
+        log.info("Recovered {} groups with {} memberships", groups.size(), members.size());
+    }
+
+    /**
+     * Releases the rings of groups that have not been appended to or read
+     * since {@code cutoff}. Returns the number released.
+     */
+    public int offloadIdle(long cutoff) {
+        int released = 0;
+        for (Group g : groups.values()) {
+            if (g.lastUsed <= cutoff && g.release()) {
+                released++;
+            }
+        }
+        return released;
+    }
+
+    /** Writes the cursor of every member that acknowledged something since the last checkpoint. */
+    public void checkpoint() {
+        List<DatabaseManager.GroupMember> acked = new ArrayList<>();
+        for (Group g : groups.values()) {
+            for (String user : g.dirtyCursors) {
+                g.dirtyCursors.remove(user);
+                Long cursor = g.cursors.get(user);
+                if (cursor != null) {
+                    acked.add(new DatabaseManager.GroupMember(g.name, user, cursor));
+                }
+            }
+        }
+        if (!acked.isEmpty() && !DatabaseManager.storeGroupAcks(acked)) {
+            for (DatabaseManager.GroupMember cursor : acked) {
+                Group g = groups.get(cursor.group);
+                if (g != null) {
+                    g.dirtyCursors.add(cursor.user); // retry on the next checkpoint
+                }
+            }
+        }
+    }
+
+    public int groupCount() {
+        return groups.size();
+    }
+
+    public long membershipCount() {
+        long total = 0;
+        for (Group g : groups.values()) {
+            total += g.cursors.size();
+        }
+        return total;
+    }
+}
@@ -0,0 +1,864 @@
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * Allocation-light JSON codec for the message wire format.
+ *
+ * Requests on the hot paths are parsed straight from the exchange's
+ * InputStream by a pull reader that decodes UTF-8 itself. No body String,
+ * BufferedReader or JSONObject is built along the way. Responses are written
+ * as UTF-8 into a growable byte buffer whose length is the exact
+ * Content-Length. Readers and writers are pooled. A writer whose buffer grew
+ * past chat.codec.maxPooledBytes is dropped rather than pooled, so a single
+ * large response does not pin memory.
+ *
+ * Only what the wire format needs is supported: objects, arrays, strings,
+ * integers, booleans and null. Unknown request fields are skipped.
+ */
+public final class MessageCodec {
+    private static final int POOL_SIZE = ServerConfig.getInt("chat.codec.poolSize", 64);
+    private static final int MAX_POOLED_BYTES = ServerConfig.getInt("chat.codec.maxPooledBytes", 64 * 1024);
+
+    private static final BlockingQueue<JsonReader> readers = new ArrayBlockingQueue<>(POOL_SIZE);
+    private static final BlockingQueue<JsonWriter> writers = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    private static final String[] SEND_FIELDS = {"sender", "receiver", "seq", "message", "type"};
+    private static final String[] BATCH_FIELDS = {"sender", "receiver", "packets"};
+    private static final String[] PACKET_FIELDS = {"seq", "message", "type"};
+    private static final String[] FRAME_FIELDS = {"op", "receiver", "seq", "message", "type", "lastAck", "groupAck"};
+    private static final String[] NO_FIELDS = {};
+
+    private MessageCodec() {
+    }
+
+    /** The fields of a /send-message request. */
+    static class SendRequest {
+        String sender;
+        String receiver;
+        int seq;
+        String message;
+        String type = "text";
+    }
+
+    /**
+     * Parses a /send-message body.
+     *
+     * @throws MalformedJsonException if the body is not valid JSON or a required field is missing
+     */
+    static SendRequest readSendRequest(InputStream in) throws IOException {
+        JsonReader reader = acquireReader(in);
+        try {
+            SendRequest request = new SendRequest();
+            boolean hasSeq = false;
+            reader.beginObject();
+            int field;
+            while ((field = reader.nextField(SEND_FIELDS)) != JsonReader.END) {
+                switch (field) {
+                    case 0:
+                        request.sender = reader.readString();
+                        break;
+                    case 1:
+                        request.receiver = reader.readString();
+                        break;
+                    case 2:
+                        request.seq = reader.readInt();
+                        hasSeq = true;
+                        break;
+                    case 3:
+                        request.message = reader.readString();
+                        break;
+                    case 4:
+                        String type = reader.readString();
+                        if (type != null) {
+                            request.type = type;
+                        }
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            if (request.sender == null || request.receiver == null || request.message == null || !hasSeq) {
+                throw new MalformedJsonException("sender, receiver, seq and message are required");
+            }
+            return request;
+        } finally {
+            release(reader);
+        }
+    }
+
+    /** The fields of a /send-batch request: one channel and its packets in the order they were sent. */
+    static class SendBatchRequest {
+        String sender;
+        String receiver;
+        final List<SendRequest> packets = new ArrayList<>();
+    }
+
+    /**
+     * Parses a /send-batch body, {@code {"sender", "receiver", "packets":
+     * [{"seq", "message", "type"}, ...]}}. Each packet comes back as a
+     * SendRequest carrying the batch's sender and receiver.
+     *
+     * @throws MalformedJsonException if the body is not valid JSON, a required
+     *     field is missing or there are more than {@code maxPackets} packets
+     */
+    static SendBatchRequest readSendBatch(InputStream in, int maxPackets) throws IOException {
+        JsonReader reader = acquireReader(in);
+        try {
+            SendBatchRequest batch = new SendBatchRequest();
+            boolean hasPackets = false;
+            reader.beginObject();
+            int field;
+            while ((field = reader.nextField(BATCH_FIELDS)) != JsonReader.END) {
+                switch (field) {
+                    case 0:
+                        batch.sender = reader.readString();
+                        break;
+                    case 1:
+                        batch.receiver = reader.readString();
+                        break;
+                    case 2:
+                        reader.beginArray();
+                        while (reader.nextElement(batch.packets.size())) {
+                            if (batch.packets.size() == maxPackets) {
+                                throw new MalformedJsonException("at most " + maxPackets + " packets per batch");
+                            }
+                            batch.packets.add(readPacket(reader));
+                        }
+                        hasPackets = true;
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            if (batch.sender == null || batch.receiver == null || !hasPackets) {
+                throw new MalformedJsonException("sender, receiver and packets are required");
+            }
+            for (SendRequest packet : batch.packets) {
+                packet.sender = batch.sender;
+                packet.receiver = batch.receiver;
+            }
+            return batch;
+        } finally {
+            release(reader);
+        }
+    }
+
+    private static SendRequest readPacket(JsonReader reader) throws IOException {
+        SendRequest packet = new SendRequest();
+        boolean hasSeq = false;
+        reader.beginObject();
+        int field;
+        while ((field = reader.nextField(PACKET_FIELDS)) != JsonReader.END) {
+            switch (field) {
+                case 0:
+                    packet.seq = reader.readInt();
+                    hasSeq = true;
+                    break;
+                case 1:
+                    packet.message = reader.readString();
+                    break;
+                case 2:
+                    String type = reader.readString();
+                    if (type != null) {
+                        packet.type = type;
+                    }
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        if (packet.message == null || !hasSeq) {
+            throw new MalformedJsonException("every packet needs seq and message");
+        }
+        return packet;
+    }
+
+    /**
+     * The fields of a WebSocket text frame from a client: {@code "send"}
+     * with the fields of a /send-message request less the sender, or
+     * {@code "ack"} with /receive's lastAck and group offsets.
+     */
+    static class Frame {
+        String op;
+        String receiver;
+        int seq;
+        String message;
+        String type = "text";
+        long lastAck = -1;
+        boolean hasLastAck;
+        Map<String, Long> groupAck = Collections.emptyMap();
+    }
+
+    /**
+     * Parses a client frame, {@code {"op":"send", "receiver", "seq",
+     * "message", "type"}} or {@code {"op":"ack", "lastAck", "groupAck":
+     * {group: offset, ...}}}.
+     *
+     * @throws MalformedJsonException if the frame is not valid JSON, the op is
+     *     unknown or a field the op needs is missing
+     */
+    static Frame readFrame(InputStream in) throws IOException {
+        JsonReader reader = acquireReader(in);
+        try {
+            Frame frame = new Frame();
+            boolean hasSeq = false;
+            reader.beginObject();
+            int field;
+            while ((field = reader.nextField(FRAME_FIELDS)) != JsonReader.END) {
+                switch (field) {
+                    case 0:
+                        frame.op = reader.readString();
+                        break;
+                    case 1:
+                        frame.receiver = reader.readString();
+                        break;
+                    case 2:
+                        frame.seq = reader.readInt();
+                        hasSeq = true;
+                        break;
+                    case 3:
+                        frame.message = reader.readString();
+                        break;
+                    case 4:
+                        String type = reader.readString();
+                        if (type != null) {
+                            frame.type = type;
+                        }
+                        break;
+                    case 5:
+                        frame.lastAck = reader.readLong();
+                        frame.hasLastAck = true;
+                        break;
+                    case 6:
+                        frame.groupAck = new HashMap<>();
+                        reader.beginObject();
+                        while (reader.nextField(NO_FIELDS) != JsonReader.END) {
+                            String group = reader.name();
+                            frame.groupAck.put(group, reader.readLong());
+                        }
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            if ("send".equals(frame.op)) {
+                if (frame.receiver == null || frame.message == null || !hasSeq) {
+                    throw new MalformedJsonException("receiver, seq and message are required");
+                }
+            } else if ("ack".equals(frame.op)) {
+                if (!frame.hasLastAck && frame.groupAck.isEmpty()) {
+                    throw new MalformedJsonException("lastAck or groupAck is required");
+                }
+            } else {
+                throw new MalformedJsonException("unknown op: " + frame.op);
+            }
+            return frame;
+        } finally {
+            release(reader);
+        }
+    }
+
+    /** Writes one message in the /receive wire format. */
+    static void writeMessage(JsonWriter out, ChatServer.Message msg) {
+        out.beginObject()
+            .name("sender").value(msg.sender)
+            .name("seq").value(msg.seq)
+            .name("offset").value(msg.offset)
+            .name("message").value(msg.content)
+            .name("type").value(msg.type)
+            .name("timestamp").value(msg.timestamp);
+        if (GroupLog.isGroup(msg.receiver)) {
+            out.name("group").value(msg.receiver);
+        }
+        if (msg instanceof ChatServer.FileChunk) {
+            ChatServer.FileChunk chunk = (ChatServer.FileChunk) msg;
+            out.name("fileName").value(chunk.fileName)
+                .name("chunkIndex").value(chunk.chunkIndex)
+                .name("totalChunks").value(chunk.totalChunks);
+        }
+        out.endObject();
+    }
+
+    static JsonWriter acquireWriter() {
+        JsonWriter writer = writers.poll();
+        return writer != null ? writer : new JsonWriter();
+    }
+
+    static void release(JsonWriter writer) {
+        if (writer.capacity() <= MAX_POOLED_BYTES) {
+            writer.reset();
+            writers.offer(writer);
+        }
+    }
+
+    private static JsonReader acquireReader(InputStream in) {
+        JsonReader reader = readers.poll();
+        if (reader == null) {
+            reader = new JsonReader();
+        }
+        reader.reset(in);
+        return reader;
+    }
+
+    private static void release(JsonReader reader) {
+        if (reader.charCapacity() * 2 <= MAX_POOLED_BYTES) {
+            reader.reset(null);
+            readers.offer(reader);
+        }
+    }
+
+    static class MalformedJsonException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        MalformedJsonException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Pull parser over a UTF-8 byte stream. Strings are decoded into a
+     * reusable char buffer, so each string value costs exactly one String.
+     */
+    static final class JsonReader {
+        static final int END = -2;     // nextField: the object is closed
+        static final int UNKNOWN = -1; // nextField: a name not in the list
+
+        private final byte[] buf = new byte[8192];
+        private char[] chars = new char[256];
+        private int charCount;
+        private InputStream in;
+        private int pos;
+        private int limit;
+        private boolean needComma;
+
+        void reset(InputStream in) {
+            this.in = in;
+            this.pos = 0;
+            this.limit = 0;
+            this.needComma = false;
+        }
+
+        int charCapacity() {
+            return chars.length;
+        }
+
+        void beginObject() throws IOException {
+            expect('{');
+            needComma = false;
+        }
+
+        void beginArray() throws IOException {
+            expect('[');
+        }
+
+        /**
+         * Advances to element {@code index} of the current array, returning
+         * false once the closing bracket has been consumed.
+         */
+        boolean nextElement(int index) throws IOException {
+            int c = nextNonWhitespace();
+            if (c == ']') {
+                needComma = true; // the array was a value of the enclosing object
+                return false;
+            }
+            if (index > 0) {
+                if (c != ',') {
+                    throw syntaxError("expected ',' or ']'");
+                }
+            } else {
+                unread(c);
+            }
+            return true;
+        }
+
+        /**
+         * Advances to the next field of the current object and returns its
+         * index in {@code names}, {@link #UNKNOWN} for any other name, or
+         * {@link #END} once the closing brace has been consumed.
+         */
+        int nextField(String[] names) throws IOException {
+            int c = nextNonWhitespace();
+            if (c == '}') {
+                needComma = true; // the object was a value of the enclosing one
+                return END;
+            }
+            if (needComma) {
+                if (c != ',') {
+                    throw syntaxError("expected ',' or '}'");
+                }
+                c = nextNonWhitespace();
+            }
+            if (c != '"') {
+                throw syntaxError("expected a field name");
+            }
+            readStringBody();
+            expect(':');
+            needComma = true;
+            for (int i = 0; i < names.length; i++) {
+                if (nameEquals(names[i])) {
+                    return i;
+                }
+            }
+            return UNKNOWN;
+        }
+
+        /** The name of the field {@link #nextField} last advanced to. */
+        String name() {
+            return new String(chars, 0, charCount);
+        }
+
+        /** Reads a string value; JSON null reads as null. */
+        String readString() throws IOException {
+            int c = nextNonWhitespace();
+            if (c == 'n') {
+                expectLiteral("ull");
+                return null;
+            }
+            if (c != '"') {
+                throw syntaxError("expected a string");
+            }
+            readStringBody();
+            return new String(chars, 0, charCount);
+        }
+
+        int readInt() throws IOException {
+            long value = readLong();
+            if (value != (int) value) {
+                throw syntaxError("integer out of range");
+            }
+            return (int) value;
+        }
+
+        long readLong() throws IOException {
+            int c = nextNonWhitespace();
+            boolean negative = c == '-';
+            if (negative) {
+                c = read();
+            }
+            if (c < '0' || c > '9') {
+                throw syntaxError("expected a number");
+            }
+            long value = 0;
+            while (c >= '0' && c <= '9') {
+                if (value > (Long.MAX_VALUE - (c - '0')) / 10) {
+                    throw syntaxError("number out of range");
+                }
+                value = value * 10 + (c - '0');
+                c = read();
+            }
+            if (c == '.' || c == 'e' || c == 'E') {
+                throw syntaxError("expected an integer");
+            }
+            unread(c);
+            return negative ? -value : value;
+        }
+
+        /** Skips one value of any type, including nested objects and arrays. */
+        void skipValue() throws IOException {
+            int depth = 0;
+            do {
+                int c = nextNonWhitespace();
+                switch (c) {
+                    case '{':
+                    case '[':
+                        depth++;
+                        break;
+                    case '}':
+                    case ']':
+                        depth--;
+                        break;
+                    case '"':
+                        skipStringBody();
+                        break;
+                    case ',':
+                    case ':':
+                        if (depth == 0) {
+                            throw syntaxError("expected a value");
+                        }
+                        break;
+                    case -1:
+                        throw syntaxError("unexpected end of input");
+                    default:
+                        // number or literal: consume up to the next delimiter
+                        while (c != -1 && c != ',' && c != '}' && c != ']' && c > ' ') {
+                            c = read();
+                        }
+                        unread(c);
+                }
+            } while (depth > 0);
+        }
+
+        private boolean nameEquals(String name) {
+            if (name.length() != charCount) {
+                return false;
+            }
+            for (int i = 0; i < charCount; i++) {
+                if (name.charAt(i) != chars[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /** Decodes the rest of a string (after the opening quote) into {@code chars}. */
+        private void readStringBody() throws IOException {
+            charCount = 0;
+            while (true) {
+                int b = read();
+                if (b == '"') {
+                    return;
+                }
+                if (b == -1) {
+                    throw syntaxError("unterminated string");
+                }
+                if (b == '\\') {
+                    appendChar(readEscape());
+                } else if (b < 0x80) {
+                    appendChar((char) b);
+                } else {
+                    appendCodePoint(readMultiByte(b));
+                }
+            }
+        }
+
+        private void skipStringBody() throws IOException {
+            while (true) {
+                int b = read();
+                if (b == '"') {
+                    return;
+                }
+                if (b == -1) {
+                    throw syntaxError("unterminated string");
+                }
+                if (b == '\\') {
+                    read();
+                }
+            }
+        }
+
+        private char readEscape() throws IOException {
+            int c = read();
+            switch (c) {
+                case '"':
+                case '\\':
+                case '/':
+                    return (char) c;
+                case 'b':
+                    return '\b';
+                case 'f':
+                    return '\f';
+                case 'n':
+                    return '\n';
+                case 'r':
+                    return '\r';
+                case 't':
+                    return '\t';
+                case 'u':
+                    int value = 0;
+                    for (int i = 0; i < 4; i++) {
+                        int digit = Character.digit(read(), 16);
+                        if (digit < 0) {
+                            throw syntaxError("bad \\u escape");
+                        }
+                        value = (value << 4) | digit;
+                    }
+                    return (char) value; // surrogate pairs arrive as two escapes and need no joining
+                default:
+                    throw syntaxError("bad escape");
+            }
+        }
+
+        private int readMultiByte(int lead) throws IOException {
+            int extra;
+            int codePoint;
+            if ((lead & 0xE0) == 0xC0) {
+                extra = 1;
+                codePoint = lead & 0x1F;
+            } else if ((lead & 0xF0) == 0xE0) {
+                extra = 2;
+                codePoint = lead & 0x0F;
+            } else if ((lead & 0xF8) == 0xF0) {
+                extra = 3;
+                codePoint = lead & 0x07;
+            } else {
+                throw syntaxError("invalid UTF-8");
+            }
+            for (int i = 0; i < extra; i++) {
+                int b = read();
+                if ((b & 0xC0) != 0x80) {
+                    throw syntaxError("invalid UTF-8");
+                }
+                codePoint = (codePoint << 6) | (b & 0x3F);
+            }
+            return codePoint;
+        }
+
+        private void appendCodePoint(int codePoint) {
+            if (Character.isBmpCodePoint(codePoint)) {
+                appendChar((char) codePoint);
+            } else {
+                appendChar(Character.highSurrogate(codePoint));
+                appendChar(Character.lowSurrogate(codePoint));
+            }
+        }
+
+        private void appendChar(char c) {
+            if (charCount == chars.length) {
+                chars = Arrays.copyOf(chars, chars.length * 2);
+            }
+            chars[charCount++] = c;
+        }
+
+        private void expect(char expected) throws IOException {
+            if (nextNonWhitespace() != expected) {
+                throw syntaxError("expected '" + expected + "'");
+            }
+        }
+
+        private void expectLiteral(String rest) throws IOException {
+            for (int i = 0; i < rest.length(); i++) {
+                if (read() != rest.charAt(i)) {
+                    throw syntaxError("bad literal");
+                }
+            }
+        }
+
+        private int nextNonWhitespace() throws IOException {
+            int c;
+            do {
+                c = read();
+            } while (c == ' ' || c == '\n' || c == '\r' || c == '\t');
+            return c;
+        }
+
+        private int read() throws IOException {
+            if (pos == limit) {
+                limit = in.read(buf, 0, buf.length);
+                pos = 0;
+                if (limit <= 0) {
+                    limit = 0;
+                    return -1;
+                }
+            }
+            return buf[pos++] & 0xFF;
+        }
+
+        private void unread(int c) {
+            if (c != -1) {
+                pos--; // the byte is still in buf: read() only refills once pos reaches limit
+            }
+        }
+
+        private MalformedJsonException syntaxError(String message) {
+            return new MalformedJsonException(message);
+        }
+    }
+
+    /** Streaming writer producing UTF-8 into a growable byte buffer. */
+    static final class JsonWriter {
+        private byte[] buf = new byte[1024];
+        private int count;
+        private long commaMask; // bit d set => the container at depth d already holds a value
+        private int depth;
+        private boolean afterName;
+
+        JsonWriter beginObject() {
+            beforeValue();
+            put('{');
+            depth++;
+            commaMask &= ~(1L << depth);
+            return this;
+        }
+
+        JsonWriter endObject() {
+            depth--;
+            put('}');
+            return this;
+        }
+
+        JsonWriter beginArray() {
+            beforeValue();
+            put('[');
+            depth++;
+            commaMask &= ~(1L << depth);
+            return this;
+        }
+
+        JsonWriter endArray() {
+            depth--;
+            put(']');
+            return this;
+        }
+
+        JsonWriter name(String name) {
+            beforeValue();
+            writeString(name);
+            put(':');
+            afterName = true;
+            return this;
+        }
+
+        JsonWriter value(String value) {
+            beforeValue();
+            if (value == null) {
+                writeAscii("null");
+            } else {
+                writeString(value);
+            }
+            return this;
+        }
+
+        JsonWriter value(long value) {
+            beforeValue();
+            if (value == Long.MIN_VALUE) {
+                writeAscii("-9223372036854775808");
+                return this;
+            }
+            if (value < 0) {
+                put('-');
+                value = -value;
+            }
+            ensure(20);
+            int start = count;
+            do {
+                buf[count++] = (byte) ('0' + value % 10);
+                value /= 10;
+            } while (value != 0);
+            // digits went in least significant first
+            for (int i = start, j = count - 1; i < j; i++, j--) {
+                byte tmp = buf[i];
+                buf[i] = buf[j];
+                buf[j] = tmp;
+            }
+            return this;
+        }
+
+        JsonWriter value(boolean value) {
+            beforeValue();
+            writeAscii(value ? "true" : "false");
+            return this;
+        }
+
+        /** Number of bytes written so far: the Content-Length of the response. */
+        int size() {
+            return count;
+        }
+
+        int capacity() {
+            return buf.length;
+        }
+
+        void writeTo(OutputStream out) throws IOException {
+            out.write(buf, 0, count);
+        }
+
+        /** Copies the bytes written so far into {@code dest} at {@code offset}. */
+        void copyTo(byte[] dest, int offset) {
+            System.arraycopy(buf, 0, dest, offset, count);
+        }
+
+        void reset() {
+            count = 0;
+            commaMask = 0;
+            depth = 0;
+            afterName = false;
+        }
+
+        private void beforeValue() {
+            if (afterName) {
+                afterName = false;
+                return;
+            }
+            if ((commaMask & (1L << depth)) != 0) {
+                put(',');
+            }
+            commaMask |= 1L << depth;
+        }
+
+        private void writeString(String s) {
+            put('"');
+            int length = s.length();
+            for (int i = 0; i < length; i++) {
+                char c = s.charAt(i);
+                ensure(12);
+                if (c < 0x80) {
+                    if (c == '"' || c == '\\') {
+                        buf[count++] = '\\';
+                        buf[count++] = (byte) c;
+                    } else if (c < 0x20) {
+                        writeControl(c);
+                    } else {
+                        buf[count++] = (byte) c;
+                    }
+                } else if (c < 0x800) {
+                    buf[count++] = (byte) (0xC0 | (c >> 6));
+                    buf[count++] = (byte) (0x80 | (c & 0x3F));
+                } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                    buf[count++] = (byte) (0xF0 | (codePoint >> 18));
+                    buf[count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                    buf[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                    buf[count++] = (byte) (0x80 | (codePoint & 0x3F));
+                } else if (Character.isSurrogate(c)) {
+                    buf[count++] = '?'; // unpaired surrogate, replaced as String.getBytes would
+                } else {
+                    buf[count++] = (byte) (0xE0 | (c >> 12));
+                    buf[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                    buf[count++] = (byte) (0x80 | (c & 0x3F));
+                }
+            }
+            put('"');
+        }
+
+        private void writeControl(char c) {
+            buf[count++] = '\\';
+            switch (c) {
+                case '\n':
+                    buf[count++] = 'n';
+                    break;
+                case '\r':
+                    buf[count++] = 'r';
+                    break;
+                case '\t':
+                    buf[count++] = 't';
+                    break;
+                case '\b':
+                    buf[count++] = 'b';
+                    break;
+                case '\f':
+                    buf[count++] = 'f';
+                    break;
+                default:
+                    buf[count++] = 'u';
+                    buf[count++] = '0';
+                    buf[count++] = '0';
+                    buf[count++] = (byte) Character.forDigit(c >> 4, 16);
+                    buf[count++] = (byte) Character.forDigit(c & 0xF, 16);
+            }
+        }
+
+        private void writeAscii(String s) {
+            ensure(s.length());
+            for (int i = 0; i < s.length(); i++) {
+                buf[count++] = (byte) s.charAt(i);
+            }
+        }
+
+        private void put(char c) {
+            ensure(1);
+            buf[count++] = (byte) c;
+        }
+
+        private void ensure(int extra) {
+            if (count + extra > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + extra));
+            }
+        }
+    }
+}
@@ -0,0 +1,280 @@
+import com.sun.net.httpserver.*;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.DoubleSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Server metrics, rendered on /metrics in the Prometheus text exposition
+ * format.
+ *
+ * Counters and histograms are recorded on the request path, so they are
+ * LongAdders that never lock. A labelled series is looked up once per
+ * call in a ConcurrentHashMap, and hot callers keep the series they use
+ * instead of looking it up each time. Gauges are callbacks that read the
+ * live data structures only when /metrics is scraped.
+ */
+public class Metrics {
+    // Seconds; spans a cached SQLite read up to a long-poll that runs to its full wait
+    static final double[] LATENCY_BUCKETS = {
+        0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30,
+    };
+
+    private static final Map<String, Family<?>> families = new ConcurrentSkipListMap<>();
+
+    static final Family<Counter> HTTP_REQUESTS = counter("chat_http_requests_total",
+        "HTTP requests completed, by endpoint and status code.", "endpoint", "code");
+    static final Family<Histogram> HTTP_DURATION = histogram("chat_http_request_duration_seconds",
+        "Time from receiving a request to sending its response, including long-poll waits.", "endpoint");
+    static final Family<Counter> PACKETS = counter("chat_packets_total",
+        "Packets run through the sliding windows, by outcome.", "outcome");
+    static final Family<Histogram> DB_CALLS = histogram("chat_db_call_duration_seconds",
+        "Database calls including the wait for a connection, by operation.", "operation");
+    static final Family<Histogram> DB_WAIT = histogram("chat_db_connection_wait_seconds",
+        "Time spent waiting for the writer lock or a pooled reader.", "pool");
+
+    private Metrics() {
+    }
+
+    /** A labelled set of series sharing one metric name. */
+    static class Family<T> {
+        final String name;
+        final String help;
+        final String type;
+        final String[] labelNames;
+        private final Supplier<T> factory;
+        private final ConcurrentHashMap<String, T> series = new ConcurrentHashMap<>();
+        private final ConcurrentHashMap<String, String> labelText = new ConcurrentHashMap<>();
+        private Consumer<Samples> collector;
+
+        Family(String name, String help, String type, String[] labelNames, Supplier<T> factory) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.labelNames = labelNames;
+            this.factory = factory;
+        }
+
+        /** The series for these label values, created on first use. */
+        T labels(String... values) {
+            String key = values.length == 1 ? values[0] : String.join("\u0000", values);
+            T existing = series.get(key);
+            if (existing != null) {
+                return existing;
+            }
+            return series.computeIfAbsent(key, k -> {
+                labelText.put(k, formatLabels(labelNames, values));
+                return factory.get();
+            });
+        }
+    }
+
+    static class Counter {
+        private final LongAdder value = new LongAdder();
+
+        void inc() {
+            value.increment();
+        }
+
+        void add(long amount) {
+            value.add(amount);
+        }
+
+        long get() {
+            return value.sum();
+        }
+    }
+
+    static class Histogram {
+        private final LongAdder[] buckets = new LongAdder[LATENCY_BUCKETS.length];
+        private final LongAdder count = new LongAdder();
+        private final DoubleAdder sum = new DoubleAdder();
+
+        Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void observeNanos(long nanos) {
+            double seconds = nanos / 1e9;
+            // Buckets are stored non-cumulatively and summed when scraped
+            int i = 0;
+            while (i < LATENCY_BUCKETS.length && seconds > LATENCY_BUCKETS[i]) {
+                i++;
+            }
+            if (i < buckets.length) {
+                buckets[i].increment();
+            }
+            count.increment();
+            sum.add(seconds);
+        }
+
+        void observeSince(long startNanos) {
+            observeNanos(System.nanoTime() - startNanos);
+        }
+    }
+
+    /** Receives the current values of a gauge family at scrape time. */
+    interface Samples {
+        void add(double value, String... labelValues);
+    }
+
+    static Family<Counter> counter(String name, String help, String... labelNames) {
+        return register(new Family<>(name, help, "counter", labelNames, Counter::new));
+    }
+
+    static Family<Histogram> histogram(String name, String help, String... labelNames) {
+        return register(new Family<>(name, help, "histogram", labelNames, Histogram::new));
+    }
+
+    /** An unlabelled gauge read from {@code value} on every scrape. */
+    static void gauge(String name, String help, DoubleSupplier value) {
+        collect(name, help, "gauge", samples -> samples.add(value.getAsDouble()));
+    }
+
+    /**
+     * A family whose series are produced by {@code collector} on every scrape:
+     * a gauge, or with type "counter" a counter the server already keeps
+     * elsewhere.
+     */
+    static void collect(String name, String help, String type, Consumer<Samples> collector, String... labelNames) {
+        Family<Void> family = new Family<>(name, help, type, labelNames, () -> null);
+        family.collector = collector;
+        register(family);
+    }
+
+    private static <T> Family<T> register(Family<T> family) {
+        families.put(family.name, family);
+        return family;
+    }
+
+    /** Renders every family in the text exposition format, version 0.0.4. */
+    static String scrape() {
+        StringBuilder out = new StringBuilder(4096);
+        for (Family<?> family : families.values()) {
+            out.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(family.name).append(' ').append(family.type).append('\n');
+            if (family.collector != null) {
+                family.collector.accept((value, labelValues) ->
+                    sample(out, family.name, formatLabels(family.labelNames, labelValues), value));
+                continue;
+            }
+            for (Map.Entry<String, ?> entry : family.series.entrySet()) {
+                String labels = family.labelText.get(entry.getKey());
+                Object series = entry.getValue();
+                if (series instanceof Counter) {
+                    sample(out, family.name, labels, ((Counter) series).get());
+                } else if (series instanceof Histogram) {
+                    writeHistogram(out, family.name, labels, (Histogram) series);
+                }
+            }
+        }
+        return out.toString();
+    }
+
+    private static void writeHistogram(StringBuilder out, String name, String labels, Histogram histogram) {
+        // Read the count first so the cumulative buckets never exceed it
+        long count = histogram.count.sum();
+        long cumulative = 0;
+        String prefix = labels.isEmpty() ? "{" : labels.substring(0, labels.length() - 1) + ",";
+        for (int i = 0; i < LATENCY_BUCKETS.length; i++) {
+            cumulative = Math.min(cumulative + histogram.buckets[i].sum(), count);
+            sample(out, name + "_bucket", prefix + "le=\"" + LATENCY_BUCKETS[i] + "\"}", cumulative);
+        }
+        sample(out, name + "_bucket", prefix + "le=\"+Inf\"}", count);
+        sample(out, name + "_sum", labels, histogram.sum.sum());
+        sample(out, name + "_count", labels, count);
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, double value) {
+        out.append(name).append(labels).append(' ');
+        if (value == (long) value) {
+            out.append((long) value);
+        } else {
+            out.append(value);
+        }
+        out.append('\n');
+    }
+
+    private static String formatLabels(String[] names, String[] values) {
+        if (names.length == 0) {
+            return "";
+        }
+        StringBuilder labels = new StringBuilder().append('{');
+        for (int i = 0; i < names.length; i++) {
+            if (i > 0) {
+                labels.append(',');
+            }
+            labels.append(names[i]).append("=\"");
+            String value = i < values.length && values[i] != null ? values[i] : "";
+            for (int j = 0; j < value.length(); j++) {
+                char c = value.charAt(j);
+                if (c == '\\' || c == '"') {
+                    labels.append('\\').append(c);
+                } else if (c == '\n') {
+                    labels.append("\\n");
+                } else {
+                    labels.append(c);
+                }
+            }
+            labels.append('"');
+        }
+        return labels.append('}').toString();
+    }
+
+    /**
+     * Times each exchange on the contexts it is added to. A handler that
+     * parks the exchange and answers it later (the /receive long-poll) calls
+     * {@link #requestCompleted} once it has sent the response.
+     */
+    static class RequestFilter extends Filter {
+        private static final String TIMER = "chat.metrics.timer";
+
+        @Override
+        public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+            exchange.setAttribute(TIMER, new RequestTimer(exchange.getHttpContext().getPath()));
+            try {
+                chain.doFilter(exchange);
+            } finally {
+                if (exchange.getResponseCode() != -1) {
+                    requestCompleted(exchange);
+                }
+            }
+        }
+
+        @Override
+        public String description() {
+            return "Request counts and latency for /metrics";
+        }
+    }
+
+    private static class RequestTimer {
+        final String endpoint;
+        final long start = System.nanoTime();
+        final AtomicBoolean recorded = new AtomicBoolean(false);
+
+        RequestTimer(String endpoint) {
+            this.endpoint = endpoint;
+        }
+    }
+
+    /** Records a request once its response has been sent; later calls for the same exchange are ignored. */
+    static void requestCompleted(HttpExchange exchange) {
+        Object attribute = exchange.getAttribute(RequestFilter.TIMER);
+        if (!(attribute instanceof RequestTimer)) {
+            return; // not routed through the filter, e.g. handlers driven by the benchmarks
+        }
+        RequestTimer timer = (RequestTimer) attribute;
+        if (!timer.recorded.compareAndSet(false, true)) {
+            return;
+        }
+        HTTP_DURATION.labels(timer.endpoint).observeSince(timer.start);
+        HTTP_REQUESTS.labels(timer.endpoint, String.valueOf(exchange.getResponseCode())).inc();
+    }
+}
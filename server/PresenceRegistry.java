@@ -0,0 +1,141 @@
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import org.json.JSONArray;
+
+/**
+ * In-memory presence for /users.
+ *
+ * Handlers record activity with {@link #touch}, which costs no SQL. The active
+ * user list is served from a pre-serialized snapshot that is rebuilt only when
+ * the active set changes, i.e. when a user becomes active or when the sweep
+ * expires one. Last-activity timestamps are written to the users table lazily
+ * by {@link #flush}. Only users seen within the active window are held in
+ * memory; the rest of the registered users stay in the users table.
+ */
+public class PresenceRegistry {
+    private final long activeWindowMs;
+    private final Map<String, Long> lastActivity = new ConcurrentHashMap<>();
+    private final Set<String> active = ConcurrentHashMap.newKeySet();
+    private final Set<String> dirty = ConcurrentHashMap.newKeySet();
+
+    // Bumped on every change to the active set; a snapshot is current while its version matches
+    private final AtomicLong version = new AtomicLong();
+    private volatile Snapshot snapshot = new Snapshot(-1, null);
+
+    private static class Snapshot {
+        final long version;
+        final byte[] json;
+
+        Snapshot(long version, byte[] json) {
+            this.version = version;
+            this.json = json;
+        }
+    }
+
+    public PresenceRegistry() {
+        this(ServerConfig.getLong("chat.presence.activeWindowMs", 300000)); // 5 minutes
+    }
+
+    public PresenceRegistry(long activeWindowMs) {
+        this.activeWindowMs = activeWindowMs;
+    }
+
+    /** Seeds the registry from the users table so a restart keeps recently active users. */
+    public void load() {
+        long cutoff = System.currentTimeMillis() - activeWindowMs;
+        for (Map.Entry<String, Long> entry : DatabaseManager.loadUserActivity(cutoff).entrySet()) {
+            lastActivity.put(entry.getKey(), entry.getValue());
+            active.add(entry.getKey());
+        }
+        version.incrementAndGet();
+    }
+
+    public void touch(String user) {
+        if (user == null) {
+            return;
+        }
+        lastActivity.put(user, System.currentTimeMillis());
+        dirty.add(user);
+        if (active.add(user)) {
+            version.incrementAndGet();
+        }
+    }
+
+    /** The active users as a UTF-8 JSON array, rebuilt only if the active set changed. */
+    public byte[] activeUsersJson() {
+        Snapshot current = snapshot;
+        if (current.version == version.get()) {
+            return current.json;
+        }
+        return rebuildSnapshot();
+    }
+
+    private synchronized byte[] rebuildSnapshot() {
+        long expected = version.get();
+        if (snapshot.version == expected) {
+            return snapshot.json;
+        }
+        List<String> users = new ArrayList<>(active);
+        Collections.sort(users);
+        byte[] json = new JSONArray(users).toString().getBytes(StandardCharsets.UTF_8);
+        // Tag with the version read before copying, so a concurrent change forces another rebuild
+        snapshot = new Snapshot(expected, json);
+        return json;
+    }
+
+    /**
+     * Drops users whose last activity is older than the active window, and
+     * forgets their timestamp once it has been flushed. touch records the
+     * timestamp before adding the user, so checking it again after a removal
+     * never loses a user touched during the sweep.
+     */
+    public void expireIdle() {
+        long cutoff = System.currentTimeMillis() - activeWindowMs;
+        for (String user : active) {
+            Long last = lastActivity.get(user);
+            if (last == null || last <= cutoff) {
+                if (active.remove(user)) {
+                    version.incrementAndGet();
+                    // A touch since the read above found the user still active and did not add them; put them back
+                    Long latest = lastActivity.get(user);
+                    if (latest != null && latest > cutoff && active.add(user)) {
+                        version.incrementAndGet();
+                    }
+                }
+            }
+        }
+        for (Map.Entry<String, Long> entry : lastActivity.entrySet()) {
+            if (entry.getValue() <= cutoff && !dirty.contains(entry.getKey()) && !active.contains(entry.getKey())) {
+                lastActivity.remove(entry.getKey(), entry.getValue()); // a concurrent touch replaces the value and survives
+            }
+        }
+    }
+
+    /** Writes every timestamp that changed since the last flush to the users table. */
+    public void flush() {
+        if (dirty.isEmpty()) {
+            return;
+        }
+        Map<String, Long> batch = new HashMap<>();
+        for (String user : dirty) {
+            dirty.remove(user);
+            Long last = lastActivity.get(user);
+            if (last != null) {
+                batch.put(user, last);
+            }
+        }
+        if (!DatabaseManager.storeUserActivity(batch)) {
+            dirty.addAll(batch.keySet()); // retry on the next flush
+        }
+    }
+
+    public boolean isActive(String user) {
+        return active.contains(user);
+    }
+
+    public int activeCount() {
+        return active.size();
+    }
+}
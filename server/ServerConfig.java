@@ -0,0 +1,133 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Server settings. Values come from chat.properties in the working directory
+ * (if present), and any -D system property with the same key overrides the
+ * file.
+ */
+public class ServerConfig {
+    private static final Logger log = LoggerFactory.getLogger(ServerConfig.class);
+    private static final String CONFIG_FILE = "chat.properties";
+    private static final Properties fileProperties = loadFileProperties();
+
+    private static Properties loadFileProperties() {
+        Properties properties = new Properties();
+        File file = new File(CONFIG_FILE);
+        if (file.isFile()) {
+            try (InputStream in = new FileInputStream(file)) {
+                properties.load(in);
+            } catch (IOException e) {
+                log.warn("Could not read {}: {}", CONFIG_FILE, e.getMessage());
+            }
+        }
+        return properties;
+    }
+
+    public static String getString(String key, String defaultValue) {
+        String value = System.getProperty(key);
+        if (value == null) {
+            value = fileProperties.getProperty(key);
+        }
+        return value != null ? value.trim() : defaultValue;
+    }
+
+    public static int getInt(String key, int defaultValue) {
+        String value = getString(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            log.warn("Ignoring invalid value for {}: {}", key, value);
+            return defaultValue;
+        }
+    }
+
+    public static long getLong(String key, long defaultValue) {
+        String value = getString(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            log.warn("Ignoring invalid value for {}: {}", key, value);
+            return defaultValue;
+        }
+    }
+
+    public static double getDouble(String key, double defaultValue) {
+        String value = getString(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            log.warn("Ignoring invalid value for {}: {}", key, value);
+            return defaultValue;
+        }
+    }
+
+    /** The constant named by the key's value, in any case. */
+    public static <E extends Enum<E>> E getEnum(String key, E defaultValue) {
+        String value = getString(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Enum.valueOf(defaultValue.getDeclaringClass(), value.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            log.warn("Ignoring invalid value for {}: {}", key, value);
+            return defaultValue;
+        }
+    }
+
+    public static boolean getBoolean(String key, boolean defaultValue) {
+        String value = getString(key, null);
+        return value != null ? Boolean.parseBoolean(value) : defaultValue;
+    }
+
+    /**
+     * Builds the HTTP request executor selected by chat.executor:
+     * "virtual" runs each request on its own virtual thread (JDK 21+) and
+     * "fixed" uses a bounded platform pool of chat.pool.size threads. The
+     * default is virtual where the runtime supports it.
+     */
+    public static ExecutorService createRequestExecutor() {
+        String mode = getString("chat.executor", "virtual");
+        if ("virtual".equalsIgnoreCase(mode)) {
+            ExecutorService virtual = newVirtualThreadExecutor();
+            if (virtual != null) {
+                return virtual;
+            }
+            log.info("Virtual threads need JDK 21+, falling back to a fixed pool");
+        } else if (!"fixed".equalsIgnoreCase(mode)) {
+            log.warn("Unknown chat.executor '{}', using a fixed pool", mode);
+        }
+        return Executors.newFixedThreadPool(getInt("chat.pool.size", 10));
+    }
+
+    public static String describeRequestExecutor(ExecutorService executor) {
+        return executor instanceof ThreadPoolExecutor
+            ? "fixed pool of " + ((ThreadPoolExecutor) executor).getMaximumPoolSize() + " threads"
+            : "virtual thread per request";
+    }
+
+    /**
+     * A virtual-thread-per-task executor, or null before JDK 21. Looked up
+     * reflectively so the server still compiles and runs on JDK 17.
+     */
+    static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
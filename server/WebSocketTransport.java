@@ -0,0 +1,732 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * WebSocket transport (RFC 6455) on chat.ws.port, for clients that keep one
+ * connection open instead of polling.
+ *
+ * A client connects to {@code /ws?user=..&lastAck=..} and from then on the
+ * server pushes: {@code {"op":"messages", "messages", "acks"}} frames in the
+ * /receive format as soon as something is queued for the user, and
+ * {@code {"op":"window", "receiver", "ack", "window"}} when a receiver's ack
+ * frees room in one of the user's outgoing windows. The client sends
+ * {@code {"op":"send", "receiver", "seq", "message", "type"}}, answered by
+ * {@code {"op":"ack", "receiver", "seq", "ack", "window", "sack"}} as
+ * /send-message answers, and {@code {"op":"ack", "lastAck", "groupAck"}}
+ * for what it has received. Failures come back as {@code {"op":"error",
+ * "status"}} with the status /send-message would have answered.
+ *
+ * Windows, delivery logs and persistence are the ones HTTP uses: sends go
+ * through {@link ChatServer#acceptPacket} and pushes read with
+ * {@link ChatServer#readDeliveries}, remembering what was sent and not yet
+ * acknowledged so each message is pushed once per connection. Unacknowledged
+ * messages are pushed again on the next connection.
+ *
+ * One selector thread does all socket I/O with non-blocking writes. The
+ * frames of each connection run in order on the request executor, and a
+ * connection whose client reads slower than it is sent to stops being read,
+ * and pushed to, once chat.ws.maxPendingBytes are waiting to go out. The
+ * cluster router does not route WebSockets: a node answers a handshake for
+ * a user it does not own, or a send to a receiver it does not own, with 421
+ * and the owner's URL.
+ */
+public class WebSocketTransport {
+    private static final Logger log = LoggerFactory.getLogger(WebSocketTransport.class);
+    static final int PORT = ServerConfig.getInt("chat.ws.port", 0); // 0 disables the transport
+    private static final int MAX_MESSAGE_BYTES = ServerConfig.getInt("chat.ws.maxMessageBytes", 1024 * 1024);
+    private static final int MAX_PENDING_BYTES = ServerConfig.getInt("chat.ws.maxPendingBytes", 1024 * 1024);
+    private static final int MAX_HANDSHAKE_BYTES = 8192;
+    private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+    private static final int OP_CONTINUATION = 0x0;
+    private static final int OP_TEXT = 0x1;
+    private static final int OP_BINARY = 0x2;
+    private static final int OP_CLOSE = 0x8;
+    private static final int OP_PING = 0x9;
+    private static final int OP_PONG = 0xA;
+
+    private static final int CLOSE_NORMAL = 1000;
+    private static final int CLOSE_PROTOCOL_ERROR = 1002;
+    private static final int CLOSE_UNSUPPORTED = 1003;
+    private static final int CLOSE_TOO_BIG = 1009;
+
+    private static final Metrics.Family<Metrics.Counter> FRAMES = Metrics.counter("chat_ws_frames_total",
+        "WebSocket frames, by direction.", "direction");
+    private static final Metrics.Counter FRAMES_IN = FRAMES.labels("in");
+    private static final Metrics.Counter FRAMES_OUT = FRAMES.labels("out");
+
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private final Executor workers;
+    private final Map<String, Set<Connection>> byUser = new ConcurrentHashMap<>();
+    private final Queue<Connection> interestChanges = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger open = new AtomicInteger();
+    private final Thread selectorThread;
+
+    /** Binds {@code port} and starts the selector thread; frames are handled on {@code workers}. */
+    public WebSocketTransport(int port, Executor workers) throws IOException {
+        this.workers = workers;
+        this.selector = Selector.open();
+        this.server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port));
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        Metrics.gauge("chat_ws_connections", "Open WebSocket connections.", open::get);
+        selectorThread = new Thread(this::run, "ws-selector");
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+    }
+
+    int port() {
+        return server.socket().getLocalPort();
+    }
+
+    /** Schedules a push of whatever is queued for {@code user} to each of their connections. */
+    void wake(String user) {
+        Set<Connection> connections = byUser.get(user);
+        if (connections != null) {
+            for (Connection connection : connections) {
+                connection.schedulePush();
+            }
+        }
+    }
+
+    /** Tells the sender of {@code channel} that its window has opened up. */
+    void windowOpened(ChannelState channel) {
+        Set<Connection> connections = byUser.get(channel.sender);
+        if (connections == null) {
+            return;
+        }
+        MessageCodec.JsonWriter out = MessageCodec.acquireWriter();
+        try {
+            out.beginObject()
+                .name("op").value("window")
+                .name("receiver").value(channel.receiver)
+                .name("ack").value(channel.ack())
+                .name("window").value(channel.window())
+                .endObject();
+            byte[] frame = textFrame(out);
+            for (Connection connection : connections) {
+                connection.sendFrame(frame);
+            }
+        } finally {
+            MessageCodec.release(out);
+        }
+    }
+
+    private void run() {
+        while (server.isOpen()) {
+            try {
+                selector.select();
+                Connection changed;
+                while ((changed = interestChanges.poll()) != null) {
+                    changed.updateInterest();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            connection.onReadable();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.onWritable();
+                        }
+                    } catch (IOException | CancelledKeyException e) {
+                        connection.close();
+                    }
+                }
+            } catch (IOException e) {
+                log.error("WebSocket selector failed", e);
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = server.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            Connection connection = new Connection(channel);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+        }
+    }
+
+    /** A complete frame with an unmasked payload of {@code length} bytes, header filled in. */
+    private static byte[] newFrame(int opcode, int length) {
+        int header = length < 126 ? 2 : length < 65536 ? 4 : 10;
+        byte[] frame = new byte[header + length];
+        frame[0] = (byte) (0x80 | opcode);
+        if (length < 126) {
+            frame[1] = (byte) length;
+        } else if (length < 65536) {
+            frame[1] = 126;
+            frame[2] = (byte) (length >>> 8);
+            frame[3] = (byte) length;
+        } else {
+            frame[1] = 127;
+            for (int i = 0; i < 8; i++) {
+                frame[2 + i] = (byte) ((long) length >>> (56 - 8 * i));
+            }
+        }
+        return frame;
+    }
+
+    private static byte[] textFrame(MessageCodec.JsonWriter out) {
+        byte[] frame = newFrame(OP_TEXT, out.size());
+        out.copyTo(frame, frame.length - out.size());
+        return frame;
+    }
+
+    private static byte[] closeFrame(int code) {
+        byte[] frame = newFrame(OP_CLOSE, 2);
+        frame[2] = (byte) (code >>> 8);
+        frame[3] = (byte) code;
+        return frame;
+    }
+
+    static String acceptKey(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1")
+                .digest((key + ACCEPT_GUID).getBytes(StandardCharsets.ISO_8859_1));
+            return Base64.getEncoder().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // every JRE has SHA-1
+        }
+    }
+
+    /**
+     * One client connection. Reading and frame decoding happen on the
+     * selector thread; what the frames ask for runs as tasks, one at a time,
+     * on the workers. Writes can come from any thread and go out under the
+     * connection's lock, whatever the socket does not take straight away
+     * waiting in the outbox for OP_WRITE.
+     */
+    private class Connection {
+        final SocketChannel channel;
+        SelectionKey key;
+        private ByteBuffer in = ByteBuffer.allocate(4096);
+        private int needed;                  // bytes the next frame needs in the buffer
+        private boolean upgraded;
+        private boolean inMessage;           // a fragmented text message is in progress
+        private final ByteArrayOutputStream fragments = new ByteArrayOutputStream();
+
+        private final ArrayDeque<ByteBuffer> outbox = new ArrayDeque<>();
+        private long pendingBytes;
+        private boolean closeAfterFlush;
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean running = new AtomicBoolean(false);
+        private final AtomicBoolean pushPending = new AtomicBoolean(false);
+
+        // Delivery state, touched only by this connection's tasks
+        String user;
+        private long lastAck = -1;
+        private long sentThrough = -1;       // highest delivery offset pushed on this connection
+        private final Map<String, Long> groupsSent = new HashMap<>(); // group -> highest offset pushed
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void onReadable() throws IOException {
+            if (channel.read(in) < 0) {
+                close();
+                return;
+            }
+            in.flip();
+            if (!upgraded) {
+                handshake();
+            }
+            while (upgraded && !closeAfterFlush && readFrame()) {
+                // every complete frame in the buffer
+            }
+            in.compact();
+            if (needed > in.capacity()) {
+                ByteBuffer grown = ByteBuffer.allocate(needed);
+                in.flip();
+                grown.put(in);
+                in = grown;
+            }
+        }
+
+        private void handshake() {
+            int end = -1;
+            for (int i = in.position(); i + 3 < in.limit(); i++) {
+                if (in.get(i) == '\r' && in.get(i + 1) == '\n' && in.get(i + 2) == '\r' && in.get(i + 3) == '\n') {
+                    end = i + 4;
+                    break;
+                }
+            }
+            if (end < 0) {
+                if (in.remaining() >= MAX_HANDSHAKE_BYTES) {
+                    reject("431 Request Header Fields Too Large", null);
+                } else if (in.limit() == in.capacity()) {
+                    needed = in.capacity() * 2;
+                }
+                return;
+            }
+            byte[] head = new byte[end - in.position()];
+            in.get(head);
+            String[] lines = new String(head, StandardCharsets.ISO_8859_1).split("\r\n");
+            String[] requestLine = lines[0].split(" ");
+            Map<String, String> headers = new HashMap<>();
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon > 0) {
+                    headers.put(lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT), lines[i].substring(colon + 1).trim());
+                }
+            }
+
+            if (requestLine.length != 3 || !"GET".equals(requestLine[0])) {
+                reject("405 Method Not Allowed", null);
+                return;
+            }
+            String target = requestLine[1];
+            int question = target.indexOf('?');
+            if (!"/ws".equals(question < 0 ? target : target.substring(0, question))) {
+                reject("404 Not Found", null);
+                return;
+            }
+            String key = headers.get("sec-websocket-key");
+            if (!"websocket".equalsIgnoreCase(headers.get("upgrade")) || key == null ||
+                !headers.getOrDefault("connection", "").toLowerCase(Locale.ROOT).contains("upgrade")) {
+                reject("400 Bad Request", null);
+                return;
+            }
+            if (!"13".equals(headers.get("sec-websocket-version"))) {
+                reject("426 Upgrade Required", "Sec-WebSocket-Version: 13");
+                return;
+            }
+            Map<String, String> params = ChatServer.parseQuery(question < 0 ? null : target.substring(question + 1));
+            String user = params.get("user");
+            long lastAck;
+            Map<String, Long> groupAcks;
+            try {
+                lastAck = Long.parseLong(params.getOrDefault("lastAck", "-1"));
+                groupAcks = params.containsKey("groupAck")
+                    ? ChatServer.parseGroupAcks(params.get("groupAck")) : Collections.emptyMap();
+            } catch (NumberFormatException e) {
+                user = null;
+                lastAck = -1;
+                groupAcks = null;
+            }
+            if (user == null || user.isEmpty()) {
+                reject("400 Bad Request", null);
+                return;
+            }
+            if (!Cluster.isLocal(user)) {
+                reject("421 Misdirected Request", "X-Chat-Owner: " + Cluster.ownerOf(user));
+                return;
+            }
+
+            send(ByteBuffer.wrap(("HTTP/1.1 101 Switching Protocols\r\n" +
+                "Upgrade: websocket\r\n" +
+                "Connection: Upgrade\r\n" +
+                "Sec-WebSocket-Accept: " + acceptKey(key) + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1)));
+            upgraded = true;
+            this.user = user;
+            long connectedAck = lastAck;
+            Map<String, Long> connectedGroupAcks = groupAcks;
+            open.incrementAndGet();
+            schedule(() -> {
+                // Register before the first push so a send landing in between still wakes this connection
+                byUser.compute(this.user, (k, connections) -> {
+                    Set<Connection> registered = connections != null ? connections : ConcurrentHashMap.newKeySet();
+                    registered.add(this);
+                    return registered;
+                });
+                this.lastAck = connectedAck;
+                this.sentThrough = connectedAck;
+                ChatServer.acknowledge(this.user, connectedAck, connectedGroupAcks);
+                push();
+            });
+        }
+
+        private void reject(String status, String header) {
+            send(ByteBuffer.wrap(("HTTP/1.1 " + status + "\r\n" +
+                (header != null ? header + "\r\n" : "") +
+                "Content-Length: 0\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1)));
+            closeAfterFlush();
+        }
+
+        /**
+         * Decodes one frame from the buffer if it is all there. Returns false
+         * when more bytes are needed or the connection is closing.
+         */
+        private boolean readFrame() {
+            needed = 0;
+            int start = in.position();
+            if (in.remaining() < 2) {
+                return false;
+            }
+            int b0 = in.get(start) & 0xff;
+            int b1 = in.get(start + 1) & 0xff;
+            boolean fin = (b0 & 0x80) != 0;
+            int opcode = b0 & 0x0f;
+            long length = b1 & 0x7f;
+            int header = 2;
+            if (length == 126) {
+                if (in.remaining() < 4) {
+                    return false;
+                }
+                length = in.getShort(start + 2) & 0xffff;
+                header = 4;
+            } else if (length == 127) {
+                if (in.remaining() < 10) {
+                    return false;
+                }
+                length = in.getLong(start + 2);
+                header = 10;
+            }
+            if ((b0 & 0x70) != 0 || (b1 & 0x80) == 0) {
+                fail(CLOSE_PROTOCOL_ERROR); // reserved bits set, or an unmasked client frame
+                return false;
+            }
+            if (opcode >= OP_CLOSE && (!fin || length > 125)) {
+                fail(CLOSE_PROTOCOL_ERROR);
+                return false;
+            }
+            if (length < 0 || length + (inMessage ? fragments.size() : 0) > MAX_MESSAGE_BYTES) {
+                fail(CLOSE_TOO_BIG);
+                return false;
+            }
+            header += 4; // masking key
+            if (in.remaining() < header + length) {
+                needed = (int) (header + length);
+                return false;
+            }
+
+            byte[] payload = new byte[(int) length];
+            in.position(start + header);
+            in.get(payload);
+            for (int i = 0; i < payload.length; i++) {
+                payload[i] ^= in.get(start + header - 4 + (i & 3));
+            }
+            FRAMES_IN.inc();
+
+            switch (opcode) {
+                case OP_TEXT:
+                case OP_CONTINUATION:
+                    if (inMessage == (opcode == OP_TEXT)) {
+                        fail(CLOSE_PROTOCOL_ERROR); // a new message inside a fragmented one, or a stray continuation
+                        return false;
+                    }
+                    if (fin && !inMessage) {
+                        deliver(payload);
+                    } else {
+                        fragments.write(payload, 0, payload.length);
+                        inMessage = !fin;
+                        if (fin) {
+                            deliver(fragments.toByteArray());
+                            fragments.reset();
+                        }
+                    }
+                    return true;
+                case OP_BINARY:
+                    fail(CLOSE_UNSUPPORTED);
+                    return false;
+                case OP_CLOSE:
+                    int code = payload.length >= 2 ? ((payload[0] & 0xff) << 8) | (payload[1] & 0xff) : CLOSE_NORMAL;
+                    sendFrame(closeFrame(code));
+                    closeAfterFlush();
+                    return false;
+                case OP_PING:
+                    byte[] pong = newFrame(OP_PONG, payload.length);
+                    System.arraycopy(payload, 0, pong, pong.length - payload.length, payload.length);
+                    sendFrame(pong);
+                    return true;
+                case OP_PONG:
+                    return true;
+                default:
+                    fail(CLOSE_PROTOCOL_ERROR);
+                    return false;
+            }
+        }
+
+        private void fail(int code) {
+            sendFrame(closeFrame(code));
+            closeAfterFlush();
+        }
+
+        private void deliver(byte[] text) {
+            schedule(() -> {
+                MessageCodec.Frame frame;
+                try {
+                    frame = MessageCodec.readFrame(new ByteArrayInputStream(text));
+                } catch (IOException e) {
+                    sendError(400, null, 0, e.getMessage());
+                    return;
+                }
+                if ("send".equals(frame.op)) {
+                    handleSend(frame);
+                } else {
+                    if (frame.hasLastAck) {
+                        lastAck = Math.max(lastAck, frame.lastAck);
+                    }
+                    ChatServer.acknowledge(user, lastAck, frame.groupAck);
+                    push();
+                }
+            });
+        }
+
+        private void handleSend(MessageCodec.Frame frame) {
+            if (!ChatServer.maySend(user, frame.receiver)) {
+                sendError(403, frame.receiver, frame.seq, null);
+                return;
+            }
+            if (!Cluster.isLocal(frame.receiver)) {
+                sendError(421, frame.receiver, frame.seq, Cluster.ownerOf(frame.receiver));
+                return;
+            }
+            if (ChatServer.simulateLoss(user, frame.receiver, frame.seq)) {
+                return;
+            }
+            ChannelState.Result result = ChatServer.acceptPacket(
+                new ChatServer.Message(user, frame.receiver, frame.seq, frame.message, frame.type));
+            if (result == null) {
+                sendError(503, frame.receiver, frame.seq, null);
+                return;
+            }
+            MessageCodec.JsonWriter out = MessageCodec.acquireWriter();
+            try {
+                out.beginObject()
+                    .name("op").value("ack")
+                    .name("receiver").value(frame.receiver)
+                    .name("seq").value(frame.seq);
+                ChatServer.writeSendAck(out, result);
+                out.endObject();
+                sendFrame(textFrame(out));
+            } finally {
+                MessageCodec.release(out);
+            }
+        }
+
+        /** Sends {"op":"error"}; {@code detail} is the owner's URL for a 421 and the reason for a 400. */
+        private void sendError(int status, String receiver, int seq, String detail) {
+            MessageCodec.JsonWriter out = MessageCodec.acquireWriter();
+            try {
+                out.beginObject()
+                    .name("op").value("error")
+                    .name("status").value(status);
+                if (receiver != null) {
+                    out.name("receiver").value(receiver)
+                        .name("seq").value(seq);
+                }
+                if (detail != null) {
+                    out.name(status == 421 ? "owner" : "error").value(detail);
+                }
+                out.endObject();
+                sendFrame(textFrame(out));
+            } finally {
+                MessageCodec.release(out);
+            }
+        }
+
+        void schedulePush() {
+            if (pushPending.compareAndSet(false, true)) {
+                schedule(() -> {
+                    pushPending.set(false);
+                    push();
+                });
+            }
+        }
+
+        /** Pushes everything queued for the user and not yet pushed here, until the outbox is full. */
+        private void push() {
+            while (!closed.get() && outboxRoom()) {
+                List<ChatServer.Message> messages = ChatServer.readDeliveries(user, lastAck, sentThrough, groupsSent);
+                if (messages.isEmpty()) {
+                    return;
+                }
+                MessageCodec.JsonWriter out = MessageCodec.acquireWriter();
+                try {
+                    ChatServer.writeDeliveries(out.beginObject().name("op").value("messages"), user, messages);
+                    out.endObject();
+                    sendFrame(textFrame(out));
+                } finally {
+                    MessageCodec.release(out);
+                }
+                for (ChatServer.Message message : messages) {
+                    if (GroupLog.isGroup(message.receiver)) {
+                        groupsSent.merge(message.receiver, message.offset, Math::max);
+                    } else {
+                        sentThrough = Math.max(sentThrough, message.offset);
+                    }
+                }
+            }
+        }
+
+        private void schedule(Runnable task) {
+            tasks.add(task);
+            if (running.compareAndSet(false, true)) {
+                workers.execute(this::runTasks);
+            }
+        }
+
+        private void runTasks() {
+            do {
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        log.error("Error handling a WebSocket frame from {}", user, e);
+                    }
+                }
+                running.set(false);
+                // A task added after the last poll but before the flag cleared would otherwise wait
+            } while (!tasks.isEmpty() && running.compareAndSet(false, true));
+        }
+
+        void sendFrame(byte[] frame) {
+            FRAMES_OUT.inc();
+            send(ByteBuffer.wrap(frame));
+        }
+
+        private synchronized boolean outboxRoom() {
+            return pendingBytes < MAX_PENDING_BYTES;
+        }
+
+        /** Writes what the socket takes now and queues the rest for OP_WRITE. */
+        void send(ByteBuffer data) {
+            boolean interestChanged;
+            synchronized (this) {
+                if (closed.get() || closeAfterFlush) {
+                    return;
+                }
+                boolean wasFull = pendingBytes >= MAX_PENDING_BYTES;
+                if (outbox.isEmpty()) {
+                    try {
+                        channel.write(data);
+                    } catch (IOException e) {
+                        data = null;
+                    }
+                }
+                if (data == null) {
+                    interestChanged = false; // the peer is gone; closed below, outside the lock
+                } else if (data.hasRemaining()) {
+                    interestChanged = outbox.isEmpty();
+                    outbox.add(data);
+                    pendingBytes += data.remaining();
+                    interestChanged |= !wasFull && pendingBytes >= MAX_PENDING_BYTES;
+                } else {
+                    interestChanged = false;
+                }
+            }
+            if (data == null) {
+                close();
+            } else if (interestChanged) {
+                requestInterestUpdate();
+            }
+        }
+
+        void onWritable() throws IOException {
+            boolean resumed;
+            boolean finished;
+            synchronized (this) {
+                boolean wasFull = pendingBytes >= MAX_PENDING_BYTES;
+                ByteBuffer head;
+                while ((head = outbox.peek()) != null) {
+                    int before = head.remaining();
+                    channel.write(head);
+                    pendingBytes -= before - head.remaining();
+                    if (head.hasRemaining()) {
+                        break;
+                    }
+                    outbox.poll();
+                }
+                resumed = wasFull && pendingBytes < MAX_PENDING_BYTES;
+                finished = closeAfterFlush && outbox.isEmpty();
+            }
+            if (finished) {
+                close();
+                return;
+            }
+            updateInterest();
+            if (resumed && upgraded) {
+                schedulePush();
+            }
+        }
+
+        private void closeAfterFlush() {
+            boolean empty;
+            synchronized (this) {
+                closeAfterFlush = true;
+                empty = outbox.isEmpty();
+            }
+            if (empty) {
+                close();
+            } else {
+                requestInterestUpdate();
+            }
+        }
+
+        private void requestInterestUpdate() {
+            if (Thread.currentThread() == selectorThread) {
+                updateInterest();
+            } else {
+                interestChanges.add(this);
+                selector.wakeup();
+            }
+        }
+
+        /** Selector thread only: write interest while the outbox holds data, read interest while it has room. */
+        void updateInterest() {
+            int ops;
+            synchronized (this) {
+                ops = outbox.isEmpty() ? 0 : SelectionKey.OP_WRITE;
+                if (!closeAfterFlush && pendingBytes < MAX_PENDING_BYTES) {
+                    ops |= SelectionKey.OP_READ;
+                }
+            }
+            if (key != null && key.isValid()) {
+                key.interestOps(ops);
+            }
+        }
+
+        void close() {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            if (upgraded) {
+                open.decrementAndGet();
+                String owner = user;
+                // Deregister after any task already queued, so a late registration cannot outlive the close
+                schedule(() -> byUser.computeIfPresent(owner, (k, connections) -> {
+                    connections.remove(this);
+                    return connections.isEmpty() ? null : connections;
+                }));
+            }
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.debug("Error closing WebSocket connection", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,326 @@
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Write-behind persistence stage.
+ *
+ * Handlers enqueue messages and file chunk references instead of committing
+ * them on the request thread. A single writer thread drains the queue and
+ * commits up to chat.writeBehind.maxBatch records per transaction, waiting at
+ * most chat.writeBehind.maxDelayMs for a batch to fill. The queue is bounded, so a
+ * writer that falls behind pushes back on the handlers instead of growing the
+ * heap.
+ *
+ * chat.writeBehind.ack picks the durability point: "enqueue" acks as soon as
+ * the record is queued, "commit" makes handlers wait for the returned future,
+ * which completes once the batch holding the record has committed.
+ *
+ * The delivery and group logs also hand their own writes to the queue, so
+ * the send path never waits on SQLite: entries a full ring spills to
+ * delivery_backlog, and offset reservations, which are committed ahead of
+ * the rows that use them.
+ *
+ * Whichever way a record ends, its messages are marked
+ * {@link ChatServer.Message#settled} before the future completes, so the
+ * delivery logs know which offsets can still turn up in the database. In
+ * commit mode they are {@link ChatServer.Message#held} from readers until
+ * then. A message whose batch failed is released too: its sender got an
+ * error, and a retry of the same packet is acked as a duplicate.
+ */
+public class WriteBehindQueue {
+    private static final Logger log = LoggerFactory.getLogger(WriteBehindQueue.class);
+    enum AckMode { ENQUEUE, COMMIT }
+
+    static class ChunkRecord {
+        final String sender;
+        final String receiver;
+        final String fileName;
+        final int chunkIndex;
+        final int totalChunks;
+        final String sha256; // content address of the chunk in the FileStore
+        final long size;
+        final String codec;  // how the blob is stored
+        final long crc32;
+        final long timestamp = System.currentTimeMillis();
+
+        ChunkRecord(String sender, String receiver, String fileName, int chunkIndex, int totalChunks, String sha256, long size,
+                    String codec, long crc32) {
+            this.sender = sender;
+            this.receiver = receiver;
+            this.fileName = fileName;
+            this.chunkIndex = chunkIndex;
+            this.totalChunks = totalChunks;
+            this.sha256 = sha256;
+            this.size = size;
+            this.codec = codec;
+            this.crc32 = crc32;
+        }
+    }
+
+    private static class Entry {
+        final List<ChatServer.Message> messages; // always committed in the same transaction
+        final ChunkRecord chunk;
+        final String spilledFor;  // receiver whose delivery_backlog takes the messages instead of the messages table
+        final String reservedFor; // receiver or group whose offsets below reservedOffset are reserved
+        final long reservedOffset;
+        final CompletableFuture<Void> committed = new CompletableFuture<>();
+
+        Entry(List<ChatServer.Message> messages, ChunkRecord chunk, String spilledFor, String reservedFor, long reservedOffset) {
+            this.messages = messages;
+            this.chunk = chunk;
+            this.spilledFor = spilledFor;
+            this.reservedFor = reservedFor;
+            this.reservedOffset = reservedOffset;
+        }
+    }
+
+    private final BlockingQueue<Entry> queue;
+    private final int maxBatch;
+    private final long maxDelayNanos;
+    private final AckMode ackMode;
+    private final Thread writerThread;
+    private final List<Entry> fromWriter = new ArrayList<>(); // enqueued by the writer's own callbacks; only it touches this
+    private volatile boolean running = true;
+
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong recordsWritten = new AtomicLong();
+    private final AtomicLong failedRecords = new AtomicLong();
+    private final AtomicLong commitNanosTotal = new AtomicLong();
+    private volatile int lastBatchSize;
+    private volatile long lastCommitNanos;
+
+    public WriteBehindQueue() {
+        this(ServerConfig.getInt("chat.writeBehind.capacity", 10000),
+            ServerConfig.getInt("chat.writeBehind.maxBatch", 256),
+            ServerConfig.getLong("chat.writeBehind.maxDelayMs", 2),
+            ServerConfig.getEnum("chat.writeBehind.ack", AckMode.ENQUEUE));
+    }
+
+    public WriteBehindQueue(int capacity, int maxBatch, long maxDelayMs, AckMode ackMode) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.maxBatch = maxBatch;
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMs);
+        this.ackMode = ackMode;
+        this.writerThread = new Thread(this::runWriter, "write-behind");
+        this.writerThread.setDaemon(true);
+    }
+
+    public void start() {
+        writerThread.start();
+    }
+
+    /** Stops accepting work, commits whatever is still queued and waits for the writer to finish. */
+    public void shutdown() {
+        running = false;
+        writerThread.interrupt();
+        try {
+            writerThread.join(10000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public CompletableFuture<Void> enqueueMessage(ChatServer.Message message) {
+        return enqueue(new Entry(Collections.singletonList(message), null, null, null, 0));
+    }
+
+    /**
+     * Queues {@code messages} as one record: they are committed together in
+     * a single transaction, or not at all.
+     */
+    public CompletableFuture<Void> enqueueMessages(List<ChatServer.Message> messages) {
+        return enqueue(new Entry(messages, null, null, null, 0));
+    }
+
+    public CompletableFuture<Void> enqueueChunk(ChunkRecord chunk) {
+        return enqueue(new Entry(null, chunk, null, null, 0));
+    }
+
+    /** Queues a delivery log entry evicted from {@code receiver}'s ring for delivery_backlog. */
+    public CompletableFuture<Void> enqueueSpill(String receiver, ChatServer.Message message) {
+        return enqueue(new Entry(Collections.singletonList(message), null, receiver, null, 0));
+    }
+
+    /**
+     * Queues a reservation of the offsets below {@code reservedOffset} for a
+     * receiver's delivery log, or for a group's when {@code owner} names a
+     * group. Rows queued after it are committed after it or with it.
+     */
+    public CompletableFuture<Void> enqueueReservation(String owner, long reservedOffset) {
+        return enqueue(new Entry(null, null, null, owner, reservedOffset));
+    }
+
+    private CompletableFuture<Void> enqueue(Entry entry) {
+        if (Thread.currentThread() == writerThread) {
+            // A callback of a committed batch; waiting on the full queue would wait on ourselves
+            fromWriter.add(entry);
+            return entry.committed;
+        }
+        if (!running) {
+            settle(entry, new IllegalStateException("write-behind queue is shut down"));
+            return entry.committed;
+        }
+        try {
+            queue.put(entry); // blocks while the queue is full: back-pressure on the handlers
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            settle(entry, e);
+        }
+        return entry.committed;
+    }
+
+    /** Marks the entry's messages settled and completes its future, exceptionally if {@code error} is set. */
+    private static void settle(Entry entry, Throwable error) {
+        if (entry.messages != null && entry.spilledFor == null) {
+            for (ChatServer.Message message : entry.messages) {
+                message.settled = true;
+                message.held = false;
+            }
+        }
+        if (error == null) {
+            entry.committed.complete(null);
+        } else {
+            entry.committed.completeExceptionally(error);
+        }
+    }
+
+    /**
+     * Waits for {@code pending} writes when running in commit mode; a no-op in
+     * enqueue mode. Returns false if any of them failed to commit.
+     */
+    public boolean awaitDurable(List<CompletableFuture<Void>> pending) {
+        if (ackMode != AckMode.COMMIT) {
+            return true;
+        }
+        boolean ok = true;
+        for (CompletableFuture<Void> future : pending) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (ExecutionException e) {
+                ok = false;
+            }
+        }
+        return ok;
+    }
+
+    private void runWriter() {
+        List<Entry> batch = new ArrayList<>(maxBatch);
+        while (running || !queue.isEmpty() || !fromWriter.isEmpty()) {
+            batch.addAll(fromWriter);
+            fromWriter.clear();
+            try {
+                if (batch.isEmpty()) {
+                    Entry first = queue.poll(100, TimeUnit.MILLISECONDS);
+                    if (first == null) {
+                        continue;
+                    }
+                    batch.add(first);
+                }
+                long deadline = System.nanoTime() + maxDelayNanos;
+                while (batch.size() < maxBatch) {
+                    if (queue.drainTo(batch, maxBatch - batch.size()) > 0) {
+                        continue;
+                    }
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    Entry next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                // shutdown() interrupts us; drain what is left without waiting
+                queue.drainTo(batch, maxBatch - batch.size());
+            }
+            if (!batch.isEmpty()) {
+                commit(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    private void commit(List<Entry> batch) {
+        List<ChatServer.Message> messages = new ArrayList<>();
+        List<ChunkRecord> chunks = new ArrayList<>();
+        Map<String, List<ChatServer.Message>> spills = new HashMap<>();
+        Map<String, Long> deliveryReservations = new HashMap<>();
+        Map<String, Long> groupReservations = new HashMap<>();
+        int records = 0;
+        for (Entry entry : batch) {
+            records += entry.messages != null ? entry.messages.size() : 1;
+            if (entry.spilledFor != null) {
+                spills.computeIfAbsent(entry.spilledFor, receiver -> new ArrayList<>()).addAll(entry.messages);
+            } else if (entry.messages != null) {
+                messages.addAll(entry.messages);
+            } else if (entry.chunk != null) {
+                chunks.add(entry.chunk);
+            } else {
+                (GroupLog.isGroup(entry.reservedFor) ? groupReservations : deliveryReservations)
+                    .merge(entry.reservedFor, entry.reservedOffset, Math::max);
+            }
+        }
+
+        long start = System.nanoTime();
+        try {
+            DatabaseManager.storeBatch(messages, chunks, spills, deliveryReservations, groupReservations);
+            long elapsed = System.nanoTime() - start;
+            batches.incrementAndGet();
+            recordsWritten.addAndGet(records);
+            commitNanosTotal.addAndGet(elapsed);
+            lastBatchSize = records;
+            lastCommitNanos = elapsed;
+            for (Entry entry : batch) {
+                settle(entry, null);
+            }
+        } catch (SQLException | RuntimeException e) {
+            log.error("Write-behind batch of {} records failed", records, e);
+            failedRecords.addAndGet(records);
+            for (Entry entry : batch) {
+                settle(entry, e);
+            }
+        }
+    }
+
+    public int queueDepth() {
+        return queue.size();
+    }
+
+    public long batches() {
+        return batches.get();
+    }
+
+    public long recordsWritten() {
+        return recordsWritten.get();
+    }
+
+    public long failedRecords() {
+        return failedRecords.get();
+    }
+
+    public int lastBatchSize() {
+        return lastBatchSize;
+    }
+
+    public double lastCommitMillis() {
+        return lastCommitNanos / 1e6;
+    }
+
+    public double averageCommitMillis() {
+        long count = batches.get();
+        return count == 0 ? 0 : commitNanosTotal.get() / 1e6 / count;
+    }
+
+    public AckMode ackMode() {
+        return ackMode;
+    }
+}
@@ -0,0 +1,29 @@
+@echo off
+
+:: Runs the JMH benchmarks in bench\chatbench. Arguments go straight to JMH, e.g.
+::     bench.bat SendPathBenchmark
+
+set JMH_VERSION=1.37
+
+mkdir lib 2>nul
+mkdir bench\lib 2>nul
+mkdir bench\bin 2>nul
+
+if not exist lib\sqlite-jdbc.jar (
+    echo Dependencies not found. Running compile script...
+    call compile.bat
+)
+
+if not exist bench\lib\jmh-core.jar (
+    echo Downloading JMH...
+    curl -L -o bench\lib\jmh-core.jar https://repo1.maven.org/maven2/org/openjdk/jmh/jmh-core/%JMH_VERSION%/jmh-core-%JMH_VERSION%.jar
+    curl -L -o bench\lib\jmh-generator-annprocess.jar https://repo1.maven.org/maven2/org/openjdk/jmh/jmh-generator-annprocess/%JMH_VERSION%/jmh-generator-annprocess-%JMH_VERSION%.jar
+    curl -L -o bench\lib\jopt-simple.jar https://repo1.maven.org/maven2/net/sf/jopt-simple/jopt-simple/5.0.4/jopt-simple-5.0.4.jar
+    curl -L -o bench\lib\commons-math3.jar https://repo1.maven.org/maven2/org/apache/commons/commons-math3/3.6.1/commons-math3-3.6.1.jar
+)
+
+echo Compiling server and benchmarks...
+javac -encoding UTF-8 -cp "lib/*;bench/lib/*" -processorpath bench\lib\jmh-core.jar;bench\lib\jmh-generator-annprocess.jar;bench\lib\jopt-simple.jar;bench\lib\commons-math3.jar -d bench\bin *.java bench\*.java bench\chatbench\*.java || exit /b 1
+copy /y simplelogger.properties bench\bin\ >nul
+
+java -cp "bench\bin;lib/*;bench/lib/*" org.openjdk.jmh.Main %*
@@ -0,0 +1,34 @@
+#!/bin/bash
+
+# Runs the JMH benchmarks in bench/chatbench. Arguments go straight to JMH, e.g.
+#   ./bench.sh SendPathBenchmark
+#   ./bench.sh -f 1 -wi 2 -i 3 ReceivePathBenchmark -p backlog=1000
+#   ./bench.sh -l                  (list benchmarks)
+
+JMH_VERSION=1.37
+
+mkdir -p lib bench/lib bench/bin
+
+# Server dependencies
+if [ ! -f "lib/sqlite-jdbc.jar" ] || [ ! -f "lib/json.jar" ]; then
+    echo "Dependencies not found. Running compile script..."
+    chmod +x compile.sh
+    ./compile.sh
+fi
+
+# JMH and the libraries it needs
+if [ ! -f "bench/lib/jmh-core.jar" ]; then
+    echo "Downloading JMH..."
+    curl -L "https://repo1.maven.org/maven2/org/openjdk/jmh/jmh-core/$JMH_VERSION/jmh-core-$JMH_VERSION.jar" -o bench/lib/jmh-core.jar
+    curl -L "https://repo1.maven.org/maven2/org/openjdk/jmh/jmh-generator-annprocess/$JMH_VERSION/jmh-generator-annprocess-$JMH_VERSION.jar" -o bench/lib/jmh-generator-annprocess.jar
+    curl -L "https://repo1.maven.org/maven2/net/sf/jopt-simple/jopt-simple/5.0.4/jopt-simple-5.0.4.jar" -o bench/lib/jopt-simple.jar
+    curl -L "https://repo1.maven.org/maven2/org/apache/commons/commons-math3/3.6.1/commons-math3-3.6.1.jar" -o bench/lib/commons-math3.jar
+fi
+
+echo "Compiling server and benchmarks..."
+rm -rf bench/bin/*
+javac -encoding UTF-8 -cp "lib/*:bench/lib/*" -processorpath bench/lib/jmh-core.jar:bench/lib/jmh-generator-annprocess.jar:bench/lib/jopt-simple.jar:bench/lib/commons-math3.jar \
+    -d bench/bin *.java bench/*.java bench/chatbench/*.java || exit 1
+cp simplelogger.properties bench/bin/
+
+java -cp "bench/bin:lib/*:bench/lib/*" org.openjdk.jmh.Main "$@"
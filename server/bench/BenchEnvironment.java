@@ -0,0 +1,38 @@
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Points the server at a throwaway database and file store and starts its
+ * services, once per benchmark fork. Must run before anything touches
+ * ChatServer or DatabaseManager, because their settings are read when the
+ * classes initialize.
+ */
+final class BenchEnvironment {
+    private static Path dir;
+
+    private BenchEnvironment() {
+    }
+
+    static synchronized void start() throws IOException {
+        if (dir != null) {
+            return;
+        }
+        dir = Files.createTempDirectory("chat-bench");
+        System.setProperty("chat.db.url", "jdbc:sqlite:" + dir.resolve("chat.db"));
+        System.setProperty("chat.files.dir", dir.resolve("files").toString());
+        System.setProperty("chat.packetLoss", "0");
+        System.setProperty("chat.receiveWindow", String.valueOf(ChannelState.MAX_WINDOW_SIZE));
+        ChatServer.startServices();
+        Runtime.getRuntime().addShutdownHook(new Thread(BenchEnvironment::deleteDir, "bench-cleanup"));
+    }
+
+    private static void deleteDir() {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        } catch (IOException e) {
+            // best effort; it is a temp directory
+        }
+    }
+}
@@ -0,0 +1,231 @@
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.Callable;
+import org.json.JSONObject;
+
+/**
+ * The operations measured by the JMH benchmarks in bench/chatbench.
+ *
+ * JMH refuses benchmark classes in the default package, and a class in a
+ * named package cannot refer to the server's default-package classes, so
+ * the benchmarks look these factories up by name. Each factory runs its
+ * setup once and returns the operation to time. The operation's result is
+ * handed to JMH's blackhole.
+ */
+public final class BenchTargets {
+    private static final String TEXT = "Hello there, this is a typical chat message.";
+
+    private BenchTargets() {
+    }
+
+    /**
+     * /send-message through SendMessageHandler, with each call sending the
+     * next seq. The receiver acknowledges everything every half window so the
+     * window never fills. That receive is included in the measurement,
+     * spread across those sends.
+     */
+    public static Callable<Object> sendAccept(String receiver) throws IOException {
+        BenchEnvironment.start();
+        ChatServer.SendMessageHandler send = new ChatServer.SendMessageHandler();
+        ChatServer.ReceiveHandler receive = new ChatServer.ReceiveHandler();
+        String prefix = "{\"sender\":\"bench-sender\",\"receiver\":\"" + receiver + "\",\"message\":\"" + TEXT + "\",\"seq\":";
+        String drain = "/receive?user=" + receiver + "&lastAck=" + Long.MAX_VALUE;
+        int drainEvery = ChannelState.MAX_WINDOW_SIZE / 2;
+        int[] seq = {0};
+        return () -> {
+            FakeExchange exchange = FakeExchange.post("/send-message", (prefix + seq[0]++ + "}").getBytes(StandardCharsets.UTF_8));
+            send.handle(exchange);
+            if (seq[0] % drainEvery == 0) {
+                receive.handle(FakeExchange.get(drain));
+            }
+            return exchange.getResponseCode();
+        };
+    }
+
+    /** A retransmission of an already accepted seq, rejected without touching the log or the database. */
+    public static Callable<Object> sendDuplicate(String receiver) throws IOException {
+        BenchEnvironment.start();
+        ChatServer.SendMessageHandler send = new ChatServer.SendMessageHandler();
+        byte[] body = ("{\"sender\":\"bench-sender\",\"receiver\":\"" + receiver + "\",\"message\":\"" + TEXT + "\",\"seq\":0}")
+            .getBytes(StandardCharsets.UTF_8);
+        send.handle(FakeExchange.post("/send-message", body));
+        return () -> {
+            FakeExchange exchange = FakeExchange.post("/send-message", body);
+            send.handle(exchange);
+            return exchange.getResponseCode();
+        };
+    }
+
+    /**
+     * /receive through ReceiveHandler for a receiver with {@code backlog}
+     * unacknowledged messages. The receiver never acknowledges, so every call
+     * returns the same batch of at most chat.deliveryLog.maxBatch messages.
+     * Backlogs beyond the ring capacity are partly read back from SQLite.
+     */
+    public static Callable<Object> receivePoll(int backlog) throws IOException {
+        BenchEnvironment.start();
+        ChatServer.SendMessageHandler send = new ChatServer.SendMessageHandler();
+        ChatServer.ReceiveHandler receive = new ChatServer.ReceiveHandler();
+        String receiver = "backlog-" + backlog;
+        // Each sender may only have a window's worth outstanding, so spread the backlog over several
+        for (int i = 0; i < backlog; i++) {
+            String body = "{\"sender\":\"sender-" + (i / ChannelState.MAX_WINDOW_SIZE) + "\",\"receiver\":\"" + receiver +
+                "\",\"message\":\"Backlog message " + i + "\",\"seq\":" + (i % ChannelState.MAX_WINDOW_SIZE) + "}";
+            send.handle(FakeExchange.post("/send-message", body.getBytes(StandardCharsets.UTF_8)));
+        }
+        String query = "/receive?user=" + receiver + "&lastAck=-1";
+        return () -> {
+            FakeExchange exchange = FakeExchange.get(query);
+            receive.handle(exchange);
+            return exchange.responseBytes();
+        };
+    }
+
+    /** The write-behind path: {@code size} messages in one transaction. */
+    public static Callable<Object> storeBatch(int size) throws IOException {
+        BenchEnvironment.start();
+        List<ChatServer.Message> batch = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            batch.add(message("batch-a", "batch-b", i));
+        }
+        return () -> {
+            DatabaseManager.storeBatch(batch, Collections.emptyList());
+            return batch;
+        };
+    }
+
+    /**
+     * A 16-chunk transfer of 64 KB chunks read the way /download-file reads
+     * it: the manifest from file_chunk_refs, then the blobs from the
+     * FileStore, copied to a sink.
+     */
+    public static Callable<Object> downloadFile() throws IOException, SQLException {
+        BenchEnvironment.start();
+        FileStore store = new FileStore();
+        Random random = new Random(42);
+        List<WriteBehindQueue.ChunkRecord> refs = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            byte[] chunk = new byte[64 * 1024];
+            random.nextBytes(chunk); // incompressible, so the blobs are stored as they are
+            FileStore.StoredBlob blob = store.storeChunk(chunk, null);
+            refs.add(new WriteBehindQueue.ChunkRecord("bench-sender", "bench-receiver", "download.bin", i, 16,
+                blob.sha256, blob.size, blob.codec, blob.crc32));
+        }
+        DatabaseManager.storeBatch(Collections.emptyList(), refs);
+        return () -> {
+            List<Path> blobs = new ArrayList<>();
+            for (DatabaseManager.ChunkRef ref : DatabaseManager.getChunkRefs("download.bin", "bench-receiver")) {
+                blobs.add(store.blobPath(ref.sha256, ref.codec));
+            }
+            FileStore.transferTo(blobs, OutputStream.nullOutputStream());
+            return blobs;
+        };
+    }
+
+    /** The manifest of a 16-chunk content-addressed transfer. */
+    public static Callable<Object> getChunkRefs() throws IOException, SQLException {
+        BenchEnvironment.start();
+        List<WriteBehindQueue.ChunkRecord> refs = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            refs.add(new WriteBehindQueue.ChunkRecord("bench-sender", "bench-receiver", "blob.bin", i, 16,
+                String.format("%064x", i), 64 * 1024, Compression.IDENTITY, 0));
+        }
+        DatabaseManager.storeBatch(Collections.emptyList(), refs);
+        return () -> DatabaseManager.getChunkRefs("blob.bin", "bench-receiver");
+    }
+
+    /**
+     * The newest 50-message page of a 1000-message conversation, in a
+     * messages table seeded with {@code rows} rows spread over conversations
+     * of 100 messages each, interleaved as they would arrive.
+     */
+    public static Callable<Object> historyPage(int rows) throws IOException, SQLException {
+        BenchEnvironment.start();
+        int conversations = Math.max(1, (rows - 1000) / 100);
+        List<ChatServer.Message> batch = new ArrayList<>(10000);
+        for (int i = 0; i < rows - 1000; i++) {
+            int conversation = i % conversations;
+            int seq = i / conversations;
+            String a = "user-" + (2 * conversation);
+            String b = "user-" + (2 * conversation + 1);
+            batch.add(seq % 2 == 0 ? message(a, b, seq) : message(b, a, seq));
+            if (batch.size() == 10000) {
+                DatabaseManager.storeBatch(batch, Collections.emptyList());
+                batch.clear();
+            }
+        }
+        for (int i = 0; i < 1000; i++) {
+            batch.add(i % 2 == 0 ? message("history-a", "history-b", i) : message("history-b", "history-a", i));
+        }
+        DatabaseManager.storeBatch(batch, Collections.emptyList());
+        return () -> DatabaseManager.getConversationPage("history-a", "history-b", Long.MAX_VALUE, Long.MAX_VALUE, 50);
+    }
+
+    /**
+     * Delivery logs for {@code users} receivers with {@code backlog}
+     * unacknowledged messages each, built the way the send path builds them:
+     * names and types arrive as fresh Strings, as the request parser produces
+     * them. Returns the heap retained per user, after a full GC, while every
+     * log is resident and again after all of them have been offloaded as idle.
+     */
+    public static Callable<Object> deliveryLogFootprint(int users, int backlog) throws IOException {
+        BenchEnvironment.start();
+        return () -> {
+            long empty = retainedHeap();
+            WriteBehindQueue writes = new WriteBehindQueue();
+            writes.start();
+            DeliveryLog logs = new DeliveryLog(writes);
+            for (int u = 0; u < users; u++) {
+                String receiver = "user-" + u;
+                for (int i = 0; i < backlog; i++) {
+                    logs.append(receiver, new ChatServer.Message("sender-" + (u % 1000), new String(receiver), i,
+                        "Backlog message " + i, new String("text")));
+                }
+            }
+            writes.shutdown(); // commits the queued offset reservations and spills before measuring
+            long resident = retainedHeap();
+            logs.offloadIdle(Long.MAX_VALUE);
+            long offloaded = retainedHeap();
+            if (logs.totalBacklogDepth() != (long) users * backlog) {
+                throw new IllegalStateException("offload lost messages");
+            }
+            return new long[] {(resident - empty) / users, (offloaded - empty) / users};
+        };
+    }
+
+    private static long retainedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    public static Callable<Object> parseQuery(String query) {
+        return () -> ChatServer.parseQuery(query);
+    }
+
+    /** The body as a String, as the remaining JSON handlers read it. */
+    public static Callable<Object> readRequestBody(byte[] body) {
+        return () -> ChatServer.readRequestBody(FakeExchange.post("/send-message", body));
+    }
+
+    /** readRequestBody followed by a JSONObject parse. */
+    public static Callable<Object> readRequestBodyAsJsonObject(byte[] body) {
+        return () -> new JSONObject(ChatServer.readRequestBody(FakeExchange.post("/send-message", body)));
+    }
+
+    /** The streaming codec used by /send-message. */
+    public static Callable<Object> readSendRequest(byte[] body) {
+        return () -> MessageCodec.readSendRequest(new ByteArrayInputStream(body));
+    }
+
+    private static ChatServer.Message message(String sender, String receiver, int seq) {
+        return new ChatServer.Message(sender, receiver, seq, TEXT, "text");
+    }
+}
@@ -0,0 +1,145 @@
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * In-memory HttpExchange, so handlers can be benchmarked without sockets.
+ * The response body is counted and discarded.
+ */
+class FakeExchange extends HttpExchange {
+    private static final InetSocketAddress LOCAL = new InetSocketAddress("127.0.0.1", 8080);
+
+    private final String method;
+    private final URI uri;
+    private final Headers requestHeaders = new Headers();
+    private final Headers responseHeaders = new Headers();
+    private final Map<String, Object> attributes = new HashMap<>();
+    private InputStream requestBody;
+    private OutputStream responseBody;
+    private long responseBytes;
+    private int responseCode = -1;
+
+    FakeExchange(String method, String pathAndQuery, byte[] body) {
+        this.method = method;
+        this.uri = URI.create(pathAndQuery);
+        this.requestBody = new ByteArrayInputStream(body);
+        this.responseBody = new OutputStream() {
+            @Override
+            public void write(int b) {
+                responseBytes++;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                responseBytes += len;
+            }
+        };
+    }
+
+    static FakeExchange get(String pathAndQuery) {
+        return new FakeExchange("GET", pathAndQuery, new byte[0]);
+    }
+
+    static FakeExchange post(String pathAndQuery, byte[] body) {
+        return new FakeExchange("POST", pathAndQuery, body);
+    }
+
+    long responseBytes() {
+        return responseBytes;
+    }
+
+    @Override
+    public Headers getRequestHeaders() {
+        return requestHeaders;
+    }
+
+    @Override
+    public Headers getResponseHeaders() {
+        return responseHeaders;
+    }
+
+    @Override
+    public URI getRequestURI() {
+        return uri;
+    }
+
+    @Override
+    public String getRequestMethod() {
+        return method;
+    }
+
+    @Override
+    public HttpContext getHttpContext() {
+        return null;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public InputStream getRequestBody() {
+        return requestBody;
+    }
+
+    @Override
+    public OutputStream getResponseBody() {
+        return responseBody;
+    }
+
+    @Override
+    public void sendResponseHeaders(int rCode, long responseLength) {
+        this.responseCode = rCode;
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress() {
+        return LOCAL;
+    }
+
+    @Override
+    public int getResponseCode() {
+        return responseCode;
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        return LOCAL;
+    }
+
+    @Override
+    public String getProtocol() {
+        return "HTTP/1.1";
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+        return attributes.get(name);
+    }
+
+    @Override
+    public void setAttribute(String name, Object value) {
+        attributes.put(name, value);
+    }
+
+    @Override
+    public void setStreams(InputStream i, OutputStream o) {
+        if (i != null) {
+            requestBody = i;
+        }
+        if (o != null) {
+            responseBody = o;
+        }
+    }
+
+    @Override
+    public HttpPrincipal getPrincipal() {
+        return null;
+    }
+}
@@ -0,0 +1,62 @@
+package chatbench;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * DatabaseManager against a temporary SQLite file with the server's pragmas.
+ * storeBatch is the write-behind path and is reported per message;
+ * storeSingle is the same path when every batch holds one message.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DatabaseBenchmark {
+    private static final int BATCH = 64;
+    private static final int HISTORY_ROWS = 1_000_000;
+
+    private Callable<Object> storeSingle;
+    private Callable<Object> storeBatch;
+    private Callable<Object> downloadFile;
+    private Callable<Object> getChunkRefs;
+    private Callable<Object> historyPage;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        storeSingle = Targets.get("storeBatch", 1);
+        storeBatch = Targets.get("storeBatch", BATCH);
+        downloadFile = Targets.get("downloadFile");
+        getChunkRefs = Targets.get("getChunkRefs");
+        historyPage = Targets.get("historyPage", HISTORY_ROWS);
+    }
+
+    @Benchmark
+    public Object storeSingle() throws Exception {
+        return storeSingle.call();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public Object storeBatch() throws Exception {
+        return storeBatch.call();
+    }
+
+    @Benchmark
+    public Object downloadFile() throws Exception {
+        return downloadFile.call();
+    }
+
+    @Benchmark
+    public Object getChunkRefs() throws Exception {
+        return getChunkRefs.call();
+    }
+
+    @Benchmark
+    public Object historyPage() throws Exception {
+        return historyPage.call();
+    }
+}
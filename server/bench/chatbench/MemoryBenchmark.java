@@ -0,0 +1,39 @@
+package chatbench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Heap retained by the delivery logs of {@code users} receivers with
+ * {@code backlog} unacknowledged messages each, with every log resident and
+ * after all of them have been offloaded as idle. The bytes per user are
+ * reported as the residentBytesPerUser and offloadedBytesPerUser counters;
+ * the time is that of building the logs and offloading them once.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class MemoryBenchmark {
+    @Param({"1000000"})
+    public int users;
+
+    @Param({"2"})
+    public int backlog;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Footprint {
+        public long residentBytesPerUser;
+        public long offloadedBytesPerUser;
+    }
+
+    @Benchmark
+    public void deliveryLogs(Footprint footprint) throws Exception {
+        long[] bytes = (long[]) Targets.get("deliveryLogFootprint", users, backlog).call();
+        footprint.residentBytesPerUser = bytes[0];
+        footprint.offloadedBytesPerUser = bytes[1];
+    }
+}
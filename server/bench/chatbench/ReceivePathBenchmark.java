@@ -0,0 +1,34 @@
+package chatbench;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * /receive through ReceiveHandler: delivery log scan plus response
+ * serialization for a receiver with {@code backlog} unacknowledged messages.
+ * Backlogs above the ring capacity (chat.deliveryLog.capacity, 1000) are
+ * partly read back from the delivery_backlog table.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReceivePathBenchmark {
+    @Param({"0", "10", "100", "1000", "2000"})
+    public int backlog;
+
+    private Callable<Object> poll;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        poll = Targets.get("receivePoll", backlog);
+    }
+
+    @Benchmark
+    public Object pollBacklog() throws Exception {
+        return poll.call();
+    }
+}
@@ -0,0 +1,65 @@
+package chatbench;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Request decoding: parseQuery on a /receive and an /upload-chunk query,
+ * and a /send-message body read as a String, as a String plus JSONObject,
+ * and with the streaming MessageCodec.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RequestParsingBenchmark {
+    private static final String RECEIVE_QUERY = "user=alice&lastAck=1234&wait=25000";
+    private static final String UPLOAD_QUERY = "sender=alice&receiver=bob&fileName=holiday%20photos%20%C3%A9t%C3%A9.zip" +
+        "&chunkIndex=17&totalChunks=120&seq=17&sha256=9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08";
+    private static final byte[] SEND_BODY = ("{\"sender\":\"alice\",\"receiver\":\"bob\",\"seq\":1234," +
+        "\"message\":\"Hello Bob, how are you doing today? ça va? 😀\",\"type\":\"text\"}").getBytes(StandardCharsets.UTF_8);
+
+    private Callable<Object> receiveQuery;
+    private Callable<Object> uploadQuery;
+    private Callable<Object> bodyString;
+    private Callable<Object> bodyJsonObject;
+    private Callable<Object> bodyCodec;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        receiveQuery = Targets.get("parseQuery", RECEIVE_QUERY);
+        uploadQuery = Targets.get("parseQuery", UPLOAD_QUERY);
+        bodyString = Targets.get("readRequestBody", (Object) SEND_BODY);
+        bodyJsonObject = Targets.get("readRequestBodyAsJsonObject", (Object) SEND_BODY);
+        bodyCodec = Targets.get("readSendRequest", (Object) SEND_BODY);
+    }
+
+    @Benchmark
+    public Object parseReceiveQuery() throws Exception {
+        return receiveQuery.call();
+    }
+
+    @Benchmark
+    public Object parseUploadQuery() throws Exception {
+        return uploadQuery.call();
+    }
+
+    @Benchmark
+    public Object readRequestBody() throws Exception {
+        return bodyString.call();
+    }
+
+    @Benchmark
+    public Object readRequestBodyAsJsonObject() throws Exception {
+        return bodyJsonObject.call();
+    }
+
+    @Benchmark
+    public Object readSendRequest() throws Exception {
+        return bodyCodec.call();
+    }
+}
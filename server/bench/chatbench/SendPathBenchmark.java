@@ -0,0 +1,37 @@
+package chatbench;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * /send-message through SendMessageHandler: parse, sliding window, delivery
+ * log append, write-behind enqueue and the ack response. Persistence runs in
+ * the background writer, as it does with the default enqueue ack.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SendPathBenchmark {
+    private Callable<Object> accept;
+    private Callable<Object> duplicate;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        accept = Targets.get("sendAccept", "accept-" + Thread.currentThread().getId());
+        duplicate = Targets.get("sendDuplicate", "duplicate-" + Thread.currentThread().getId());
+    }
+
+    @Benchmark
+    public Object acceptInOrder() throws Exception {
+        return accept.call();
+    }
+
+    @Benchmark
+    public Object rejectDuplicate() throws Exception {
+        return duplicate.call();
+    }
+}
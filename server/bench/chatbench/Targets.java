@@ -0,0 +1,26 @@
+package chatbench;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+
+/** Looks up an operation from the default-package BenchTargets class. */
+final class Targets {
+    private Targets() {
+    }
+
+    @SuppressWarnings("unchecked")
+    static Callable<Object> get(String name, Object... args) throws Exception {
+        Class<?> targets = Class.forName("BenchTargets");
+        for (Method method : targets.getMethods()) {
+            if (method.getName().equals(name) && method.getParameterCount() == args.length) {
+                try {
+                    return (Callable<Object>) method.invoke(null, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+            }
+        }
+        throw new IllegalArgumentException("no benchmark target " + name + " taking " + args.length + " arguments");
+    }
+}
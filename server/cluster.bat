@@ -0,0 +1,29 @@
+@echo off
+setlocal enabledelayedexpansion
+
+:: Runs several server nodes on localhost as one cluster (see Cluster.java).
+:: Each node gets its own database and file store under cluster\node-<i>\.
+::     cluster.bat 3        start nodes on ports 8080, 8081 and 8082 in new windows
+
+set NODES=%1
+if "%NODES%"=="" set NODES=3
+if "%BASE_PORT%"=="" set BASE_PORT=8080
+
+if not exist lib\sqlite-jdbc.jar (
+    call compile.bat
+)
+
+set PEERS=
+set /a LAST=%NODES%-1
+for /L %%i in (0,1,%LAST%) do (
+    set /a PORT=%BASE_PORT%+%%i
+    if defined PEERS (set PEERS=!PEERS!,http://localhost:!PORT!) else (set PEERS=http://localhost:!PORT!)
+)
+
+for /L %%i in (0,1,%LAST%) do (
+    set /a PORT=%BASE_PORT%+%%i
+    mkdir cluster\node-%%i 2>nul
+    start "chat node %%i" java -Dchat.port=!PORT! -Dchat.cluster.self=http://localhost:!PORT! -Dchat.cluster.peers=!PEERS! -Dchat.db.url=jdbc:sqlite:cluster/node-%%i/chat.db -Dchat.files.dir=cluster/node-%%i/files -cp "bin;lib/*" ChatServer
+    echo Node %%i on port !PORT!
+)
+echo Peers: %PEERS%
@@ -0,0 +1,42 @@
+#!/bin/bash
+
+# Runs several server nodes on localhost as one cluster (see Cluster.java).
+# Each node gets its own database and file store under cluster/node-<i>/.
+#   ./cluster.sh 3              start nodes on ports 8080, 8081 and 8082
+#   BASE_PORT=9000 ./cluster.sh 2
+#   ./cluster.sh stop           stop every node started from here
+
+NODES=${1:-3}
+BASE_PORT=${BASE_PORT:-8080}
+
+if [ "$NODES" = "stop" ]; then
+    for pidfile in cluster/node-*/server.pid; do
+        [ -f "$pidfile" ] && kill "$(cat "$pidfile")" 2>/dev/null && rm "$pidfile"
+    done
+    exit 0
+fi
+
+if [ ! -d "bin" ] || [ ! -f "lib/sqlite-jdbc.jar" ]; then
+    chmod +x compile.sh
+    ./compile.sh
+fi
+
+PEERS=""
+for ((i = 0; i < NODES; i++)); do
+    PEERS="$PEERS${PEERS:+,}http://localhost:$((BASE_PORT + i))"
+done
+
+for ((i = 0; i < NODES; i++)); do
+    PORT=$((BASE_PORT + i))
+    DIR="cluster/node-$i"
+    mkdir -p "$DIR"
+    java -Dchat.port=$PORT \
+        -Dchat.cluster.self=http://localhost:$PORT \
+        -Dchat.cluster.peers=$PEERS \
+        -Dchat.db.url=jdbc:sqlite:$DIR/chat.db \
+        -Dchat.files.dir=$DIR/files \
+        -cp "bin:lib/*" ChatServer > "$DIR/server.log" 2>&1 &
+    echo $! > "$DIR/server.pid"
+    echo "Node $i on port $PORT (log: $DIR/server.log)"
+done
+echo "Peers: $PEERS"
@@ -17,6 +17,7 @@ curl -L -o lib\slf4j-simple.jar https://repo1.maven.org/maven2/org/slf4j/slf4j-s
 
 echo Compiling Java files...
 javac -cp "lib/*" -d bin *.java
+copy /y simplelogger.properties bin\ >nul
 
 echo.
 echo Compilation complete. Run with:
@@ -18,5 +18,6 @@ curl -L "https://repo1.maven.org/maven2/org/slf4j/slf4j-simple/2.0.13/slf4j-simp
 
 echo "Compiling Java files..."
 javac -cp "lib/*" -d bin *.java
+cp simplelogger.properties bin/
 
 echo "Compilation complete. Run with: java -cp 'bin:lib/*' ChatServer"
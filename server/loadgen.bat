@@ -0,0 +1,18 @@
+@echo off
+
+:: Runs the load generator in loadgen\. Arguments go to LoadGenerator, e.g.
+::     loadgen.bat --senders 2000 --duration 60 --loss 0.05
+
+mkdir lib 2>nul
+mkdir loadgen\bin 2>nul
+
+if not exist lib\sqlite-jdbc.jar (
+    echo Dependencies not found. Running compile script...
+    call compile.bat
+)
+
+echo Compiling server and load generator...
+javac -encoding UTF-8 -cp "lib/*" -d loadgen\bin *.java loadgen\*.java || exit /b 1
+copy /y simplelogger.properties loadgen\bin\ >nul
+
+java -cp "loadgen\bin;lib/*" LoadGenerator %*
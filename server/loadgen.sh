@@ -0,0 +1,22 @@
+#!/bin/bash
+
+# Runs the load generator in loadgen/. Arguments go to LoadGenerator, e.g.
+#   ./loadgen.sh --senders 2000 --duration 60 --loss 0.05
+#   ./loadgen.sh --url http://localhost:8080 --senders 500
+#   ./loadgen.sh --help
+
+mkdir -p lib loadgen/bin
+
+# Server dependencies
+if [ ! -f "lib/sqlite-jdbc.jar" ] || [ ! -f "lib/json.jar" ]; then
+    echo "Dependencies not found. Running compile script..."
+    chmod +x compile.sh
+    ./compile.sh
+fi
+
+echo "Compiling server and load generator..."
+rm -rf loadgen/bin/*
+javac -encoding UTF-8 -cp "lib/*" -d loadgen/bin *.java loadgen/*.java || exit 1
+cp simplelogger.properties loadgen/bin/
+
+java -cp "loadgen/bin:lib/*" LoadGenerator "$@"
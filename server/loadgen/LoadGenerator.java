@@ -0,0 +1,871 @@
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.WebSocket;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Headless load generator for the chat protocol.
+ *
+ * Simulates many senders, receivers and file uploaders, each on its own
+ * (virtual, where available) thread, against a ChatServer started in this
+ * JVM or already running ones given with --url. Senders follow the
+ * client's Go-Back-N rules from app/page.tsx: at most --window messages
+ * outstanding, one retransmission timer for the oldest, and on expiry
+ * everything outstanding is resent except the seqs the server reports in
+ * its sack. With --batch, everything due at once goes out as one
+ * /send-batch request. Receivers long-poll /receive and acknowledge by delivery offset.
+ * With --ws, senders and receivers each keep a WebSocket open instead:
+ * sends are answered by ack frames and messages are pushed.
+ * Uploaders push binary chunks through /upload-chunk and retry until each
+ * one is acknowledged.
+ *
+ * Run with loadgen.sh; --help lists the options.
+ */
+public class LoadGenerator {
+    private static final String USAGE = String.join("\n",
+        "Usage: loadgen.sh [options]",
+        "  --url URL[,URL...]      target running servers instead of starting one in this JVM; with",
+        "                          several cluster nodes the clients are spread across them",
+        "  --port N                port for the embedded server (default 18080)",
+        "  --loss P                packet loss probability of the embedded server, 0..1 (default 0.1)",
+        "  --senders N             simulated senders (default 1000)",
+        "  --fan-in N              senders per receiver (default 1)",
+        "  --uploaders N           simulated file uploaders (default 10)",
+        "  --duration S            seconds to offer load for (default 30)",
+        "  --drain S               seconds to wait for outstanding messages afterwards (default 15)",
+        "  --rate R                messages per second per sender, 0 = as fast as the window allows (default 2)",
+        "  --window N              sender window, as WINDOW_SIZE in the client (default 5)",
+        "  --rto MS                retransmission timeout, as TIMEOUT_MS in the client (default 3000)",
+        "  --message-bytes N       message payload size (default 100)",
+        "  --chunk-kb N            upload chunk size (default 64)",
+        "  --file-chunks N         chunks per uploaded file (default 4)",
+        "  --upload-interval MS    pause between files per uploader (default 1000)",
+        "  --poll-wait MS          long-poll wait of /receive (default 1000)",
+        "  --batch                 send everything due in one /send-batch request instead of one",
+        "                          /send-message per packet",
+        "  --ws                    senders and receivers use the WebSocket transport instead of",
+        "                          /send-message and /receive; uploads stay on HTTP",
+        "  --ws-port N             port of the WebSocket transport, on the embedded server or on",
+        "                          each --url host (default 18081)");
+
+    public static void main(String[] args) throws Exception {
+        Options options;
+        try {
+            options = Options.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        }
+        if (options.help) {
+            System.out.println(USAGE);
+            return;
+        }
+
+        List<String> baseUrls = options.url != null
+            ? Arrays.asList(options.url.split(",")) : Collections.singletonList(startEmbeddedServer(options));
+        new LoadGenerator(options, baseUrls).run();
+        System.exit(0); // the embedded server has no stop hook
+    }
+
+    /**
+     * Starts a ChatServer in this JVM on a throwaway database. Must run before
+     * anything touches ChatServer, because its settings are read when the
+     * class initializes.
+     */
+    private static String startEmbeddedServer(Options options) throws Exception {
+        Path dir = Files.createTempDirectory("chat-load");
+        System.setProperty("chat.port", String.valueOf(options.port));
+        System.setProperty("chat.db.url", "jdbc:sqlite:" + dir.resolve("chat.db"));
+        System.setProperty("chat.files.dir", dir.resolve("files").toString());
+        System.setProperty("chat.packetLoss", String.valueOf(options.loss));
+        if (options.ws) {
+            System.setProperty("chat.ws.port", String.valueOf(options.wsPort));
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> deleteDir(dir), "load-cleanup"));
+        ChatServer.main(new String[0]);
+        return "http://localhost:" + options.port;
+    }
+
+    private static void deleteDir(Path dir) {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        } catch (IOException e) {
+            // best effort; it is a temp directory
+        }
+    }
+
+    static class Options {
+        String url;
+        int port = 18080;
+        double loss = 0.1;
+        int senders = 1000;
+        int fanIn = 1;
+        int uploaders = 10;
+        int durationSeconds = 30;
+        int drainSeconds = 15;
+        double rate = 2;
+        int window = 5;
+        long rtoMs = 3000;
+        int messageBytes = 100;
+        int chunkKb = 64;
+        int fileChunks = 4;
+        long uploadIntervalMs = 1000;
+        long pollWaitMs = 1000;
+        boolean batch;
+        boolean ws;
+        int wsPort = 18081;
+        boolean help;
+
+        static Options parse(String[] args) {
+            Options options = new Options();
+            for (int i = 0; i < args.length; i++) {
+                String name = args[i];
+                if (name.equals("--help") || name.equals("-h")) {
+                    options.help = true;
+                    continue;
+                }
+                if (name.equals("--batch")) {
+                    options.batch = true;
+                    continue;
+                }
+                if (name.equals("--ws")) {
+                    options.ws = true;
+                    continue;
+                }
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value for " + name);
+                }
+                String value = args[++i];
+                try {
+                    switch (name) {
+                        case "--url": options.url = value.replaceAll("/+(,|$)", "$1"); break;
+                        case "--port": options.port = Integer.parseInt(value); break;
+                        case "--loss": options.loss = Double.parseDouble(value); break;
+                        case "--senders": options.senders = Integer.parseInt(value); break;
+                        case "--fan-in": options.fanIn = Integer.parseInt(value); break;
+                        case "--uploaders": options.uploaders = Integer.parseInt(value); break;
+                        case "--duration": options.durationSeconds = Integer.parseInt(value); break;
+                        case "--drain": options.drainSeconds = Integer.parseInt(value); break;
+                        case "--rate": options.rate = Double.parseDouble(value); break;
+                        case "--window": options.window = Integer.parseInt(value); break;
+                        case "--rto": options.rtoMs = Long.parseLong(value); break;
+                        case "--message-bytes": options.messageBytes = Integer.parseInt(value); break;
+                        case "--chunk-kb": options.chunkKb = Integer.parseInt(value); break;
+                        case "--file-chunks": options.fileChunks = Integer.parseInt(value); break;
+                        case "--upload-interval": options.uploadIntervalMs = Long.parseLong(value); break;
+                        case "--poll-wait": options.pollWaitMs = Long.parseLong(value); break;
+                        case "--ws-port": options.wsPort = Integer.parseInt(value); break;
+                        default: throw new IllegalArgumentException("Unknown option " + name);
+                    }
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid value for " + name + ": " + value);
+                }
+            }
+            if (options.loss < 0 || options.loss > 1) {
+                throw new IllegalArgumentException("--loss must be between 0 and 1");
+            }
+            if (options.senders < 1 || options.fanIn < 1 || options.window < 1 || options.window > ChannelState.MAX_WINDOW_SIZE) {
+                throw new IllegalArgumentException("--senders and --fan-in must be positive and --window between 1 and " +
+                    ChannelState.MAX_WINDOW_SIZE);
+            }
+            if (options.ws && options.batch) {
+                throw new IllegalArgumentException("--ws and --batch cannot be combined");
+            }
+            return options;
+        }
+    }
+
+    private final Options options;
+    private final List<String> baseUrls;
+    private final String runId = Long.toString(System.currentTimeMillis(), 36); // fresh channels on a reused server
+    private final HttpClient http;
+    private final Stats stats = new Stats();
+    private final AtomicBoolean receiversStopped = new AtomicBoolean(false);
+    private long sendDeadline;
+    private long drainDeadline;
+
+    LoadGenerator(Options options, List<String> baseUrls) {
+        this.options = options;
+        this.baseUrls = baseUrls;
+        this.http = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1) // HttpServer does not speak h2c
+            .connectTimeout(Duration.ofSeconds(10))
+            .build();
+    }
+
+    void run() throws InterruptedException {
+        ExecutorService virtual = ServerConfig.newVirtualThreadExecutor();
+        ExecutorService clients = virtual != null ? virtual : Executors.newCachedThreadPool();
+        int receivers = (options.senders + options.fanIn - 1) / options.fanIn;
+        System.out.println("Load run " + runId + " against " + String.join(", ", baseUrls) + ": " + options.senders + " senders, " +
+            receivers + " receivers, " + options.uploaders + " uploaders for " + options.durationSeconds + " s on " +
+            (virtual != null ? "virtual threads" : "platform threads (virtual threads need JDK 21+)"));
+
+        long start = System.nanoTime();
+        sendDeadline = start + TimeUnit.SECONDS.toNanos(options.durationSeconds);
+        drainDeadline = sendDeadline + TimeUnit.SECONDS.toNanos(options.drainSeconds);
+
+        List<Future<?>> receiverTasks = new ArrayList<>();
+        for (int i = 0; i < receivers; i++) {
+            receiverTasks.add(clients.submit(new ReceiverClient(node(i), receiverName(i))));
+        }
+        List<Future<?>> senderTasks = new ArrayList<>();
+        for (int i = 0; i < options.senders; i++) {
+            senderTasks.add(clients.submit(new SenderClient(node(i), "load-" + runId + "-s" + i, receiverName(i / options.fanIn))));
+        }
+        for (int i = 0; i < options.uploaders; i++) {
+            senderTasks.add(clients.submit(new UploaderClient(node(i), "load-" + runId + "-u" + i, receiverName(i % receivers))));
+        }
+
+        awaitAll(senderTasks);
+        long sendersDone = System.nanoTime();
+        receiversStopped.set(true);
+        awaitAll(receiverTasks);
+        clients.shutdownNow();
+
+        report(sendersDone - start);
+    }
+
+    /** The server client {@code index} talks to; clients are dealt out over the nodes in turn. */
+    private String node(int index) {
+        return baseUrls.get(index % baseUrls.size());
+    }
+
+    private String receiverName(int index) {
+        return "load-" + runId + "-r" + index;
+    }
+
+    private static void awaitAll(List<Future<?>> tasks) throws InterruptedException {
+        for (Future<?> task : tasks) {
+            try {
+                task.get();
+            } catch (ExecutionException e) {
+                e.getCause().printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * One sender with a Go-Back-N window over its channel to one receiver.
+     * Messages carry their first-send time so receivers can measure
+     * delivery latency; a retransmission resends the identical payload.
+     */
+    class SenderClient implements Runnable {
+        private final String baseUrl;
+        private final String sender;
+        private final String receiver;
+        private final long[] firstSent; // indexed by seq % window
+        private final Set<Integer> sacked = new HashSet<>();
+        private final String padding;
+        private int base = 0;
+        private int next = 0;
+        private long timerStart;
+        // --ws: acks arrive on the WebSocket's listener and are applied by the sending thread
+        private WsConnection ws;
+        private Thread thread;
+        private final Queue<JSONObject> acks = new ConcurrentLinkedQueue<>();
+        private final long[] lastSent;  // indexed by seq % window, for the send-to-ack latency
+
+        SenderClient(String baseUrl, String sender, String receiver) {
+            this.baseUrl = baseUrl;
+            this.sender = sender;
+            this.receiver = receiver;
+            this.firstSent = new long[options.window];
+            this.lastSent = new long[options.window];
+            this.padding = "x".repeat(Math.max(0, options.messageBytes - 20)); // after the send time and the colon
+        }
+
+        @Override
+        public void run() {
+            if (options.ws) {
+                thread = Thread.currentThread();
+                ws = new WsConnection(this::onFrame);
+                try {
+                    ws.open(baseUrl, sender);
+                } catch (CompletionException e) {
+                    stats.errors.increment();
+                    return;
+                }
+            }
+            try {
+                sendLoop();
+            } finally {
+                if (ws != null) {
+                    ws.close();
+                }
+            }
+        }
+
+        private void sendLoop() {
+            long interval = options.rate > 0 ? (long) (1e9 / options.rate) : 0;
+            // Spread the first sends over one interval so the senders do not start in lockstep
+            long nextSendAt = System.nanoTime() + (interval > 0 ? ThreadLocalRandom.current().nextLong(interval) : 0);
+
+            while (true) {
+                if (ws != null) {
+                    applyAcks();
+                }
+                long now = System.nanoTime();
+                boolean sending = now < sendDeadline;
+                if (!sending && (base == next || now >= drainDeadline)) {
+                    stats.undelivered.add(next - base);
+                    return;
+                }
+
+                if (base < next && now - timerStart >= TimeUnit.MILLISECONDS.toNanos(options.rtoMs)) {
+                    // Go-Back-N: resend everything outstanding the server has not reported holding
+                    timerStart = now;
+                    if (options.batch) {
+                        List<Integer> due = new ArrayList<>(next - base);
+                        for (int seq = base; seq < next; seq++) {
+                            if (!sacked.contains(seq)) {
+                                due.add(seq);
+                            }
+                        }
+                        stats.retransmissions.add(due.size());
+                        sendBatch(due);
+                        continue;
+                    }
+                    for (int seq = base; seq < next; seq = Math.max(seq + 1, base)) { // an ack can move base mid-loop
+                        if (!sacked.contains(seq)) {
+                            stats.retransmissions.increment();
+                            send(seq);
+                        }
+                    }
+                    continue;
+                }
+
+                if (sending && next < base + options.window && now >= nextSendAt) {
+                    List<Integer> due = new ArrayList<>(options.batch ? options.window : 1);
+                    do {
+                        int seq = next++;
+                        firstSent[seq % options.window] = now;
+                        if (base == seq) {
+                            timerStart = now;
+                        }
+                        due.add(seq);
+                        nextSendAt = interval > 0 ? Math.max(nextSendAt + interval, now - interval) : now;
+                    } while (options.batch && next < base + options.window && now >= nextSendAt);
+                    stats.firstSends.add(due.size());
+                    if (options.batch) {
+                        sendBatch(due);
+                    } else {
+                        send(due.get(0));
+                    }
+                    continue;
+                }
+
+                long wakeAt = base < next ? timerStart + TimeUnit.MILLISECONDS.toNanos(options.rtoMs) : drainDeadline;
+                if (sending && next < base + options.window) {
+                    wakeAt = Math.min(wakeAt, nextSendAt);
+                }
+                if (sending) {
+                    wakeAt = Math.min(wakeAt, sendDeadline);
+                }
+                LockSupport.parkNanos(Math.max(wakeAt - now, 100_000));
+            }
+        }
+
+        private void send(int seq) {
+            JSONObject payload = new JSONObject()
+                .put("sender", sender)
+                .put("receiver", receiver)
+                .put("seq", seq)
+                .put("message", firstSent[seq % options.window] + ":" + padding)
+                .put("type", "text");
+            if (ws != null) {
+                // The connection is the sender; the ack comes back as a frame
+                payload.remove("sender");
+                stats.sendRequests.increment();
+                lastSent[seq % options.window] = System.nanoTime();
+                ws.send(payload.put("op", "send").toString());
+                return;
+            }
+            HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl + "/send-message"))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(payload.toString()))
+                .build();
+            JSONObject ack = post(request);
+            if (ack == null) {
+                return;
+            }
+            onAck(ack.getInt("ack"));
+            JSONArray sack = ack.optJSONArray("sack");
+            if (sack != null) {
+                for (int i = 0; i < sack.length(); i++) {
+                    sacked.add(sack.getInt(i));
+                }
+            }
+        }
+
+        private void sendBatch(List<Integer> seqs) {
+            JSONArray packets = new JSONArray();
+            for (int seq : seqs) {
+                packets.put(new JSONObject()
+                    .put("seq", seq)
+                    .put("message", firstSent[seq % options.window] + ":" + padding)
+                    .put("type", "text"));
+            }
+            JSONObject payload = new JSONObject()
+                .put("sender", sender)
+                .put("receiver", receiver)
+                .put("packets", packets);
+            HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl + "/send-batch"))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(payload.toString()))
+                .build();
+            JSONObject ack = post(request);
+            if (ack == null) {
+                return;
+            }
+            int acked = ack.getInt("ack");
+            onAck(acked);
+            long bitmap = Long.parseUnsignedLong(ack.optString("sackBitmap", "0"), 16);
+            for (; bitmap != 0; bitmap &= bitmap - 1) {
+                sacked.add(acked + 1 + Long.numberOfTrailingZeros(bitmap));
+            }
+        }
+
+        /** Sends one request and returns its ack, or null if it failed or the server dropped it. */
+        private JSONObject post(HttpRequest request) {
+            stats.sendRequests.increment();
+            long start = System.nanoTime();
+            HttpResponse<String> response;
+            try {
+                response = http.send(request, HttpResponse.BodyHandlers.ofString());
+            } catch (IOException e) {
+                stats.errors.increment();
+                return null;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            stats.sendLatency.record(System.nanoTime() - start);
+
+            if (response.statusCode() != 200) {
+                stats.errors.increment();
+                return null;
+            }
+            if (response.body().isEmpty()) {
+                stats.lost.increment(); // the server dropped it; the timer will resend
+                return null;
+            }
+            return new JSONObject(response.body());
+        }
+
+        /** Listener thread: queues acks and errors for the sending thread and wakes it. */
+        private void onFrame(JSONObject frame) {
+            String op = frame.optString("op");
+            if (op.equals("ack") || op.equals("error")) {
+                acks.add(frame);
+                LockSupport.unpark(thread);
+            }
+        }
+
+        private void applyAcks() {
+            JSONObject ack;
+            while ((ack = acks.poll()) != null) {
+                if (ack.optString("op").equals("error")) {
+                    stats.errors.increment();
+                    continue;
+                }
+                stats.sendLatency.record(System.nanoTime() - lastSent[ack.getInt("seq") % options.window]);
+                onAck(ack.getInt("ack"));
+                JSONArray sack = ack.optJSONArray("sack");
+                if (sack != null) {
+                    for (int i = 0; i < sack.length(); i++) {
+                        sacked.add(sack.getInt(i));
+                    }
+                }
+            }
+        }
+
+        /** Slides the window up to the cumulative ack; the caller then refills sacked from the response. */
+        private void onAck(int acked) {
+            if (acked >= base) {
+                base = acked + 1;
+                timerStart = System.nanoTime();
+            }
+            sacked.clear();
+        }
+    }
+
+    /**
+     * One receiver long-polling /receive, or with --ws taking pushed
+     * messages and acknowledging each frame of them. Checks that each
+     * sender's text messages arrive exactly once and in seq order.
+     */
+    class ReceiverClient implements Runnable {
+        private final String baseUrl;
+        private final String user;
+        private final Map<String, Integer> expectedSeq = new HashMap<>();
+        private long lastAck = -1;
+        private WsConnection ws;
+
+        ReceiverClient(String baseUrl, String user) {
+            this.baseUrl = baseUrl;
+            this.user = user;
+        }
+
+        @Override
+        public void run() {
+            if (options.ws) {
+                ws = new WsConnection(this::onFrame);
+                try {
+                    ws.open(baseUrl, user);
+                } catch (CompletionException e) {
+                    stats.errors.increment();
+                    return;
+                }
+                while (!receiversStopped.get()) {
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+                }
+                ws.close();
+                return;
+            }
+            // One last poll after the senders finish, so their final messages are acknowledged
+            boolean last = false;
+            while (!last) {
+                last = receiversStopped.get();
+                long wait = last ? 0 : options.pollWaitMs;
+                HttpRequest request = HttpRequest.newBuilder(URI.create(
+                    baseUrl + "/receive?user=" + user + "&lastAck=" + lastAck + "&wait=" + wait)).GET().build();
+                try {
+                    HttpResponse<String> response = http.send(request, HttpResponse.BodyHandlers.ofString());
+                    if (response.statusCode() != 200) {
+                        stats.errors.increment();
+                        continue;
+                    }
+                    deliver(new JSONObject(response.body()).getJSONArray("messages"));
+                } catch (IOException e) {
+                    stats.errors.increment();
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        /** Listener thread: takes a pushed batch and acknowledges it. */
+        private void onFrame(JSONObject frame) {
+            if (frame.optString("op").equals("messages")) {
+                deliver(frame.getJSONArray("messages"));
+                ws.send(new JSONObject().put("op", "ack").put("lastAck", lastAck).toString());
+            }
+        }
+
+        private void deliver(JSONArray messages) {
+            long now = System.nanoTime();
+            for (int i = 0; i < messages.length(); i++) {
+                JSONObject message = messages.getJSONObject(i);
+                long offset = message.getLong("offset");
+                if (offset <= lastAck) {
+                    stats.duplicates.increment();
+                    continue;
+                }
+                lastAck = offset;
+
+                String content = message.getString("message");
+                if ("file_chunk".equals(message.optString("type"))) {
+                    stats.chunksDelivered.increment();
+                    continue;
+                }
+                String sender = message.getString("sender");
+                int seq = message.getInt("seq");
+                int expected = expectedSeq.getOrDefault(sender, 0);
+                if (seq != expected) {
+                    stats.orderViolations.increment();
+                }
+                expectedSeq.put(sender, seq + 1);
+                stats.delivered.increment();
+                stats.deliveredBytes.add(content.length());
+                stats.deliveryLatency.record(now - Long.parseLong(content.substring(0, content.indexOf(':'))));
+            }
+        }
+    }
+
+    /**
+     * A WebSocket to the server's transport. Text frames are reassembled and
+     * handed to {@code onFrame} on the listener thread, one at a time. A send
+     * waits for its frame to be written, under the connection's lock, because
+     * a WebSocket allows only one send in flight.
+     */
+    class WsConnection implements WebSocket.Listener {
+        private final Consumer<JSONObject> onFrame;
+        private final StringBuilder partial = new StringBuilder();
+        private volatile WebSocket webSocket;
+
+        WsConnection(Consumer<JSONObject> onFrame) {
+            this.onFrame = onFrame;
+        }
+
+        void open(String baseUrl, String user) {
+            String host = URI.create(baseUrl).getHost();
+            webSocket = http.newWebSocketBuilder()
+                .buildAsync(URI.create("ws://" + host + ":" + options.wsPort + "/ws?user=" + user), this)
+                .join();
+        }
+
+        synchronized void send(String text) {
+            try {
+                webSocket.sendText(text, true).get(10, TimeUnit.SECONDS);
+            } catch (ExecutionException | TimeoutException e) {
+                stats.errors.increment();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        synchronized void close() {
+            try {
+                webSocket.sendClose(WebSocket.NORMAL_CLOSURE, "").get(5, TimeUnit.SECONDS);
+            } catch (ExecutionException | TimeoutException e) {
+                stats.errors.increment();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void onOpen(WebSocket webSocket) {
+            this.webSocket = webSocket; // before any frame is passed on, which may be answered
+            webSocket.request(1);
+        }
+
+        @Override
+        public CompletionStage<?> onText(WebSocket webSocket, CharSequence data, boolean last) {
+            partial.append(data);
+            if (last) {
+                JSONObject frame = new JSONObject(partial.toString());
+                partial.setLength(0);
+                onFrame.accept(frame);
+            }
+            webSocket.request(1);
+            return null;
+        }
+
+        @Override
+        public void onError(WebSocket webSocket, Throwable error) {
+            stats.errors.increment();
+        }
+    }
+
+    /**
+     * One uploader sending files of random bytes through the binary
+     * /upload-chunk path, one chunk at a time, retrying a chunk until the
+     * server acknowledges it.
+     */
+    class UploaderClient implements Runnable {
+        private final String baseUrl;
+        private final String sender;
+        private final String receiver;
+        private int seq = 0;
+
+        UploaderClient(String baseUrl, String sender, String receiver) {
+            this.baseUrl = baseUrl;
+            this.sender = sender;
+            this.receiver = receiver;
+        }
+
+        @Override
+        public void run() {
+            byte[] chunk = new byte[options.chunkKb * 1024];
+            for (int file = 0; System.nanoTime() < sendDeadline; file++) {
+                String fileName = sender + "-" + file + ".bin";
+                for (int index = 0; index < options.fileChunks; index++) {
+                    ThreadLocalRandom.current().nextBytes(chunk);
+                    if (!upload(fileName, index, chunk)) {
+                        return;
+                    }
+                }
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(options.uploadIntervalMs));
+            }
+        }
+
+        private boolean upload(String fileName, int index, byte[] chunk) {
+            String query = "sender=" + sender + "&receiver=" + receiver + "&fileName=" + fileName +
+                "&chunkIndex=" + index + "&totalChunks=" + options.fileChunks + "&seq=" + seq++ +
+                "&sha256=" + sha256(chunk);
+            HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl + "/upload-chunk?" + query))
+                .header("Content-Type", "application/octet-stream")
+                .POST(HttpRequest.BodyPublishers.ofByteArray(chunk))
+                .build();
+            boolean retry = false;
+            while (System.nanoTime() < drainDeadline) {
+                if (retry) {
+                    stats.chunkRetries.increment();
+                }
+                retry = true;
+                long start = System.nanoTime();
+                try {
+                    HttpResponse<String> response = http.send(request, HttpResponse.BodyHandlers.ofString());
+                    stats.uploadLatency.record(System.nanoTime() - start);
+                    if (response.statusCode() == 200) {
+                        stats.chunksUploaded.increment();
+                        stats.uploadedBytes.add(chunk.length);
+                        return true;
+                    }
+                    stats.errors.increment();
+                } catch (IOException e) {
+                    stats.errors.increment();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(options.rtoMs));
+            }
+            return false;
+        }
+    }
+
+    private static String sha256(byte[] data) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(data);
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static class Stats {
+        final LongAdder sendRequests = new LongAdder();
+        final LongAdder firstSends = new LongAdder();
+        final LongAdder retransmissions = new LongAdder();
+        final LongAdder lost = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LongAdder undelivered = new LongAdder();
+        final LongAdder delivered = new LongAdder();
+        final LongAdder deliveredBytes = new LongAdder();
+        final LongAdder duplicates = new LongAdder();
+        final LongAdder orderViolations = new LongAdder();
+        final LongAdder chunksUploaded = new LongAdder();
+        final LongAdder chunkRetries = new LongAdder();
+        final LongAdder chunksDelivered = new LongAdder();
+        final LongAdder uploadedBytes = new LongAdder();
+        final Histogram sendLatency = new Histogram();
+        final Histogram uploadLatency = new Histogram();
+        final Histogram deliveryLatency = new Histogram();
+    }
+
+    private void report(long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        long first = stats.firstSends.sum();
+        long retransmitted = stats.retransmissions.sum();
+        long delivered = stats.delivered.sum();
+
+        System.out.println();
+        System.out.printf("Elapsed            %.1f s (%d s of load plus drain)%n", seconds, options.durationSeconds);
+        System.out.printf("Loss               %s%n", options.url == null
+            ? String.valueOf(options.loss) : "set by the target server (chat.packetLoss)");
+        System.out.printf("Sends              %d (%d new, %d retransmitted)%n", first + retransmitted, first, retransmitted);
+        System.out.printf("Retransmit ratio   %.3f%n", first > 0 ? (double) retransmitted / first : 0.0);
+        System.out.printf("Dropped by server  %s%n", options.ws ? "not reported over WebSocket" : stats.lost.sum());
+        System.out.printf("Throughput         %.0f send requests/s%n", stats.sendRequests.sum() / seconds);
+        System.out.printf("Goodput            %.0f msg/s, %.1f KB/s delivered%n",
+            delivered / seconds, stats.deliveredBytes.sum() / 1024.0 / seconds);
+        System.out.printf("Uploads            %d chunks (%d retries), %.1f MB/s, %d delivered to receivers%n",
+            stats.chunksUploaded.sum(), stats.chunkRetries.sum(), stats.uploadedBytes.sum() / 1048576.0 / seconds,
+            stats.chunksDelivered.sum());
+        System.out.printf("Delivered          %d of %d, %d still outstanding at the end of the drain%n",
+            delivered, first, stats.undelivered.sum());
+        System.out.printf("Duplicates         %d, out of order %d, request errors %d%n",
+            stats.duplicates.sum(), stats.orderViolations.sum(), stats.errors.sum());
+        System.out.println();
+        System.out.printf("%-22s %9s %9s %9s %9s %9s %9s%n", "Latency (ms)", "count", "p50", "p90", "p99", "p99.9", "max");
+        printLatency(options.ws ? "ws send to ack" : options.batch ? "send-batch request" : "send-message request",
+            stats.sendLatency);
+        printLatency("upload-chunk request", stats.uploadLatency);
+        printLatency("delivery", stats.deliveryLatency);
+    }
+
+    private void printLatency(String name, Histogram histogram) {
+        System.out.printf("%-22s %9d %9.2f %9.2f %9.2f %9.2f %9.2f%n", name, histogram.count(),
+            histogram.percentile(0.50) / 1e6, histogram.percentile(0.90) / 1e6, histogram.percentile(0.99) / 1e6,
+            histogram.percentile(0.999) / 1e6, histogram.max() / 1e6);
+    }
+
+    /**
+     * Lock-free log-linear histogram of nanosecond values with 64 buckets per
+     * power of two, so a percentile is accurate to within about 1.6%.
+     */
+    static class Histogram {
+        private static final int LINEAR = 128;
+        private static final int SUB_BUCKETS = 64;
+        private final AtomicLongArray counts = new AtomicLongArray(LINEAR + (63 - 7) * SUB_BUCKETS);
+        private final LongAdder total = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long value) {
+            value = Math.max(value, 0);
+            counts.incrementAndGet(index(value));
+            total.increment();
+            max.accumulateAndGet(value, Math::max);
+        }
+
+        long count() {
+            return total.sum();
+        }
+
+        long max() {
+            return max.get();
+        }
+
+        long percentile(double p) {
+            long count = count();
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(p * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                seen += counts.get(i);
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), max());
+                }
+            }
+            return max();
+        }
+
+        private static int index(long value) {
+            if (value < LINEAR) {
+                return (int) value;
+            }
+            int magnitude = 63 - Long.numberOfLeadingZeros(value); // >= 7
+            int shift = magnitude - 6;
+            return LINEAR + (magnitude - 7) * SUB_BUCKETS + (int) (value >> shift) - SUB_BUCKETS;
+        }
+
+        private static long upperBound(int index) {
+            if (index < LINEAR) {
+                return index;
+            }
+            int magnitude = (index - LINEAR) / SUB_BUCKETS + 7;
+            int shift = magnitude - 6;
+            long sub = (index - LINEAR) % SUB_BUCKETS + SUB_BUCKETS;
+            return ((sub + 1) << shift) - 1;
+        }
+    }
+}